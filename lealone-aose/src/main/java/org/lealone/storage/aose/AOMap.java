@@ -18,6 +18,7 @@
 package org.lealone.storage.aose;
 
 import java.util.List;
+import java.util.function.BiFunction;
 
 import org.lealone.storage.DelegatedStorageMap;
 import org.lealone.storage.PageKey;
@@ -177,6 +178,16 @@ public class AOMap<K, V> extends DelegatedStorageMap<K, V> {
         }
     }
 
+    @Override
+    public void updateAll(List<K> keys, BiFunction<? super K, ? super V, ? extends V> updater) {
+        beforeWrite();
+        try {
+            map.updateAll(keys, updater);
+        } finally {
+            afterWrite();
+        }
+    }
+
     @Override
     public boolean replace(K key, V oldValue, V newValue) {
         beforeWrite();
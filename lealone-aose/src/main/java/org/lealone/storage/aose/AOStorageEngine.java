@@ -42,6 +42,7 @@ public class AOStorageEngine extends StorageEngineBase {
     @Override
     public void close() {
         AOStorageService.getInstance().close();
+        AOStorageService.closeOffHeapCache();
     }
 
     @Override
@@ -22,11 +22,18 @@ import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import org.lealone.common.concurrent.DebuggableThreadPoolExecutor;
+import org.lealone.common.concurrent.NamedThreadFactory;
 import org.lealone.common.util.DateTimeUtils;
+import org.lealone.storage.cache.CacheLongKeyOffHeap;
 
 public class AOStorageService extends Thread {
 
@@ -37,6 +44,24 @@ public class AOStorageService extends Thread {
     private static final ExecutorService executorService = new DebuggableThreadPoolExecutor("AOStorageServiceThread", 1,
             Runtime.getRuntime().availableProcessors(), 6000, TimeUnit.MILLISECONDS);
 
+    // 专门用来异步读page，队列满了之后提交任务的线程会被阻塞，
+    // 执行命令的线程在提交前先看队列是否已满，满了就不挂起命令也不预读，而是在当前线程中读
+    private static final int pageReadThreads = Runtime.getRuntime().availableProcessors();
+    private static final LinkedBlockingQueue<Runnable> pageReadQueue = new LinkedBlockingQueue<>(1024);
+    private static final ExecutorService pageReadExecutor = new DebuggableThreadPoolExecutor(pageReadThreads,
+            pageReadThreads, 6000, TimeUnit.MILLISECONDS, pageReadQueue, new NamedThreadFactory("PageReadThread"));
+
+    // 专门用来执行后台compact，不跟merge共用线程，限速时是延迟提交剩下的部分，不会sleep
+    private static final ScheduledExecutorService compactExecutor = new ScheduledThreadPoolExecutor(1,
+            new NamedThreadFactory("CompactThread"));
+
+    // 用于save时并行序列化和压缩page
+    private static final ForkJoinPool forkJoinPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    // 所有map共用一个off-heap page cache，每个map用自己的key space，
+    // 内存在用到时才分配，引擎关闭时释放
+    private static CacheLongKeyOffHeap offHeapCache;
+
     private static final AOStorageService INSTANCE = new AOStorageService();
 
     public static AOStorageService getInstance() {
@@ -51,6 +76,58 @@ public class AOStorageService extends Thread {
         executorService.submit(task);
     }
 
+    public static void scheduleCompactTask(Runnable task, long delayMillis) {
+        compactExecutor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public static void submitPageReadTask(Runnable task) {
+        pageReadExecutor.execute(task);
+    }
+
+    /**
+     * Check whether the queue of the page read threads is full, so that submitting
+     * another page read task would block the caller.
+     *
+     * @return true if the queue is full
+     */
+    public static boolean isPageReadQueueFull() {
+        return pageReadQueue.remainingCapacity() == 0;
+    }
+
+    public static <T> ForkJoinTask<T> forkTask(ForkJoinTask<T> task) {
+        return forkJoinPool.submit(task);
+    }
+
+    /**
+     * Get the off-heap page cache shared by all maps. The cache is created when it is
+     * first needed, with the size configured by the storage engine, or else with the
+     * size configured by the first storage that uses it.
+     * 
+     * @param maxMemory the size to use if the cache does not exist yet
+     * @return the shared cache
+     */
+    public static synchronized CacheLongKeyOffHeap getOffHeapCache(long maxMemory) {
+        if (offHeapCache == null)
+            offHeapCache = new CacheLongKeyOffHeap(maxMemory);
+        return offHeapCache;
+    }
+
+    /**
+     * Get the off-heap page cache that is shared by all maps.
+     *
+     * @return the cache, or null if it was not created
+     */
+    public static synchronized CacheLongKeyOffHeap getOffHeapCache() {
+        return offHeapCache;
+    }
+
+    static synchronized void closeOffHeapCache() {
+        if (offHeapCache != null) {
+            offHeapCache.clear();
+            offHeapCache = null;
+        }
+    }
+
     public static void addPendingTask(Callable<?> task) {
         pendingTasks.add(task);
     }
@@ -86,6 +163,10 @@ public class AOStorageService extends Thread {
     public synchronized void start(Map<String, String> config) {
         // 默认3秒钟
         loopInterval = DateTimeUtils.getLoopInterval(config, "storage_service_loop_interval", 3000);
+        // 单位是MB，所有map共用，默认不启用
+        String offHeapCacheSize = config.get("off_heap_cache_size");
+        if (offHeapCacheSize != null && Integer.parseInt(offHeapCacheSize) > 0)
+            getOffHeapCache(Integer.parseInt(offHeapCacheSize) * 1024L * 1024L);
         start();
     }
 
@@ -61,6 +61,18 @@ public class BTreeChunk {
 
     public FileStorage fileStorage;
 
+    /**
+     * The number of bytes of the chunk body already written to the file.
+     * Only used while the chunk is being saved.
+     */
+    int flushedLength;
+
+    /**
+     * Prepares the leaf pages ahead of the writing thread.
+     * Only used while the chunk is being saved.
+     */
+    LeafPagePreparer leafPagePreparer;
+
     BTreeChunk(int id) {
         this.id = id;
     }
@@ -5,6 +5,7 @@
  */
 package org.lealone.storage.aose.btree;
 
+import java.util.ArrayList;
 import java.util.Iterator;
 
 import org.lealone.common.util.DataUtils;
@@ -28,6 +29,10 @@ class BTreeCursor<K, V> implements Iterator<K>, StorageMapCursor<K, V> {
     private K currentKey, lastKey;
     private V currentValue, lastValue;
 
+    // 已经预读到readAheadParent的哪个子page了
+    private BTreePage readAheadParent;
+    private int readAheadEnd;
+
     // private boolean initialized;
 
     BTreeCursor(BTreeMap<K, ?> map, BTreePage root, K from) {
@@ -130,10 +135,40 @@ class BTreeCursor<K, V> implements Iterator<K>, StorageMapCursor<K, V> {
                 break;
             }
             if (pos.index < map.getChildPageCount(pos.page)) {
+                // 已经读完了一个leaf page，说明是顺序扫描
+                readAhead(pos.page, pos.index + 1);
                 min(pos.page.getChildPage(pos.index++), null);
             }
         }
         currentKey = null;
     }
 
+    /**
+     * Prefetch the next leaf pages of the given parent page.
+     * 
+     * @param parent the parent page
+     * @param start the index of the first child page to prefetch
+     */
+    private void readAhead(BTreePage parent, int start) {
+        int n = map.btreeStorage.getReadAheadPages();
+        if (n <= 0 || !parent.isLeafChildPage(start - 1))
+            return;
+        if (parent != readAheadParent) {
+            readAheadParent = parent;
+            readAheadEnd = start;
+        }
+        // 预读的page还没用掉一半
+        if (readAheadEnd - start >= n / 2)
+            return;
+        int end = Math.min(start + n, map.getChildPageCount(parent));
+        ArrayList<Long> positions = new ArrayList<>(end - readAheadEnd);
+        for (int i = Math.max(start, readAheadEnd); i < end; i++) {
+            PageReference ref = parent.getChildPageReference(i);
+            if (ref.page == null && ref.pos > 0)
+                positions.add(ref.pos);
+        }
+        readAheadEnd = end;
+        if (!positions.isEmpty())
+            map.btreeStorage.prefetchPages(positions);
+    }
 }
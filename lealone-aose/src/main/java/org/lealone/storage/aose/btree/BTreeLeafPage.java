@@ -13,6 +13,7 @@ import org.lealone.common.util.DataUtils;
 import org.lealone.db.DataBuffer;
 import org.lealone.net.NetEndpoint;
 import org.lealone.storage.LeafPageMovePlan;
+import org.lealone.storage.type.LongKeyDataType;
 import org.lealone.storage.type.StorageDataType;
 
 /**
@@ -28,10 +29,11 @@ public class BTreeLeafPage extends BTreeLocalPage {
      * <p>
      * The array might be larger than needed, to avoid frequent re-sizing.
      */
-    private Object[] values;
+    protected Object[] values;
 
     private List<String> replicationHostIds;
     private LeafPageMovePlan leafPageMovePlan;
+    private byte[] preparedPage; // 由LeafPagePreparer并行生成，写到chunk后就清空
 
     BTreeLeafPage(BTreeMap<?, ?> map) {
         super(map);
@@ -102,7 +104,7 @@ public class BTreeLeafPage extends BTreeLocalPage {
     @Override
     public long getTotalCount() {
         if (ASSERT) {
-            long check = keys.length;
+            long check = getKeyCount();
             if (check != totalCount) {
                 throw DataUtils.newIllegalStateException(DataUtils.ERROR_INTERNAL, "Expected: {0} got: {1}", check,
                         totalCount);
@@ -173,10 +175,11 @@ public class BTreeLeafPage extends BTreeLocalPage {
         if (!remote) {
             StorageDataType kt = map.getKeyType();
             StorageDataType vt = map.getValueType();
-            buff.putInt(keys.length);
-            for (int i = 0; i < keys.length; i++) {
-                kt.write(buff, keys[i]);
-                vt.write(buff, values[i]);
+            int keyLength = getKeyCount();
+            buff.putInt(keyLength);
+            for (int i = 0; i < keyLength; i++) {
+                kt.write(buff, getKey(i));
+                vt.write(buff, getValue(i));
             }
         }
     }
@@ -208,32 +211,28 @@ public class BTreeLeafPage extends BTreeLocalPage {
     @Override
     int write(BTreeChunk chunk, DataBuffer buff, boolean replicatePage) {
         int start = buff.position();
-        int keyLength = keys.length;
+        int typePos;
+        if (preparedPage != null) {
+            buff.put(preparedPage);
+            preparedPage = null;
+            typePos = start + 4 + 2 + DataUtils.getVarIntLen(getKeyCount());
+        } else {
+            typePos = writePage(buff);
+        }
+        int checkPos = start + 4;
         int type = PageUtils.PAGE_TYPE_LEAF;
-        buff.putInt(0); // 回填pageLength
-
-        int checkPos = buff.position();
-        buff.putShort((short) 0).putVarInt(keyLength);
-        int typePos = buff.position();
-        buff.put((byte) type);
-        int compressStart = buff.position();
-        map.getKeyType().write(buff, keys, keyLength);
-        map.getValueType().write(buff, values, keyLength);
-        writeReplicationHostIds(replicationHostIds, buff);
-
-        compressPage(buff, compressStart, type, typePos);
 
         int pageLength = buff.position() - start;
-        buff.putInt(start, pageLength);
         int chunkId = chunk.id;
+        int offset = chunk.flushedLength + start; // 前面的page可能已经写到chunk文件中了
 
-        writeCheckValue(buff, chunkId, start, pageLength, checkPos);
+        writeCheckValue(buff, chunkId, offset, pageLength, checkPos);
 
         if (replicatePage) {
             return typePos + 1;
         }
 
-        updateChunkAndCachePage(chunk, start, pageLength, type);
+        updateChunkAndCachePage(chunk, offset, pageLength, type);
 
         if (removedInMemory) {
             // if the page was removed _before_ the position was assigned, we
@@ -244,13 +243,51 @@ public class BTreeLeafPage extends BTreeLocalPage {
         return typePos + 1;
     }
 
+    // 写page的长度和内容，check value跟page在chunk中的位置有关，由调用者回填
+    int writePage(DataBuffer buff) {
+        int start = buff.position();
+        int keyLength = keys.length;
+        int type = PageUtils.PAGE_TYPE_LEAF;
+        buff.putInt(0); // 回填pageLength
+
+        buff.putShort((short) 0).putVarInt(keyLength);
+        int typePos = buff.position();
+        buff.put((byte) type);
+        int compressStart = buff.position();
+        map.getKeyType().write(buff, keys, keyLength);
+        map.getValueType().write(buff, values, keyLength);
+        writeReplicationHostIds(replicationHostIds, buff);
+
+        compressPage(buff, compressStart, type, typePos);
+
+        int pageLength = buff.position() - start;
+        buff.putInt(start, pageLength);
+        return typePos;
+    }
+
+    // 在save线程之外序列化和压缩page，返回序列化后的字节数
+    int prepareWrite() {
+        try (DataBuffer buff = DataBuffer.create()) {
+            writePage(buff);
+            preparedPage = new byte[buff.position()];
+            buff.position(0).get(preparedPage);
+            return preparedPage.length;
+        }
+    }
+
     @Override
     void writeUnsavedRecursive(BTreeChunk chunk, DataBuffer buff) {
         if (pos != 0) {
             // already stored before
             return;
         }
+        LeafPagePreparer preparer = chunk.leafPagePreparer;
+        if (preparer != null)
+            preparer.beforeWrite(this);
         write(chunk, buff, false);
+        if (preparer != null)
+            preparer.afterWrite();
+        map.getBTreeStorage().flushChunkSegmentIfNeeded(chunk, buff);
     }
 
     @Override
@@ -268,7 +305,8 @@ public class BTreeLeafPage extends BTreeLocalPage {
         return copy(true);
     }
 
-    private BTreeLeafPage copy(boolean removePage) {
+    @Override
+    BTreeLeafPage copy(boolean removePage) {
         BTreeLeafPage newPage = create(map, keys, values, totalCount, getMemory());
         newPage.cachedCompare = cachedCompare;
         newPage.replicationHostIds = replicationHostIds;
@@ -295,7 +333,22 @@ public class BTreeLeafPage extends BTreeLocalPage {
         return create(map, EMPTY_OBJECT_ARRAY, EMPTY_OBJECT_ARRAY, 0, PageUtils.PAGE_MEMORY);
     }
 
+    /**
+     * Create a page whose content is read later.
+     * 
+     * @param map the map
+     * @return the new page
+     */
+    static BTreeLeafPage create(BTreeMap<?, ?> map) {
+        if (map.getKeyType() instanceof LongKeyDataType)
+            return new BTreeLongKeyLeafPage(map);
+        else
+            return new BTreeLeafPage(map);
+    }
+
     static BTreeLeafPage create(BTreeMap<?, ?> map, Object[] keys, Object[] values, long totalCount, int memory) {
+        if (map.getKeyType() instanceof LongKeyDataType)
+            return BTreeLongKeyLeafPage.create(map, keys, values, totalCount);
         BTreeLeafPage p = new BTreeLeafPage(map);
         // the position is 0
         p.keys = keys;
@@ -325,27 +378,24 @@ public class BTreeLeafPage extends BTreeLocalPage {
 
     @Override
     protected void toString0(StringBuilder buff) {
-        for (int i = 0; i <= keys.length; i++) {
+        int keyLength = getKeyCount();
+        for (int i = 0; i < keyLength; i++) {
             if (i > 0) {
                 buff.append(" ");
             }
-            if (i < keys.length) {
-                buff.append(keys[i]);
-                if (values != null) {
-                    buff.append(':');
-                    buff.append(values[i]);
-                }
-            }
+            buff.append(getKey(i));
+            buff.append(':');
+            buff.append(getValue(i));
         }
     }
 
     @Override
     protected void getPrettyPageInfoRecursive(StringBuilder buff, String indent, PrettyPageInfo info) {
         buff.append(indent).append("values: ");
-        for (int i = 0; i < keys.length; i++) {
+        for (int i = 0, keyLength = getKeyCount(); i < keyLength; i++) {
             if (i > 0)
                 buff.append(", ");
-            buff.append(values[i]);
+            buff.append(getValue(i));
         }
         buff.append('\n');
     }
@@ -153,7 +153,7 @@ public abstract class BTreeLocalPage extends BTreePage {
 
     @Override
     boolean needSplit() {
-        return memory > map.btreeStorage.getPageSplitSize() && keys.length > 1;
+        return memory > map.btreeStorage.getPageSplitSize() && getKeyCount() > 1;
     }
 
     /**
@@ -353,14 +353,15 @@ public abstract class BTreeLocalPage extends BTreePage {
         buff.append(indent).append("chunkId: ").append(PageUtils.getPageChunkId(pos)).append('\n');
         buff.append(indent).append("totalCount: ").append(totalCount).append('\n');
         buff.append(indent).append("memory: ").append(memory).append('\n');
-        buff.append(indent).append("keyLength: ").append(keys.length).append('\n');
+        int keyLength = getKeyCount();
+        buff.append(indent).append("keyLength: ").append(keyLength).append('\n');
 
-        if (keys.length > 0) {
+        if (keyLength > 0) {
             buff.append(indent).append("keys: ");
-            for (int i = 0; i < keys.length; i++) {
+            for (int i = 0; i < keyLength; i++) {
                 if (i > 0)
                     buff.append(", ");
-                buff.append(keys[i]);
+                buff.append(getKey(i));
             }
             buff.append('\n');
             getPrettyPageInfoRecursive(buff, indent, info);
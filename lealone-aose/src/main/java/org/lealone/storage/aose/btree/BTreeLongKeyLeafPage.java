@@ -0,0 +1,316 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.storage.aose.btree;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.lealone.common.util.DataUtils;
+import org.lealone.db.DataBuffer;
+import org.lealone.storage.type.LongKeyDataType;
+import org.lealone.storage.type.StorageDataType;
+
+/**
+ * A leaf page of a map whose key type is a LongKeyDataType.
+ * <p>
+ * The keys are stored in a long array, and the values read from disk
+ * are only deserialized when they are accessed the first time.
+ * The on-disk format is the same as the one of BTreeLeafPage.
+ *
+ * @author zhh
+ */
+public class BTreeLongKeyLeafPage extends BTreeLeafPage {
+
+    // 一个long key在page中占用的内存
+    private static final int KEY_MEMORY = 8;
+
+    private long[] longKeys;
+
+    // 从硬盘读出page后，values和replicationHostIds先保持序列化格式，第一次访问时再反序列化
+    private volatile byte[] valueBytes;
+
+    BTreeLongKeyLeafPage(BTreeMap<?, ?> map) {
+        super(map);
+    }
+
+    private LongKeyDataType getKeyType() {
+        return (LongKeyDataType) map.getKeyType();
+    }
+
+    private void readValues() {
+        if (valueBytes == null)
+            return;
+        synchronized (this) {
+            byte[] bytes = valueBytes;
+            if (bytes == null)
+                return;
+            ByteBuffer buff = ByteBuffer.wrap(bytes);
+            Object[] values = new Object[longKeys.length];
+            map.getValueType().read(buff, values, values.length);
+            this.values = values;
+            super.setReplicationHostIds(readReplicationHostIds(buff));
+            valueBytes = null; // values要先于valueBytes对其他线程可见
+            recalculateMemory();
+            // page放进缓存时算的是序列化格式的大小，反序列化后要让缓存也按新的大小算
+            if (pos != 0)
+                map.getBTreeStorage().updateCachedPageMemory(pos, this, memory);
+        }
+    }
+
+    @Override
+    public Object getKey(int index) {
+        return getKeyType().createKey(longKeys[index]);
+    }
+
+    @Override
+    public int getKeyCount() {
+        return longKeys.length;
+    }
+
+    @Override
+    Object getLastKey() {
+        if (longKeys == null || longKeys.length == 0)
+            return null;
+        else
+            return getKeyType().createKey(longKeys[longKeys.length - 1]);
+    }
+
+    @Override
+    public int binarySearch(Object key) {
+        int low = 0, high = longKeys.length - 1;
+        int x = cachedCompare - 1;
+        if (x < 0 || x > high) {
+            x = high >>> 1;
+        }
+        long[] k = longKeys;
+        LongKeyDataType keyType = getKeyType();
+        // 像null这样的key不能转成long，只能用keyType比较
+        boolean isLongKey = keyType.isLongKey(key);
+        long longKey = isLongKey ? keyType.getLongKey(key) : 0;
+        while (low <= high) {
+            int compare;
+            if (isLongKey)
+                compare = Long.compare(longKey, k[x]);
+            else
+                compare = keyType.compare(key, keyType.createKey(k[x]));
+            if (compare > 0) {
+                low = x + 1;
+            } else if (compare < 0) {
+                high = x - 1;
+            } else {
+                cachedCompare = x + 1;
+                return x;
+            }
+            x = (low + high) >>> 1;
+        }
+        cachedCompare = low;
+        return -(low + 1);
+    }
+
+    @Override
+    public void setKey(int index, Object key) {
+        longKeys = longKeys.clone();
+        longKeys[index] = getKeyType().getLongKey(key);
+    }
+
+    @Override
+    public Object getValue(int index) {
+        readValues();
+        return values[index];
+    }
+
+    @Override
+    public Object setValue(int index, Object value) {
+        readValues();
+        return super.setValue(index, value);
+    }
+
+    @Override
+    public List<String> getReplicationHostIds() {
+        readValues();
+        return super.getReplicationHostIds();
+    }
+
+    @Override
+    public void setReplicationHostIds(List<String> replicationHostIds) {
+        readValues();
+        super.setReplicationHostIds(replicationHostIds);
+    }
+
+    @Override
+    BTreeLeafPage split(int at) { // 小于split key的放在左边，大于等于split key放在右边
+        readValues();
+        int a = at, b = longKeys.length - a;
+        long[] aKeys = new long[a];
+        long[] bKeys = new long[b];
+        System.arraycopy(longKeys, 0, aKeys, 0, a);
+        System.arraycopy(longKeys, a, bKeys, 0, b);
+        longKeys = aKeys;
+        Object[] aValues = new Object[a];
+        Object[] bValues = new Object[b];
+        System.arraycopy(values, 0, aValues, 0, a);
+        System.arraycopy(values, a, bValues, 0, b);
+        values = aValues;
+        totalCount = a;
+        BTreeLongKeyLeafPage newPage = create(map, bKeys, bValues, bKeys.length);
+        newPage.setReplicationHostIds(getReplicationHostIds());
+        recalculateMemory();
+        return newPage;
+    }
+
+    @Override
+    public void insertLeaf(int index, Object key, Object value) {
+        readValues();
+        int len = longKeys.length + 1;
+        long[] newKeys = new long[len];
+        DataUtils.copyWithGap(longKeys, newKeys, len - 1, index);
+        Object[] newValues = new Object[len];
+        DataUtils.copyWithGap(values, newValues, len - 1, index);
+        newKeys[index] = getKeyType().getLongKey(key);
+        newValues[index] = value;
+        longKeys = newKeys;
+        values = newValues;
+        totalCount++;
+        addMemory(KEY_MEMORY + map.getValueType().getMemory(value));
+    }
+
+    @Override
+    public void remove(int index) {
+        readValues();
+        int keyLength = longKeys.length;
+        long[] newKeys = new long[keyLength - 1];
+        DataUtils.copyExcept(longKeys, newKeys, keyLength, index);
+        Object old = values[index];
+        Object[] newValues = new Object[keyLength - 1];
+        DataUtils.copyExcept(values, newValues, keyLength, index);
+        longKeys = newKeys;
+        values = newValues;
+        totalCount--;
+        addMemory(-KEY_MEMORY - map.getValueType().getMemory(old));
+    }
+
+    @Override
+    void read(ByteBuffer buff, int chunkId, int offset, int maxLength, boolean disableCheck) {
+        int start = buff.position();
+        int pageLength = buff.getInt();
+        checkPageLength(chunkId, pageLength, maxLength);
+
+        int oldLimit = buff.limit();
+        buff.limit(start + pageLength);
+
+        readCheckValue(buff, chunkId, offset, pageLength, disableCheck);
+
+        int keyLength = DataUtils.readVarInt(buff);
+        int type = buff.get();
+
+        ByteBuffer oldBuff = buff;
+        buff = expandPage(buff, type, start, pageLength);
+
+        LongKeyDataType keyType = getKeyType();
+        long[] keys = new long[keyLength];
+        for (int i = 0; i < keyLength; i++) {
+            keys[i] = keyType.getLongKey(keyType.read(buff));
+        }
+        longKeys = keys;
+        byte[] bytes = new byte[buff.remaining()];
+        buff.get(bytes);
+        valueBytes = bytes;
+        totalCount = keyLength;
+        recalculateMemory();
+        oldBuff.limit(oldLimit);
+    }
+
+    @Override
+    int writePage(DataBuffer buff) {
+        int start = buff.position();
+        int keyLength = longKeys.length;
+        int type = PageUtils.PAGE_TYPE_LEAF;
+        buff.putInt(0); // 回填pageLength
+
+        buff.putShort((short) 0).putVarInt(keyLength);
+        int typePos = buff.position();
+        buff.put((byte) type);
+        int compressStart = buff.position();
+        LongKeyDataType keyType = getKeyType();
+        for (int i = 0; i < keyLength; i++) {
+            keyType.write(buff, keyType.createKey(longKeys[i]));
+        }
+        byte[] bytes = valueBytes;
+        if (bytes != null) {
+            // 还没有反序列化，直接写回原来的字节
+            buff.put(bytes);
+        } else {
+            map.getValueType().write(buff, values, keyLength);
+            writeReplicationHostIds(getReplicationHostIds(), buff);
+        }
+
+        compressPage(buff, compressStart, type, typePos);
+
+        int pageLength = buff.position() - start;
+        buff.putInt(start, pageLength);
+        return typePos;
+    }
+
+    @Override
+    protected void recalculateMemory() {
+        int mem = PageUtils.PAGE_MEMORY + longKeys.length * KEY_MEMORY;
+        byte[] bytes = valueBytes;
+        if (bytes != null) {
+            mem += bytes.length;
+        } else {
+            StorageDataType valueType = map.getValueType();
+            for (int i = 0; i < values.length; i++) {
+                mem += valueType.getMemory(values[i]);
+            }
+        }
+        addMemory(mem - memory);
+    }
+
+    @Override
+    BTreeLeafPage copy(boolean removePage) {
+        readValues();
+        BTreeLongKeyLeafPage newPage = create(map, longKeys, values, totalCount);
+        newPage.cachedCompare = cachedCompare;
+        newPage.setReplicationHostIds(getReplicationHostIds());
+        newPage.setLeafPageMovePlan(getLeafPageMovePlan());
+        if (removePage) {
+            // mark the old as deleted
+            removePage();
+        }
+        return newPage;
+    }
+
+    static BTreeLongKeyLeafPage create(BTreeMap<?, ?> map, Object[] keys, Object[] values, long totalCount) {
+        LongKeyDataType keyType = (LongKeyDataType) map.getKeyType();
+        long[] longKeys = new long[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            longKeys[i] = keyType.getLongKey(keys[i]);
+        }
+        return create(map, longKeys, values, totalCount);
+    }
+
+    static BTreeLongKeyLeafPage create(BTreeMap<?, ?> map, long[] keys, Object[] values, long totalCount) {
+        BTreeLongKeyLeafPage p = new BTreeLongKeyLeafPage(map);
+        // the position is 0
+        p.longKeys = keys;
+        p.values = values;
+        p.totalCount = totalCount;
+        p.recalculateMemory();
+        return p;
+    }
+}
@@ -17,6 +17,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
 
 import org.lealone.common.exceptions.DbException;
 import org.lealone.common.util.DataUtils;
@@ -25,6 +28,8 @@ import org.lealone.db.DataBuffer;
 import org.lealone.db.IDatabase;
 import org.lealone.db.RunMode;
 import org.lealone.db.Session;
+import org.lealone.db.async.AsyncHandler;
+import org.lealone.db.async.AsyncResult;
 import org.lealone.net.NetEndpoint;
 import org.lealone.storage.LeafPageMovePlan;
 import org.lealone.storage.PageKey;
@@ -48,6 +53,13 @@ import org.lealone.storage.type.StorageDataType;
  * operations is synchronized. For scalable concurrent in-memory write
  * operations, the map should be split into multiple smaller sub-maps that are
  * then synchronized independently.
+ * <p>
+ * If the map is opened with the concurrentWrite option, put, putIfAbsent,
+ * replace and remove do not hold the map monitor. Each writer copies the path
+ * from a snapshot of the root page and installs the new root with a
+ * compare-and-set. If another writer was faster but changed a different leaf
+ * page, only the node pages above the leaf page are copied again; the change
+ * to the leaf page is only repeated if the same leaf page was changed.
  * 
  * @param <K> the key class
  * @param <V> the value class
@@ -67,8 +79,20 @@ public class BTreeMap<K, V> extends StorageMapBase<K, V> {
         }
     }
 
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<BTreeMap, BTreePage> rootUpdater = AtomicReferenceFieldUpdater
+            .newUpdater(BTreeMap.class, BTreePage.class, "root");
+
+    // putIfAbsent和replace复用putConcurrently时用来区分是否需要检查旧值
+    private static final Object ANY_VALUE = new Object();
+    // 只修改一个叶子page的方式写不了，需要复制整条路径
+    private static final Object COPY_PATH = new Object();
+
     protected final boolean readOnly;
     protected final boolean isShardingMode;
+    protected final boolean concurrentWrite;
+    private final LongAdder rootUpdateRetries = new LongAdder();
+    private final LongAdder leafRewrites = new LongAdder();
 
     protected final Map<String, Object> config;
     protected final BTreeStorage btreeStorage;
@@ -120,6 +144,34 @@ public class BTreeMap<K, V> extends StorageMapBase<K, V> {
         }
 
         this.isShardingMode = isShardingMode;
+        // sharding模式下写操作还涉及page的移动，所以只能使用同步写
+        this.concurrentWrite = isConcurrentWriteEnabled(config) && !isShardingMode && isConcurrentWriteSupported();
+    }
+
+    // StorageBuilder.concurrentWrite()设置的是1，表的WITH参数、数据库设置和存储引擎参数传过来的是字符串，
+    // 存储引擎参数用的是concurrent_write，表的WITH参数可以用false关掉数据库或存储引擎打开的并发写
+    private static boolean isConcurrentWriteEnabled(Map<String, Object> config) {
+        Object value = config.get("concurrentWrite");
+        if (value == null)
+            value = config.get("concurrent_write");
+        if (value == null)
+            return false;
+        String s = value.toString().trim();
+        return !s.equals("0") && !s.equalsIgnoreCase("false");
+    }
+
+    /**
+     * Whether this map type can be written without holding the map monitor.
+     * Subclasses that override the write paths should return false.
+     * 
+     * @return true if the concurrentWrite option is supported
+     */
+    protected boolean isConcurrentWriteSupported() {
+        return true;
+    }
+
+    public boolean isConcurrentWrite() {
+        return concurrentWrite;
     }
 
     private boolean containsLocalEndpoint(String[] replicationEndpoints) {
@@ -137,6 +189,55 @@ public class BTreeMap<K, V> extends StorageMapBase<K, V> {
         return (V) binarySearch(root, key);
     }
 
+    /**
+     * Get the value for the given key without blocking on page reads.
+     * If all pages on the path are in memory, the handler is called in the current thread,
+     * otherwise it is called by a page read thread once the missing page was read.
+     * 
+     * @param key the key
+     * @param handler the handler that receives the value (null if not found) or the failure
+     */
+    public void get(K key, AsyncHandler<AsyncResult<V>> handler) {
+        binarySearch(root, key, handler);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void binarySearch(BTreePage p, Object key, AsyncHandler<AsyncResult<V>> handler) {
+        AsyncResult<V> result = new AsyncResult<>();
+        try {
+            while (true) {
+                int index = p.binarySearch(key);
+                if (p.isLeaf()) {
+                    result.setResult(index >= 0 ? (V) p.getValue(index) : null);
+                    break;
+                }
+                if (index < 0) {
+                    index = -index - 1;
+                } else {
+                    index++;
+                }
+                PageReference ref = p.getChildPageReference(index);
+                if (ref.page != null || ref.pos < 0) { // remote page还是同步读
+                    p = p.getChildPage(index);
+                    continue;
+                }
+                btreeStorage.readPageAsync(ref.pos, ar -> {
+                    if (ar.isSucceeded()) {
+                        binarySearch(ar.getResult(), key, handler);
+                    } else {
+                        AsyncResult<V> r = new AsyncResult<>();
+                        r.setCause(ar.getCause());
+                        handler.handle(r);
+                    }
+                });
+                return;
+            }
+        } catch (Throwable t) {
+            result.setCause(t);
+        }
+        handler.handle(result);
+    }
+
     /**
      * Get the value for the given key, or null if not found.
      * 
@@ -174,9 +275,15 @@ public class BTreeMap<K, V> extends StorageMapBase<K, V> {
 
     @Override
     @SuppressWarnings("unchecked")
-    public synchronized V put(K key, V value) {
+    public V put(K key, V value) {
         DataUtils.checkArgument(value != null, "The value may not be null");
+        if (concurrentWrite)
+            return (V) putConcurrently(key, value, ANY_VALUE);
+        return putSynchronized(key, value);
+    }
 
+    @SuppressWarnings("unchecked")
+    private synchronized V putSynchronized(K key, V value) {
         beforeWrite();
         BTreePage p = root.copy();
 
@@ -186,7 +293,7 @@ public class BTreeMap<K, V> extends StorageMapBase<K, V> {
             split = true;
         }
 
-        Object result = put(p, key, value);
+        Object result = put(p, key, value, null);
         if (split && isShardingMode && root.isLeaf()) {
             PageKey pk = new PageKey(p.getKey(0), false); // 移动右边的Page
             moveLeafPageLazy(pk);
@@ -196,6 +303,156 @@ public class BTreeMap<K, V> extends StorageMapBase<K, V> {
         return (V) result;
     }
 
+    // 不持有map的锁，先试着只修改一个叶子page，需要切割page时基于root的快照复制出一条新路径，然后用CAS替换root，
+    // 替换失败说明其他线程已经修改了root，丢弃这次复制出来的page后重试。
+    // 返回值是写入前快照中的旧值，当expected不是ANY_VALUE并且旧值不满足条件时不写入
+    private Object putConcurrently(Object key, Object value, Object expected) {
+        beforeWrite();
+        Object result = writeLeafConcurrently(key, value, expected);
+        if (result != COPY_PATH)
+            return result;
+        ArrayList<BTreePage> oldPages = new ArrayList<>();
+        while (true) {
+            BTreePage oldRoot = root;
+            if (expected != ANY_VALUE) {
+                Object old = binarySearch(oldRoot, key);
+                if (expected == null ? old != null : !areValuesEqual(old, expected))
+                    return old;
+            }
+            BTreePage p = copy(oldRoot, oldPages);
+            if (p.needSplit()) {
+                p = splitRoot(p);
+            }
+            result = putLocal(p, key, value, oldPages);
+            if (updateRoot(oldRoot, p, oldPages))
+                return result;
+        }
+    }
+
+    // 不需要切割page也不会删除整个叶子page的写操作只跟修改同一个叶子page的写操作冲突:
+    // 先在root的快照中找到key所在的叶子page，修改它的副本，再从下往上复制路径上的node page，然后用CAS替换root。
+    // 替换失败后，如果新root中key所在的还是同一个叶子page，说明其他线程修改的是别的叶子page，
+    // 已经修改好的叶子page副本可以直接用，只需要基于新root重新复制上面的node page。
+    // value为null时是删除，需要按整条路径复制的方式来写时返回COPY_PATH
+    private Object writeLeafConcurrently(Object key, Object value, Object expected) {
+        ArrayList<BTreePage> path = new ArrayList<>();
+        ArrayList<BTreePage> oldPages = new ArrayList<>();
+        BTreePage oldLeaf = null;
+        BTreePage newLeaf = null;
+        Object result = null;
+        while (true) {
+            BTreePage oldRoot = root;
+            BTreePage p = oldRoot;
+            path.clear();
+            while (p.isNode()) {
+                if (p.needSplit())
+                    return COPY_PATH;
+                path.add(p);
+                p = p.getChildPage(getChildIndex(p, key));
+            }
+            if (p != oldLeaf) {
+                int index = p.binarySearch(key);
+                Object old = index >= 0 ? p.getValue(index) : null;
+                if (expected != ANY_VALUE && (expected == null ? old != null : !areValuesEqual(old, expected)))
+                    return old;
+                if (value == null) {
+                    if (old == null)
+                        return null;
+                    // 叶子page删空后要从父节点中删除
+                    if (p.getKeyCount() == 1 && !path.isEmpty())
+                        return COPY_PATH;
+                } else if (p.needSplit()) {
+                    return COPY_PATH;
+                }
+                if (oldLeaf != null)
+                    leafRewrites.increment();
+                oldLeaf = p;
+                newLeaf = p.copy(false);
+                result = old;
+                if (value == null) {
+                    newLeaf.remove(index);
+                } else if (index >= 0) {
+                    newLeaf.setValue(index, value);
+                } else {
+                    newLeaf.insertLeaf(-index - 1, key, value);
+                    setMaxKey(key);
+                }
+            }
+            p = newLeaf;
+            for (int i = path.size() - 1; i >= 0; i--) {
+                BTreePage c = copy(path.get(i), oldPages);
+                c.setChild(getChildIndex(c, key), p);
+                p = c;
+            }
+            oldPages.add(oldLeaf);
+            if (updateRoot(oldRoot, p, oldPages))
+                return result;
+        }
+    }
+
+    private static int getChildIndex(BTreePage p, Object key) {
+        int index = p.binarySearch(key);
+        return index < 0 ? -index - 1 : index + 1;
+    }
+
+    /**
+     * Copy the page for writing. In the concurrent write mode the old page is
+     * only collected, it is marked as removed after the new root is installed.
+     * 
+     * @param p the page
+     * @param oldPages the old pages, or null if the map monitor is held
+     * @return the copy
+     */
+    private static BTreePage copy(BTreePage p, List<BTreePage> oldPages) {
+        if (oldPages == null)
+            return p.copy();
+        oldPages.add(p);
+        return p.copy(false);
+    }
+
+    private boolean updateRoot(BTreePage oldRoot, BTreePage newRoot, List<BTreePage> oldPages) {
+        boolean updated = rootUpdater.compareAndSet(this, oldRoot, newRoot);
+        if (updated) {
+            // 只有CAS成功后才能删除老的page，否则重试时会把仍在使用的page删掉
+            for (BTreePage p : oldPages) {
+                p.removePage();
+            }
+        } else {
+            rootUpdateRetries.increment();
+        }
+        oldPages.clear();
+        return updated;
+    }
+
+    /**
+     * Get the number of times a concurrent writer had to copy its path again because
+     * another writer installed a new root first.
+     * 
+     * @return the number of retries
+     */
+    public long getRootUpdateRetries() {
+        return rootUpdateRetries.sum();
+    }
+
+    /**
+     * Get the number of times a concurrent writer had to change a leaf page again
+     * because another writer changed the same leaf page first.
+     * 
+     * @return the number of leaf page rewrites
+     */
+    public long getLeafRewrites() {
+        return leafRewrites.sum();
+    }
+
+    // 这些操作会在持有map锁的情况下直接修改page或root，并发写模式下会覆盖其他线程通过CAS安装的root，
+    // 它们只在sharding模式下使用，而sharding模式不会启用并发写
+    private void checkNotConcurrentWrite(String operation) {
+        if (concurrentWrite) {
+            throw DataUtils.newUnsupportedOperationException(
+                    operation + " is not supported if the map is opened with the concurrentWrite option");
+        }
+    }
+
     /**
      * This method is called before writing to the map. 
      * The default implementation checks whether writing is allowed.
@@ -235,9 +492,10 @@ public class BTreeMap<K, V> extends StorageMapBase<K, V> {
      * @param p the page
      * @param key the key (may not be null)
      * @param value the value (may not be null)
+     * @param oldPages the old pages, or null if the map monitor is held
      * @return the old value, or null
      */
-    private Object put(BTreePage p, Object key, Object value) {
+    private Object put(BTreePage p, Object key, Object value, List<BTreePage> oldPages) {
         // 本地后台批量put时(比如通过BufferedMap执行)，可能会发生leafPage切割，
         // 这时复制节点就发生改变了，需要重定向到新的复制节点
         // 比如下面这样的场景就会发生:
@@ -246,7 +504,7 @@ public class BTreeMap<K, V> extends StorageMapBase<K, V> {
         if (p.getLeafPageMovePlan() != null) {
             return putRemote(p, key, value);
         } else {
-            return putLocal(p, key, value);
+            return putLocal(p, key, value, oldPages);
         }
     }
 
@@ -274,7 +532,7 @@ public class BTreeMap<K, V> extends StorageMapBase<K, V> {
             }
             // 如果新的复制节点中还包含本地节点，那么还需要put到本地节点中
             if (containsLocalEndpoint) {
-                return putLocal(p, key, value);
+                return putLocal(p, key, value, null);
             } else {
                 return returnValue;
             }
@@ -283,7 +541,7 @@ public class BTreeMap<K, V> extends StorageMapBase<K, V> {
         }
     }
 
-    private Object putLocal(BTreePage p, Object key, Object value) {
+    private Object putLocal(BTreePage p, Object key, Object value, List<BTreePage> oldPages) {
         int index = p.binarySearch(key);
         if (p.isLeaf()) {
             if (index < 0) {
@@ -300,7 +558,7 @@ public class BTreeMap<K, V> extends StorageMapBase<K, V> {
         } else {
             index++;
         }
-        BTreePage c = p.getChildPage(index).copy();
+        BTreePage c = copy(p.getChildPage(index), oldPages);
         if (c.needSplit()) {
             boolean isLeaf = c.isLeaf();
             // split on the way down
@@ -310,14 +568,14 @@ public class BTreeMap<K, V> extends StorageMapBase<K, V> {
             p.setChild(index, rightChildPage);
             p.insertNode(index, k, c);
             // now we are not sure where to add
-            Object result = put(p, key, value);
+            Object result = put(p, key, value, oldPages);
             if (isLeaf && isShardingMode) {
                 PageKey pk = new PageKey(k, false); // 移动右边的Page
                 moveLeafPageLazy(pk);
             }
             return result;
         }
-        Object result = put(c, key, value);
+        Object result = put(c, key, value, oldPages);
         p.setChild(index, c);
         return result;
     }
@@ -496,13 +754,27 @@ public class BTreeMap<K, V> extends StorageMapBase<K, V> {
      * @param newRoot the new root page
      */
     protected void newRoot(BTreePage newRoot) {
+        // 并发写模式下root只能通过CAS替换
+        if (concurrentWrite) {
+            throw DataUtils.newIllegalStateException(DataUtils.ERROR_INTERNAL,
+                    "The root of a concurrentWrite map can only be replaced by compare-and-set");
+        }
         if (root != newRoot) {
             root = newRoot;
         }
     }
 
     @Override
-    public synchronized V putIfAbsent(K key, V value) {
+    @SuppressWarnings("unchecked")
+    public V putIfAbsent(K key, V value) {
+        if (concurrentWrite) {
+            DataUtils.checkArgument(value != null, "The value may not be null");
+            return (V) putConcurrently(key, value, null);
+        }
+        return putIfAbsentSynchronized(key, value);
+    }
+
+    private synchronized V putIfAbsentSynchronized(K key, V value) {
         V old = get(key);
         if (old == null) {
             put(key, value);
@@ -514,6 +786,8 @@ public class BTreeMap<K, V> extends StorageMapBase<K, V> {
     @SuppressWarnings("unchecked")
     public V remove(K key) {
         beforeWrite();
+        if (concurrentWrite)
+            return (V) removeConcurrently(key);
         V result = get(key);
         if (result == null) {
             return null;
@@ -530,6 +804,109 @@ public class BTreeMap<K, V> extends StorageMapBase<K, V> {
         return result;
     }
 
+    /**
+     * Update the values of existing entries. Each page on the paths to the keys
+     * is copied only once, and the leaf pages are visited in key order.
+     * 
+     * @param keys the sorted keys
+     * @param updater the function that computes the new values
+     */
+    @Override
+    public void updateAll(List<K> keys, BiFunction<? super K, ? super V, ? extends V> updater) {
+        // 并发写、sharding模式以及重写了写操作的子类还是一个个key更新
+        if (concurrentWrite || isShardingMode || !isConcurrentWriteSupported()) {
+            super.updateAll(keys, updater);
+            return;
+        }
+        beforeWrite();
+        if (keys.isEmpty())
+            return;
+        synchronized (this) {
+            BTreePage p = root.copy();
+            updateAll(p, keys, 0, keys.size(), updater);
+            if (p.isNode() && p.isEmpty()) {
+                p.removePage();
+                p = BTreeLeafPage.createEmpty(this);
+            }
+            newRoot(p);
+        }
+    }
+
+    // keys中[from, to)这一段key都在p中，p已经复制过了
+    @SuppressWarnings("unchecked")
+    private void updateAll(BTreePage p, List<K> keys, int from, int to,
+            BiFunction<? super K, ? super V, ? extends V> updater) {
+        if (p.isLeaf()) {
+            for (int i = from; i < to; i++) {
+                K key = keys.get(i);
+                int index = p.binarySearch(key);
+                if (index < 0)
+                    continue;
+                V value = updater.apply(key, (V) p.getValue(index));
+                if (value == null)
+                    p.remove(index);
+                else
+                    p.setValue(index, value);
+            }
+            return;
+        }
+        // 先把key按子节点分段，然后从右往左处理，删除空的子节点时不会影响左边子节点的index
+        int[] childIndexes = new int[to - from];
+        int[] ends = new int[to - from];
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            int index = p.binarySearch(keys.get(i));
+            if (index < 0) {
+                index = -index - 1;
+            } else {
+                index++;
+            }
+            if (count > 0 && childIndexes[count - 1] == index) {
+                ends[count - 1] = i + 1;
+            } else {
+                childIndexes[count] = index;
+                ends[count] = i + 1;
+                count++;
+            }
+        }
+        for (int j = count - 1; j >= 0; j--) {
+            int index = childIndexes[j];
+            int start = j == 0 ? from : ends[j - 1];
+            BTreePage c = p.getChildPage(index).copy();
+            updateAll(c, keys, start, ends[j], updater);
+            if (c.isNotEmpty()) {
+                p.setChild(index, c);
+            } else if (p.getKeyCount() == 0) {
+                // 和remove一样，只剩一个子节点时由上层删除
+                p.setChild(index, c);
+                c.removePage();
+            } else {
+                p.remove(index); // 删除没有记录的子节点
+            }
+        }
+    }
+
+    private Object removeConcurrently(Object key) {
+        Object result = writeLeafConcurrently(key, null, ANY_VALUE);
+        if (result != COPY_PATH)
+            return result;
+        ArrayList<BTreePage> oldPages = new ArrayList<>();
+        while (true) {
+            BTreePage oldRoot = root;
+            if (binarySearch(oldRoot, key) == null) {
+                return null;
+            }
+            BTreePage p = copy(oldRoot, oldPages);
+            result = remove(p, key, oldPages);
+            if (p.isNode() && p.isEmpty()) {
+                oldPages.add(p);
+                p = BTreeLeafPage.createEmpty(this);
+            }
+            if (updateRoot(oldRoot, p, oldPages))
+                return result;
+        }
+    }
+
     /**
      * Remove a key-value pair.
      * 
@@ -538,6 +915,10 @@ public class BTreeMap<K, V> extends StorageMapBase<K, V> {
      * @return the old value, or null if the key did not exist
      */
     protected Object remove(BTreePage p, Object key) {
+        return remove(p, key, null);
+    }
+
+    private Object remove(BTreePage p, Object key, List<BTreePage> oldPages) {
         int index = p.binarySearch(key);
         Object result = null;
         if (p.isLeaf()) {
@@ -554,8 +935,8 @@ public class BTreeMap<K, V> extends StorageMapBase<K, V> {
             index++;
         }
         BTreePage cOld = p.getChildPage(index);
-        BTreePage c = cOld.copy();
-        result = remove(c, key);
+        BTreePage c = copy(cOld, oldPages);
+        result = remove(c, key, oldPages);
         if (result == null || c.isNotEmpty()) {
             // no change, or there are more nodes
             p.setChild(index, c);
@@ -564,7 +945,11 @@ public class BTreeMap<K, V> extends StorageMapBase<K, V> {
             // this child was deleted
             if (p.getKeyCount() == 0) { // 如果p的子节点只剩一个叶子节点时，keyCount为0
                 p.setChild(index, c);
-                c.removePage(); // 直接删除最后一个子节点，父节点在remove(Object)那里删除
+                // 直接删除最后一个子节点，父节点在remove(Object)那里删除
+                if (oldPages == null)
+                    c.removePage();
+                else
+                    oldPages.add(c);
             } else {
                 p.remove(index); // 删除没有记录的子节点
             }
@@ -590,7 +975,16 @@ public class BTreeMap<K, V> extends StorageMapBase<K, V> {
     }
 
     @Override
-    public synchronized boolean replace(K key, V oldValue, V newValue) {
+    public boolean replace(K key, V oldValue, V newValue) {
+        if (concurrentWrite) {
+            DataUtils.checkArgument(newValue != null, "The value may not be null");
+            // 快照中的旧值与oldValue相等时才会写入
+            return areValuesEqual(putConcurrently(key, newValue, oldValue), oldValue);
+        }
+        return replaceSynchronized(key, oldValue, newValue);
+    }
+
+    private synchronized boolean replaceSynchronized(K key, V oldValue, V newValue) {
         V old = get(key);
         if (areValuesEqual(old, oldValue)) {
             put(key, newValue);
@@ -743,7 +1137,20 @@ public class BTreeMap<K, V> extends StorageMapBase<K, V> {
     }
 
     @Override
-    public synchronized void clear() {
+    public void clear() {
+        if (concurrentWrite) {
+            beforeWrite();
+            BTreePage oldRoot;
+            do {
+                oldRoot = root;
+            } while (!rootUpdater.compareAndSet(this, oldRoot, BTreeLeafPage.createEmpty(this)));
+            oldRoot.removeAllRecursive();
+            return;
+        }
+        clearSynchronized();
+    }
+
+    private synchronized void clearSynchronized() {
         beforeWrite();
         root.removeAllRecursive();
         newRoot(BTreeLeafPage.createEmpty(this));
@@ -924,7 +1331,7 @@ public class BTreeMap<K, V> extends StorageMapBase<K, V> {
     }
 
     private BTreePage readStreamPage(ByteBuffer buff) {
-        BTreePage p = new BTreeLeafPage(this);
+        BTreePage p = BTreeLeafPage.create(this);
         int chunkId = 0;
         int offset = buff.position();
         p.read(buff, chunkId, offset, buff.limit(), true);
@@ -936,6 +1343,7 @@ public class BTreeMap<K, V> extends StorageMapBase<K, V> {
     }
 
     private synchronized void addLeafPage(PageKey pageKey, ByteBuffer page, boolean addPage, boolean readStreamPage) {
+        checkNotConcurrentWrite("addLeafPage");
         if (pageKey == null) {
             root = readLeafPage(page, readStreamPage);
             return;
@@ -983,6 +1391,7 @@ public class BTreeMap<K, V> extends StorageMapBase<K, V> {
 
     @Override
     public synchronized void removeLeafPage(PageKey pageKey) {
+        checkNotConcurrentWrite("removeLeafPage");
         beforeWrite();
         BTreePage p;
         if (pageKey == null) { // 说明删除的是root leaf page
@@ -1212,9 +1621,11 @@ public class BTreeMap<K, V> extends StorageMapBase<K, V> {
 
     @Override
     public synchronized void setRootPage(ByteBuffer buff) {
-        root = BTreePage.readReplicatedPage(this, buff);
-        if (root.isNode() && !getName().endsWith("_0")) { // 只异步读非SYS表
-            root.readRemotePages();
+        BTreePage p = BTreePage.readReplicatedPage(this, buff);
+        // 整个root都被替换，正在进行的并发写在CAS失败后会基于新的root重试
+        rootUpdater.set(this, p);
+        if (p.isNode() && !getName().endsWith("_0")) { // 只异步读非SYS表
+            p.readRemotePages();
         }
     }
 
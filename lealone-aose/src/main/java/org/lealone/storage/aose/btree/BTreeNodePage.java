@@ -284,14 +284,15 @@ public class BTreeNodePage extends BTreeLocalPage {
         int pageLength = buff.position() - start;
         buff.putInt(start, pageLength);
         int chunkId = chunk.id;
+        int offset = chunk.flushedLength + start; // 前面的page可能已经写到chunk文件中了
 
-        writeCheckValue(buff, chunkId, start, pageLength, checkPos);
+        writeCheckValue(buff, chunkId, offset, pageLength, checkPos);
 
         if (replicatePage) {
             return typePos + 1;
         }
 
-        updateChunkAndCachePage(chunk, start, pageLength, type);
+        updateChunkAndCachePage(chunk, offset, pageLength, type);
 
         // cache again - this will make sure nodes stays in the cache
         // for a longer time
@@ -319,7 +320,8 @@ public class BTreeNodePage extends BTreeLocalPage {
             // already stored before
             return;
         }
-        int patch = write(chunk, buff, false);
+        // 先写子page，这样写当前page时就已经知道子page的位置了，不需要再回填，
+        // 已经写好的page可以随时写到chunk文件中
         int len = children.length;
         for (int i = 0; i < len; i++) {
             BTreePage p = children[i].page;
@@ -329,10 +331,8 @@ public class BTreeNodePage extends BTreeLocalPage {
             }
         }
         setChildrenPageKeys();
-        int old = buff.position();
-        buff.position(patch);
-        writeChildrenPositions(buff);
-        buff.position(old);
+        write(chunk, buff, false);
+        map.getBTreeStorage().flushChunkSegmentIfNeeded(chunk, buff);
     }
 
     @Override
@@ -369,7 +369,8 @@ public class BTreeNodePage extends BTreeLocalPage {
         return copy(true);
     }
 
-    private BTreeNodePage copy(boolean removePage) {
+    @Override
+    BTreeNodePage copy(boolean removePage) {
         BTreeNodePage newPage = create(map, keys, children, totalCount, getMemory());
         newPage.cachedCompare = cachedCompare;
         if (removePage) {
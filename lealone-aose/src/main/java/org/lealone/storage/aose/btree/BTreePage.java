@@ -318,6 +318,16 @@ public class BTreePage {
         throw ie();
     }
 
+    /**
+     * Create a copy of this page.
+     *
+     * @param removePage whether the old page should be marked as removed
+     * @return a page
+     */
+    BTreePage copy(boolean removePage) {
+        throw ie();
+    }
+
     /**
      * Remove the page.
      */
@@ -349,6 +359,19 @@ public class BTreePage {
     static BTreePage read(FileStorage fileStorage, long pos, BTreeMap<?, ?> map, long filePos, long maxPos) {
         int maxLength = PageUtils.getPageMaxLength(pos);
         ByteBuffer buff = readPageBuff(fileStorage, maxLength, filePos, maxPos);
+        return read(buff, pos, map);
+    }
+
+    /**
+     * Read a page from a buffer that starts at the page.
+     * 
+     * @param buff the buffer
+     * @param pos the position
+     * @param map the map
+     * @return the page
+     */
+    static BTreePage read(ByteBuffer buff, long pos, BTreeMap<?, ?> map) {
+        int maxLength = PageUtils.getPageMaxLength(pos);
         int type = PageUtils.getPageType(pos);
         BTreePage p = create(map, type);
         p.pos = pos;
@@ -377,7 +400,7 @@ public class BTreePage {
     private static BTreePage create(BTreeMap<?, ?> map, int type) {
         BTreePage p;
         if (type == PageUtils.PAGE_TYPE_LEAF)
-            p = new BTreeLeafPage(map);
+            p = BTreeLeafPage.create(map);
         else if (type == PageUtils.PAGE_TYPE_NODE)
             p = new BTreeNodePage(map);
         else if (type == PageUtils.PAGE_TYPE_REMOTE)
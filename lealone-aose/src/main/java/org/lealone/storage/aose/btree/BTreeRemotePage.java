@@ -72,14 +72,15 @@ public class BTreeRemotePage extends BTreePage {
         int pageLength = buff.position() - start;
         buff.putInt(start, pageLength);
         int chunkId = chunk.id;
+        int offset = chunk.flushedLength + start; // 前面的page可能已经写到chunk文件中了
 
-        writeCheckValue(buff, chunkId, start, pageLength, checkPos);
+        writeCheckValue(buff, chunkId, offset, pageLength, checkPos);
 
         if (replicatePage) {
             return typePos + 1;
         }
 
-        updateChunkAndCachePage(chunk, start, pageLength, type);
+        updateChunkAndCachePage(chunk, offset, pageLength, type);
         return typePos + 1;
     }
 
@@ -90,6 +91,7 @@ public class BTreeRemotePage extends BTreePage {
             return;
         }
         write(chunk, buff, false);
+        map.getBTreeStorage().flushChunkSegmentIfNeeded(chunk, buff);
     }
 
     @Override
@@ -110,7 +112,8 @@ public class BTreeRemotePage extends BTreePage {
         return copy(true);
     }
 
-    private BTreeRemotePage copy(boolean removePage) {
+    @Override
+    BTreeRemotePage copy(boolean removePage) {
         BTreeRemotePage newPage = new BTreeRemotePage(map);
         if (removePage) {
             // mark the old as deleted
@@ -18,8 +18,9 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeSet;
-import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.lealone.common.compress.CompressDeflate;
 import org.lealone.common.compress.CompressLZF;
@@ -29,11 +30,13 @@ import org.lealone.common.util.BitField;
 import org.lealone.common.util.DataUtils;
 import org.lealone.common.util.MathUtils;
 import org.lealone.db.DataBuffer;
-import org.lealone.sql.SQLEngineManager;
-import org.lealone.sql.SQLStatementExecutor;
+import org.lealone.db.async.AsyncHandler;
+import org.lealone.db.async.AsyncResult;
+import org.lealone.db.async.CommandSuspendedException;
 import org.lealone.storage.aose.AOStorage;
 import org.lealone.storage.aose.AOStorageService;
 import org.lealone.storage.cache.CacheLongKeyLIRS;
+import org.lealone.storage.cache.CacheLongKeyOffHeap;
 import org.lealone.storage.fs.FileStorage;
 import org.lealone.storage.fs.FileUtils;
 
@@ -70,6 +73,9 @@ public class BTreeStorage {
     private final RandomAccessFile chunkMetaData;
 
     private final TreeSet<Long> removedPages = new TreeSet<>();
+    private final ConcurrentHashMap<Long, PageReadTask> pendingPageReads = new ConcurrentHashMap<>();
+    private final AtomicLong pageReadCount = new AtomicLong();
+    private final AtomicLong prefetchedPageCount = new AtomicLong();
 
     /**
     * The newest chunk. If nothing was stored yet, this field is not set.
@@ -78,6 +84,11 @@ public class BTreeStorage {
 
     private final int pageSplitSize;
     private final int minFillRate;
+    private final long maxCompactBytes;
+    private final long compactRate;
+    private final int chunkSegmentSize;
+    private volatile long maxPreparedPageBytes;
+    private final int readAheadPages;
     private final UncaughtExceptionHandler backgroundExceptionHandler;
 
     /**
@@ -87,13 +98,23 @@ public class BTreeStorage {
      */
     private final CacheLongKeyLIRS<BTreePage> cache;
 
+    /**
+     * The second level cache of serialized pages, kept outside of the java heap.
+     * A page that is not in the page cache is read from here before reading the file.
+     * The cache is shared by all maps, each map uses its own key space. Disabled by default.
+     */
+    private final CacheLongKeyOffHeap offHeapCache;
+    private final int offHeapCacheSpace;
+    private final AtomicLong offHeapCacheHits = new AtomicLong();
+    private final AtomicLong offHeapCacheMisses = new AtomicLong();
+
     /**
      * The compression level for new pages (0 for disabled, 1 for fast, 2 for high).
      * Even if disabled, the storage may contain (old) compressed pages.
      */
     private final int compressionLevel;
-    private Compressor compressorFast;
-    private Compressor compressorHigh;
+    private static final ThreadLocal<Compressor> compressorFast = ThreadLocal.withInitial(CompressLZF::new);
+    private static final ThreadLocal<Compressor> compressorHigh = ThreadLocal.withInitial(CompressDeflate::new);
 
     private boolean closed;
     private IllegalStateException panicException;
@@ -101,6 +122,16 @@ public class BTreeStorage {
 
     private volatile boolean hasUnsavedChanges;
 
+    // 后台compact的状态，同一时刻只有一个compact任务在运行，没做完的部分在下一次save之后接着做
+    private final AtomicBoolean compacting = new AtomicBoolean();
+    private List<BTreeChunk> compactChunks;
+    private int compactChunkIndex;
+    private int compactPageIndex;
+    // 下面三个字段由compact线程使用，每一轮开始时在scheduleCompact中重置
+    private TreeSet<Long> compactRemovedPages;
+    private long compactBytes;
+    private long compactStartTime;
+
     /**
      * Create and open the storage.
      * 
@@ -117,6 +148,22 @@ public class BTreeStorage {
         value = config.get("minFillRate");
         minFillRate = value != null ? (Integer) value : 30;
 
+        // 每一轮compact最多重写的字节数(MB)
+        value = config.get("maxCompactBytes");
+        maxCompactBytes = (value != null ? (Integer) value : 64) * 1024L * 1024L;
+
+        // compact时每秒最多重写的字节数(MB)，0表示不限速
+        value = config.get("compactRate");
+        compactRate = (value != null ? (Integer) value : 16) * 1024L * 1024L;
+
+        // save时每写满chunkSegmentSize个字节就写一次chunk文件，默认1M
+        value = config.get("chunkSegmentSize");
+        chunkSegmentSize = value != null ? (Integer) value : 1024 * 1024;
+
+        // 顺序扫描时预读的leaf page个数，0表示不预读
+        value = config.get("readAheadPages");
+        readAheadPages = value != null ? (Integer) value : 8;
+
         backgroundExceptionHandler = (UncaughtExceptionHandler) config.get("backgroundExceptionHandler");
 
         value = config.get("cacheSize");
@@ -129,6 +176,17 @@ public class BTreeStorage {
             cache = null;
         }
 
+        // 存储引擎配置了off_heap_cache_size时默认使用所有map共用的offHeapCache，
+        // map自己的offHeapCacheSize参数优先，0表示这个map不用offHeapCache
+        value = config.get("offHeapCacheSize");
+        if (value == null) {
+            offHeapCache = AOStorageService.getOffHeapCache();
+        } else {
+            mb = (Integer) value;
+            offHeapCache = mb > 0 ? AOStorageService.getOffHeapCache(mb * 1024L * 1024L) : null;
+        }
+        offHeapCacheSpace = offHeapCache != null ? offHeapCache.newSpace() : 0;
+
         value = config.get("compress");
         compressionLevel = value == null ? 0 : (Integer) value;
 
@@ -334,6 +392,21 @@ public class BTreeStorage {
         }
     }
 
+    /**
+     * Update the memory used by a page that is already in the cache,
+     * e.g. after its values were deserialized.
+     * 
+     * @param pos the page position
+     * @param page the page
+     * @param memory the memory used now
+     */
+    void updateCachedPageMemory(long pos, BTreePage page, int memory) {
+        // 只有缓存里还是这个page时才需要重新put，让cache更新usedMemory，不在缓存中的page不管
+        if (cache != null && cache.peek(pos) == page && cache.getMemory(pos) != memory) {
+            cache.put(pos, page, memory);
+        }
+    }
+
     /**
      * Read a page.
      * 
@@ -350,49 +423,231 @@ public class BTreeStorage {
         } else if (ref != null && pos < 0) {
             return ref.readRemotePage(map);
         }
-        return readLocalPageAsync(pos);
-    }
-
-    private BTreePage readLocalPageAsync(final long pos) {
-        final SQLStatementExecutor sqlStatementExecutor = SQLEngineManager.getInstance().getSQLStatementExecutor();
-        if (sqlStatementExecutor == null)
-            return readLocalPageSync(pos);
-        Callable<BTreePage> task = null;
-        boolean taskInQueue = false;
-        while (true) {
-            BTreePage p = getPageFromCache(pos);
-            if (p != null)
-                return p;
-
-            if (task == null) {
-                task = new Callable<BTreePage>() {
-                    @Override
-                    public BTreePage call() throws Exception {
-                        BTreePage p = readLocalPageSync(pos);
-                        if (sqlStatementExecutor != null)
-                            sqlStatementExecutor.wakeUp();
-                        return p;
-                    }
-                };
+        return readLocalPageSync(pos);
+    }
+
+    /**
+     * Read a local page without blocking the caller. If the page is in the cache
+     * the handler is called immediately in the current thread, otherwise it is
+     * called by a page read thread after the page was read.
+     * 
+     * @param pos the page position
+     * @param handler the handler that receives the page or the cause of the failure
+     */
+    void readPageAsync(long pos, AsyncHandler<AsyncResult<BTreePage>> handler) {
+        if (pos <= 0) {
+            throw DataUtils.newIllegalStateException(DataUtils.ERROR_FILE_CORRUPT, "Position {0}", pos);
+        }
+        BTreePage p = getPageFromCache(pos);
+        if (p != null) {
+            AsyncResult<BTreePage> ar = new AsyncResult<>();
+            ar.setResult(p);
+            handler.handle(ar);
+            return;
+        }
+        PageReadTask task = new PageReadTask(pos);
+        PageReadTask old = pendingPageReads.putIfAbsent(pos, task);
+        if (old != null)
+            task = old;
+        if (!task.addHandler(handler)) {
+            // 刚好读完了
+            handler.handle(task.result);
+        } else if (old == null) {
+            AOStorageService.submitPageReadTask(task);
+        }
+    }
+
+    // 同一个page同时只读一次文件，同步读、异步读和预读都先在pendingPageReads中登记
+    private class PageReadTask implements Runnable {
+
+        private final long pos;
+        private final AtomicBoolean started = new AtomicBoolean();
+        private ArrayList<AsyncHandler<AsyncResult<BTreePage>>> handlers = new ArrayList<>(1);
+        private AsyncResult<BTreePage> result;
+
+        PageReadTask(long pos) {
+            this.pos = pos;
+        }
+
+        synchronized boolean addHandler(AsyncHandler<AsyncResult<BTreePage>> handler) {
+            if (result != null)
+                return false;
+            handlers.add(handler);
+            return true;
+        }
+
+        // 只有一个线程能读
+        boolean tryStart() {
+            return started.compareAndSet(false, true);
+        }
+
+        @Override
+        public void run() {
+            if (tryStart())
+                read();
+        }
+
+        BTreePage read() {
+            AsyncResult<BTreePage> ar = new AsyncResult<>();
+            try {
+                ar.setResult(readPageFromFile(pos));
+            } catch (Throwable t) {
+                ar.setCause(t);
+            }
+            complete(ar);
+            return getPage(ar);
+        }
+
+        void complete(AsyncResult<BTreePage> ar) {
+            ArrayList<AsyncHandler<AsyncResult<BTreePage>>> handlers;
+            synchronized (this) {
+                result = ar;
+                handlers = this.handlers;
+                this.handlers = null;
+                notifyAll();
+            }
+            pendingPageReads.remove(pos, this);
+            for (AsyncHandler<AsyncResult<BTreePage>> handler : handlers) {
+                handler.handle(ar);
             }
+        }
 
-            if (sqlStatementExecutor != null && (Thread.currentThread() == sqlStatementExecutor)) {
-                if (!taskInQueue) {
-                    AOStorageService.submitTask(task);
-                    taskInQueue = true;
-                }
-                sqlStatementExecutor.executeNextStatement();
-                continue;
-            } else {
+        synchronized BTreePage await() {
+            while (result == null) {
                 try {
-                    return task.call();
-                } catch (Exception e) {
+                    wait();
+                } catch (InterruptedException e) {
                     throw DbException.convert(e);
                 }
             }
+            return getPage(result);
+        }
+
+        // 读page的线程抛出的异常原样抛给等待的线程
+        private BTreePage getPage(AsyncResult<BTreePage> ar) {
+            Throwable cause = ar.getCause();
+            if (cause == null)
+                return ar.getResult();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw DbException.convert(cause);
+        }
+    }
+
+    /**
+     * Read the given pages into the cache in the background. Pages that are
+     * adjacent in the same chunk are read with one positional read.
+     * 
+     * @param positions the page positions
+     */
+    void prefetchPages(List<Long> positions) {
+        // 只是预读，队列满了就不读了，不能阻塞执行命令的线程
+        if (AOStorageService.isPageReadQueueFull())
+            return;
+        ArrayList<PageReadTask> list = new ArrayList<>(positions.size());
+        for (long pos : positions) {
+            // 在offHeapCache中的page不需要再读文件，已经在读的page也不用再读
+            if (pos > 0 && getPageFromCache(pos) == null
+                    && (offHeapCache == null || !offHeapCache.containsKey(offHeapCacheSpace, pos))) {
+                PageReadTask task = new PageReadTask(pos);
+                if (pendingPageReads.putIfAbsent(pos, task) == null)
+                    list.add(task);
+            }
+        }
+        if (list.isEmpty())
+            return;
+        // pos的高位是chunkId，接着是offset，所以排序后同一个chunk中的page按offset排在一起
+        Collections.sort(list, (t1, t2) -> Long.compare(t1.pos, t2.pos));
+        int size = list.size();
+        int i = 0;
+        while (i < size) {
+            long first = list.get(i).pos;
+            int j = i + 1;
+            if (PageUtils.getPageMaxLength(first) != PageUtils.PAGE_LARGE) {
+                for (; j < size; j++) {
+                    long prev = list.get(j - 1).pos;
+                    long next = list.get(j).pos;
+                    // 最大长度是page长度的上界，下一个page在这个范围内开始就说明它们是相邻的
+                    if (PageUtils.getPageChunkId(next) != PageUtils.getPageChunkId(first)
+                            || PageUtils.getPageMaxLength(next) == PageUtils.PAGE_LARGE
+                            || PageUtils.getPageOffset(next) - PageUtils.getPageOffset(prev) > PageUtils
+                                    .getPageMaxLength(prev))
+                        break;
+                }
+            }
+            List<PageReadTask> run = new ArrayList<>(list.subList(i, j));
+            AOStorageService.submitPageReadTask(() -> readPages(run));
+            i = j;
+        }
+    }
+
+    private void readPages(List<PageReadTask> tasks) {
+        // 前台线程可能已经自己读了
+        ArrayList<PageReadTask> started = new ArrayList<>(tasks.size());
+        for (PageReadTask task : tasks) {
+            if (task.tryStart())
+                started.add(task);
+        }
+        if (started.isEmpty())
+            return;
+        if (closed || started.size() == 1) {
+            for (PageReadTask task : started)
+                readPrefetchedPage(task);
+            return;
+        }
+        long first = started.get(0).pos;
+        long last = started.get(started.size() - 1).pos;
+        ByteBuffer buff;
+        long start, end;
+        try {
+            BTreeChunk c = getChunk(first);
+            start = getFilePos(PageUtils.getPageOffset(first));
+            end = getFilePos(PageUtils.getPageOffset(last)) + PageUtils.getPageMaxLength(last);
+            end = Math.min(end, (long) c.blockCount * BLOCK_SIZE);
+            buff = c.fileStorage.readFully(start, (int) (end - start));
+        } catch (Throwable t) {
+            // 只是预读，一个一个地读，真正出错时由等待的线程报告
+            for (PageReadTask task : started)
+                readPrefetchedPage(task);
+            return;
+        }
+        pageReadCount.addAndGet(started.size());
+        prefetchedPageCount.addAndGet(started.size());
+        for (PageReadTask task : started) {
+            long pos = task.pos;
+            AsyncResult<BTreePage> ar = new AsyncResult<>();
+            try {
+                int offset = (int) (getFilePos(PageUtils.getPageOffset(pos)) - start);
+                ByteBuffer pageBuff = buff.duplicate();
+                pageBuff.position(offset);
+                pageBuff.limit((int) Math.min(offset + PageUtils.getPageMaxLength(pos), end - start));
+                pageBuff = pageBuff.slice();
+                cachePageBuff(pos, pageBuff);
+                BTreePage p = BTreePage.read(pageBuff, pos, map);
+                cachePage(pos, p, p.getMemory());
+                ar.setResult(p);
+            } catch (Throwable t) {
+                ar.setCause(t);
+            }
+            task.complete(ar);
         }
     }
 
+    private void readPrefetchedPage(PageReadTask task) {
+        try {
+            task.read();
+            prefetchedPageCount.incrementAndGet();
+        } catch (Throwable t) {
+            // 只是预读，等待这个page的线程会收到错误
+        }
+    }
+
+    int getReadAheadPages() {
+        return readAheadPages;
+    }
+
     private BTreePage getPageFromCache(long pos) {
         return cache == null ? null : cache.get(pos);
     }
@@ -401,14 +656,79 @@ public class BTreeStorage {
         BTreePage p = getPageFromCache(pos);
         if (p != null)
             return p;
-        BTreeChunk c = getChunk(pos);
-        long filePos = getFilePos(PageUtils.getPageOffset(pos));
-        long maxPos = c.blockCount * BLOCK_SIZE;
-        p = BTreePage.read(c.fileStorage, pos, map, filePos, maxPos);
+        // 可以挂起的命令不在当前线程中读文件，而是让出执行命令的线程，
+        // 异步读完page后命令会从头重新执行，那时page已经在缓存中了
+        if (cache != null && CommandSuspendedException.isSuspendable() && !AOStorageService.isPageReadQueueFull()) {
+            CommandSuspendedException e = new CommandSuspendedException();
+            readPageAsync(pos, ar -> e.resume());
+            throw e;
+        }
+        PageReadTask task = new PageReadTask(pos);
+        PageReadTask old = pendingPageReads.putIfAbsent(pos, task);
+        if (old != null)
+            task = old;
+        // 预读或异步读的任务还没开始时直接在当前线程中读，否则等它读完
+        if (task.tryStart())
+            return task.read();
+        else
+            return task.await();
+    }
+
+    private BTreePage readPageFromFile(long pos) {
+        BTreePage p = getPageFromCache(pos);
+        if (p != null)
+            return p;
+        ByteBuffer buff = null;
+        if (offHeapCache != null) {
+            buff = offHeapCache.get(offHeapCacheSpace, pos);
+            if (buff == null)
+                offHeapCacheMisses.incrementAndGet();
+            else
+                offHeapCacheHits.incrementAndGet();
+        }
+        if (buff == null) {
+            BTreeChunk c = getChunk(pos);
+            long filePos = getFilePos(PageUtils.getPageOffset(pos));
+            long maxPos = c.blockCount * BLOCK_SIZE;
+            buff = BTreePage.readPageBuff(c.fileStorage, PageUtils.getPageMaxLength(pos), filePos, maxPos);
+            pageReadCount.incrementAndGet();
+            cachePageBuff(pos, buff);
+        }
+        p = BTreePage.read(buff, pos, map);
         cachePage(pos, p, p.getMemory());
         return p;
     }
 
+    /**
+     * Get the number of pages read from the chunk files, including the pages read ahead.
+     * 
+     * @return the number of pages read
+     */
+    public long getPageReadCount() {
+        return pageReadCount.get();
+    }
+
+    /**
+     * Get the number of pages read ahead in the background.
+     * 
+     * @return the number of pages read ahead
+     */
+    public long getPrefetchedPageCount() {
+        return prefetchedPageCount.get();
+    }
+
+    // 只缓存page本身的字节，从文件读出的buff可能比page长
+    private void cachePageBuff(long pos, ByteBuffer buff) {
+        if (offHeapCache != null) {
+            ByteBuffer pageBuff = buff.duplicate();
+            int pageLength = pageBuff.getInt(pageBuff.position());
+            if (pageLength > 0 && pageLength <= pageBuff.remaining()) {
+                pageBuff.limit(pageBuff.position() + pageLength);
+                offHeapCache.put(offHeapCacheSpace, pos, pageBuff);
+            }
+        }
+    }
+
     /**
      * Remove a page.
      * 
@@ -436,18 +756,13 @@ public class BTreeStorage {
         }
     }
 
+    // Compressor不是线程安全的，并行save和并发读page时每个线程使用自己的实例
     Compressor getCompressorFast() {
-        if (compressorFast == null) {
-            compressorFast = new CompressLZF();
-        }
-        return compressorFast;
+        return compressorFast.get();
     }
 
     Compressor getCompressorHigh() {
-        if (compressorHigh == null) {
-            compressorHigh = new CompressDeflate();
-        }
-        return compressorHigh;
+        return compressorHigh.get();
     }
 
     int getCompressionLevel() {
@@ -494,6 +809,35 @@ public class BTreeStorage {
         }
     }
 
+    /**
+     * Get the amount of memory used by the off-heap page cache, in bytes. The cache is
+     * shared by all maps, so this is the memory used by all of them.
+     * 
+     * @return the amount of memory used
+     */
+    public long getOffHeapCacheSizeUsed() {
+        return offHeapCache == null ? 0 : offHeapCache.getUsedMemory();
+    }
+
+    /**
+     * Get the number of pages found in the off-heap page cache after a page cache miss.
+     * 
+     * @return the cache hits
+     */
+    public long getOffHeapCacheHits() {
+        return offHeapCacheHits.get();
+    }
+
+    /**
+     * Get the number of pages that had to be read from the file because they were
+     * neither in the page cache nor in the off-heap page cache.
+     * 
+     * @return the cache misses
+     */
+    public long getOffHeapCacheMisses() {
+        return offHeapCacheMisses.get();
+    }
+
     /**
      * Remove this storage.
      */
@@ -551,6 +895,8 @@ public class BTreeStorage {
             // because of out of memory
             if (cache != null)
                 cache.clear();
+            if (offHeapCache != null)
+                offHeapCache.removeSpace(offHeapCacheSpace);
 
             try {
                 chunkMetaData.close();
@@ -589,17 +935,18 @@ public class BTreeStorage {
         }
 
         try {
-            executeCompact(executeSave(false));
+            executeSave(false);
         } catch (IllegalStateException e) {
             throw panic(e);
         }
+        scheduleCompact();
     }
 
     synchronized void forceSave() {
         executeSave(true);
     }
 
-    private TreeSet<Long> executeSave(boolean force) {
+    private void executeSave(boolean force) {
         DataBuffer buff = getDataBuffer();
         int id = chunkIds.nextClearBit(1);
         chunkIds.set(id);
@@ -607,6 +954,7 @@ public class BTreeStorage {
         chunks.put(c.id, c);
         c.pagePositions = new ArrayList<>();
         c.pageLengths = new ArrayList<>();
+        c.fileStorage = getFileStorage(c.id);
 
         BTreePage p;
         TreeSet<Long> removedPages;
@@ -615,32 +963,43 @@ public class BTreeStorage {
             this.removedPages.clear();
             p = map.root;
         }
+        // leaf page在写线程前面一个窗口内并行序列化和压缩，写线程按顺序分配位置和写chunk，
+        // 每写一个page就释放它序列化后的字节，窗口大小跟chunk的分段大小一样
+        if (p.isNode()) {
+            c.leafPagePreparer = new LeafPagePreparer(p, chunkSegmentSize);
+        }
         // 如果不写，rootPagePos会是0，重新打开时会报错
         // if (p.getTotalCount() > 0 || force) {
         p.writeUnsavedRecursive(c, buff);
         c.rootPagePos = p.getPos();
         p.writeEnd();
         // }
+        if (c.leafPagePreparer != null) {
+            maxPreparedPageBytes = c.leafPagePreparer.getMaxPreparedBytes();
+            c.leafPagePreparer = null;
+        }
 
-        c.pagePositionsOffset = buff.position();
-        for (long pos : c.pagePositions)
+        c.pagePositionsOffset = c.flushedLength + buff.position();
+        for (long pos : c.pagePositions) {
             buff.putLong(pos);
-        c.pageLengthsOffset = buff.position();
-        for (int pos : c.pageLengths)
+            flushChunkSegmentIfNeeded(c, buff);
+        }
+        c.pageLengthsOffset = c.flushedLength + buff.position();
+        for (int pos : c.pageLengths) {
             buff.putInt(pos);
+            flushChunkSegmentIfNeeded(c, buff);
+        }
 
-        int chunkBodyLength = buff.position();
+        int chunkBodyLength = c.flushedLength + buff.position();
         chunkBodyLength = MathUtils.roundUpInt(chunkBodyLength, BLOCK_SIZE);
-        buff.limit(chunkBodyLength);
+        buff.limit(chunkBodyLength - c.flushedLength);
         buff.position(0);
+        // chunk body的剩余部分
+        write(c.fileStorage, getFilePos(c.flushedLength), buff.getBuffer());
 
+        // chunk header最后写，此时pagePositions和pageLengths的位置都已经确定了
         c.blockCount = chunkBodyLength / BLOCK_SIZE + CHUNK_HEADER_BLOCKS; // include chunk header(2 blocks).
-        c.fileStorage = getFileStorage(c.id);
-
-        // chunk header
         writeChunkHeader(c);
-        // chunk body
-        write(c.fileStorage, CHUNK_HEADER_SIZE, buff.getBuffer());
         c.fileStorage.sync();
 
         removedPages.addAll(readRemovedPages());
@@ -648,7 +1007,24 @@ public class BTreeStorage {
 
         releaseDataBuffer(buff);
         lastChunk = c;
-        return removedPages;
+    }
+
+    /**
+     * Write the pages in the buffer to the chunk file if the buffer exceeds the segment size,
+     * so that a save never needs to hold the whole chunk in memory.
+     * 
+     * @param chunk the chunk being saved
+     * @param buff the write buffer
+     */
+    void flushChunkSegmentIfNeeded(BTreeChunk chunk, DataBuffer buff) {
+        int length = buff.position();
+        if (length < chunkSegmentSize)
+            return;
+        buff.limit(length);
+        buff.position(0);
+        write(chunk.fileStorage, getFilePos(chunk.flushedLength), buff.getBuffer());
+        chunk.flushedLength += length;
+        buff.clear();
     }
 
     /**
@@ -681,31 +1057,99 @@ public class BTreeStorage {
     }
 
     // //////////////////////////////// Compact BEGIN ///////////////////////////////////
+    private void scheduleCompact() {
+        if (compacting.compareAndSet(false, true)) {
+            compactBytes = 0;
+            compactStartTime = System.currentTimeMillis();
+            AOStorageService.scheduleCompactTask(this::compact, 0);
+        }
+    }
+
+    /**
+     * Get the peak number of serialized leaf page bytes that were held in memory
+     * while waiting to be written during the last save.
+     * 
+     * @return the number of bytes
+     */
+    public long getMaxPreparedPageBytes() {
+        return maxPreparedPageBytes;
+    }
+
+    /**
+     * Check whether a background compaction is running or waiting to continue.
+     * 
+     * @return true if compacting
+     */
+    public boolean isCompacting() {
+        return compacting.get();
+    }
+
+    // 每次只做一段，超过限速时把剩下的部分延迟提交，compact线程不会因为限速而被占住
+    private void compact() {
+        long delay = -1;
+        try {
+            if (compactRemovedPages == null)
+                compactRemovedPages = executeCompact();
+            if (compactRemovedPages != null) {
+                delay = rewrite(compactRemovedPages);
+                // 这一轮重写完了，马上保存重写过的page并删除不再有存活page的chunk，
+                // 空闲的map不会被checkpoint保存，不能等到它下一次有写操作
+                if (delay < 0 && compactBytes > 0 && !closed)
+                    saveRewrittenPages();
+            }
+        } catch (Exception e) {
+            if (!closed && backgroundExceptionHandler != null) {
+                backgroundExceptionHandler.uncaughtException(null, e);
+            }
+        }
+        if (delay >= 0 && !closed) {
+            AOStorageService.scheduleCompactTask(this::compact, delay);
+        } else {
+            compactRemovedPages = null;
+            compacting.set(false);
+        }
+    }
+
+    private void saveRewrittenPages() {
+        save();
+        synchronized (this) {
+            if (!closed)
+                removeUnusedChunks(readRemovedPages());
+        }
+    }
+
     /**
      * Try to increase the fill rate by re-writing partially full chunks. 
      * Chunks with a low number of live items are re-written.
      * <p>
-     * If the current fill rate is higher than the minimum fill rate, nothing is done.
+     * This runs in the background after a save. At most maxCompactBytes of live pages
+     * are re-written per run, throttled to compactRate, and saved at the end of the run;
+     * the remaining pages are re-written after the next save.
+     * 
+     * @return the removed pages if there are pages to re-write, or null
      */
-    private void executeCompact(TreeSet<Long> removedPages) {
-        if (removedPages.isEmpty())
-            return;
+    private TreeSet<Long> executeCompact() {
+        TreeSet<Long> removedPages;
+        synchronized (this) {
+            if (closed)
+                return null;
+            removedPages = readRemovedPages();
+            if (removedPages.isEmpty())
+                return null;
 
-        removeUnusedChunks(removedPages);
+            removeUnusedChunks(removedPages);
 
-        if (minFillRate <= 0)
-            return;
+            if (minFillRate <= 0 || removedPages.isEmpty())
+                return null;
 
-        if (!removedPages.isEmpty()) {
-            List<BTreeChunk> old = getOldChunks();
-            if (!old.isEmpty()) {
-                boolean saveIfNeeded = rewrite(old, removedPages);
-                if (saveIfNeeded) {
-                    removedPages = executeSave(false);
-                    removeUnusedChunks(removedPages);
-                }
+            if (compactChunks == null) {
+                compactChunks = getOldChunks();
+                compactChunkIndex = 0;
+                compactPageIndex = 0;
             }
         }
+        // 重写page时不持有storage的锁，不影响正常的save
+        return removedPages;
     }
 
     private void removeUnusedChunks(TreeSet<Long> removedPages) {
@@ -715,6 +1159,11 @@ public class BTreeStorage {
             c.fileStorage.delete();
             chunks.remove(c.id);
             chunkIds.clear(c.id);
+            // chunk id会被重用，新chunk中的page可能跟旧page的pos相同
+            if (offHeapCache != null) {
+                for (long pos : c.pagePositions)
+                    offHeapCache.remove(offHeapCacheSpace, pos);
+            }
             removedPages.removeAll(c.pagePositions);
         }
 
@@ -732,7 +1181,8 @@ public class BTreeStorage {
 
         for (BTreeChunk c : chunks.values()) {
             c.sumOfLivePageLength = 0;
-            boolean unused = true;
+            // chunkMetaData中记录的是最后一个chunk，即使它没有page(save时只有被删除的page)也不能删
+            boolean unused = c != lastChunk;
             for (int i = 0, size = c.pagePositions.size(); i < size; i++) {
                 if (!removedPages.contains(c.pagePositions.get(i))) {
                     c.sumOfLivePageLength += c.pageLengths.get(i);
@@ -789,25 +1239,43 @@ public class BTreeStorage {
         return index == size ? old : old.subList(0, index + 1);
     }
 
-    private boolean rewrite(List<BTreeChunk> old, TreeSet<Long> removedPages) {
-        boolean saveIfNeeded = false;
-        for (BTreeChunk c : old) {
-            for (int i = 0, size = c.pagePositions.size(); i < size; i++) {
-                long pos = c.pagePositions.get(i);
-                if (PageUtils.isLeafPage(pos)) {
-                    if (!removedPages.contains(pos)) {
-                        BTreePage p = readPage(pos);
-                        if (p.getKeyCount() > 0) {
-                            Object key = p.getKey(0);
-                            Object value = map.get(key);
-                            if (value != null && map.replace(key, value, value))
-                                saveIfNeeded = true;
-                        }
+    // 返回-1表示这一轮做完了，否则返回需要等待多少毫秒才能接着做
+    private long rewrite(TreeSet<Long> removedPages) {
+        for (int size = compactChunks.size(); compactChunkIndex < size; compactChunkIndex++) {
+            BTreeChunk c = compactChunks.get(compactChunkIndex);
+            // chunk已经被删除或者id被重用了
+            if (chunks.get(c.id) != c) {
+                compactPageIndex = 0;
+                continue;
+            }
+            for (int count = c.pagePositions.size(); compactPageIndex < count; compactPageIndex++) {
+                if (closed || compactBytes >= maxCompactBytes)
+                    return -1;
+                long wait = getThrottleDelay();
+                if (wait > 0)
+                    return wait;
+                long pos = c.pagePositions.get(compactPageIndex);
+                if (PageUtils.isLeafPage(pos) && !removedPages.contains(pos)) {
+                    BTreePage p = readPage(pos);
+                    if (p.getKeyCount() > 0) {
+                        Object key = p.getKey(0);
+                        Object value = map.get(key);
+                        if (value != null)
+                            map.replace(key, value, value);
                     }
+                    compactBytes += c.pageLengths.get(compactPageIndex);
                 }
             }
+            compactPageIndex = 0;
         }
-        return saveIfNeeded;
+        compactChunks = null;
+        return -1;
+    }
+
+    private long getThrottleDelay() {
+        if (compactRate <= 0)
+            return 0;
+        return compactBytes * 1000 / compactRate - (System.currentTimeMillis() - compactStartTime);
     }
 
     // //////////////////////////////// Compact END /////////////////////////////////////
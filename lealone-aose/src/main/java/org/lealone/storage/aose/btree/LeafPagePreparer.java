@@ -0,0 +1,156 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.storage.aose.btree;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.lealone.common.util.DataUtils;
+import org.lealone.storage.aose.AOStorageService;
+
+/**
+ * Serializes and compresses the changed leaf pages of a save in parallel, a bounded
+ * window ahead of the thread that writes the chunk.
+ * <p>
+ * The leaf pages are visited in the same order as writeUnsavedRecursive writes them.
+ * The estimated memory of the pages submitted but not yet written stays below the
+ * window size plus one page, so the serialized pages held in memory do not depend on
+ * the size of the chunk.
+ *
+ * @author zhh
+ */
+class LeafPagePreparer {
+
+    private static class PreparedPage {
+        final BTreeLeafPage page;
+        final int memory;
+        ForkJoinTask<Integer> task;
+
+        PreparedPage(BTreeLeafPage page) {
+            this.page = page;
+            this.memory = Math.max(page.getMemory(), PageUtils.PAGE_MEMORY);
+        }
+    }
+
+    // 深度优先遍历时的一个node page以及下一个要访问的子page
+    private static class Frame {
+        final BTreePage node;
+        int index;
+
+        Frame(BTreePage node) {
+            this.node = node;
+        }
+    }
+
+    private final ArrayDeque<Frame> stack = new ArrayDeque<>();
+    private final ArrayDeque<PreparedPage> window = new ArrayDeque<>();
+    private final long windowSize;
+    private long windowMemory;
+
+    // 已经序列化但还没有写到chunk的字节数
+    private final AtomicLong preparedBytes = new AtomicLong();
+    private final AtomicLong maxPreparedBytes = new AtomicLong();
+    private int lastLength;
+
+    LeafPagePreparer(BTreePage root, long windowSize) {
+        this.windowSize = windowSize;
+        if (root.isNode() && root.getPos() == 0)
+            stack.push(new Frame(root));
+        prepareNext();
+    }
+
+    // 下一个还没保存的leaf page，顺序跟writeUnsavedRecursive的写入顺序一样
+    private BTreeLeafPage nextLeafPage() {
+        while (!stack.isEmpty()) {
+            Frame f = stack.peek();
+            PageReference[] children = f.node.getChildren();
+            if (f.index >= children.length) {
+                stack.pop();
+                continue;
+            }
+            BTreePage p = children[f.index++].page;
+            if (p == null || p.getPos() != 0)
+                continue;
+            if (p.isNode())
+                stack.push(new Frame(p));
+            else if (p instanceof BTreeLeafPage)
+                return (BTreeLeafPage) p;
+        }
+        return null;
+    }
+
+    private void prepareNext() {
+        while (windowMemory < windowSize) {
+            BTreeLeafPage p = nextLeafPage();
+            if (p == null)
+                break;
+            PreparedPage pp = new PreparedPage(p);
+            pp.task = AOStorageService.forkTask(ForkJoinTask.adapt(() -> {
+                int length = p.prepareWrite();
+                long bytes = preparedBytes.addAndGet(length);
+                long max;
+                while (bytes > (max = maxPreparedBytes.get()) && !maxPreparedBytes.compareAndSet(max, bytes))
+                    ;
+                return length;
+            }));
+            window.add(pp);
+            windowMemory += pp.memory;
+        }
+    }
+
+    /**
+     * Wait until the page is serialized.
+     *
+     * @param page the leaf page to write next
+     */
+    void beforeWrite(BTreeLeafPage page) {
+        lastLength = 0;
+        PreparedPage pp = window.peek();
+        if (pp == null) // 根page就是leaf page
+            return;
+        if (pp.page != page) {
+            throw DataUtils.newIllegalStateException(DataUtils.ERROR_INTERNAL,
+                    "Leaf pages are not written in the prepared order");
+        }
+        window.poll();
+        windowMemory -= pp.memory;
+        // 先让后面的page开始准备，再等待当前page
+        prepareNext();
+        lastLength = pp.task.join();
+    }
+
+    /**
+     * Release the serialized page after it was copied to the write buffer.
+     */
+    void afterWrite() {
+        if (lastLength > 0) {
+            preparedBytes.addAndGet(-lastLength);
+            lastLength = 0;
+        }
+    }
+
+    /**
+     * Get the peak number of serialized bytes that were waiting to be written.
+     *
+     * @return the number of bytes
+     */
+    long getMaxPreparedBytes() {
+        return maxPreparedBytes.get();
+    }
+}
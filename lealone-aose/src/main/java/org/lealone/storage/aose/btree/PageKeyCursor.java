@@ -17,6 +17,7 @@
  */
 package org.lealone.storage.aose.btree;
 
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 
@@ -32,6 +33,7 @@ class PageKeyCursor<K, V> implements Iterator<K>, StorageMapCursor<K, V> {
     private K currentKey, lastKey;
     private V currentValue, lastValue;
     private int index;
+    private int readAheadIndex; // pageKeys中已经预读到的位置
 
     PageKeyCursor(List<PageKey> pageKeys, BTreePage root, K from) {
         this.pageKeys = pageKeys;
@@ -99,37 +101,7 @@ class PageKeyCursor<K, V> implements Iterator<K>, StorageMapCursor<K, V> {
                 pos = new CursorPos(p, x, pos);
                 break;
             }
-            // int x = from == null ? -1 : p.binarySearch(from);
-            int x = p.binarySearch(pk.key);
-            if (x < 0) {
-                x = -x - 1;
-                // if (x == p.getKeyCount()) {
-                // if (pos != null) {
-                // pos = pos.parent;
-                // if (pos == null) {
-                // break;
-                // }
-                // p = pos.page;
-                // continue;
-                // }
-                // }
-            } else {
-                x++;
-            }
-            // while (x < map.getChildPageCount(p) && p.isRemoteChildPage(x)) {
-            // x++;
-            // }
-            // if (x == map.getChildPageCount(p)) {
-            // if (p.isRemoteChildPage(x - 1)) {
-            // pos = null;
-            // currentKey = null;
-            // break;
-            // } else
-            // x--;
-            // }
-            if (pk.first && p.isLeafChildPage(x)) {
-                x = 0;
-            }
+            int x = getChildIndex(p, pk);
             if (pos == null || pos.page != p)
                 pos = new CursorPos(p, x + 1, pos);
             p = p.getChildPage(x);
@@ -137,6 +109,39 @@ class PageKeyCursor<K, V> implements Iterator<K>, StorageMapCursor<K, V> {
         return false;
     }
 
+    private static int getChildIndex(BTreePage p, PageKey pk) {
+        int x = p.binarySearch(pk.key);
+        if (x < 0) {
+            x = -x - 1;
+        } else {
+            x++;
+        }
+        if (pk.first && p.isLeafChildPage(x)) {
+            x = 0;
+        }
+        return x;
+    }
+
+    // 预读后面几个page key对应的leaf page
+    private void readAhead(BTreePage parent) {
+        int n = parent.map.btreeStorage.getReadAheadPages();
+        if (n <= 0 || readAheadIndex - index >= n / 2)
+            return;
+        int end = Math.min(index + n, pageKeys.size());
+        ArrayList<Long> positions = new ArrayList<>();
+        for (int i = Math.max(index, readAheadIndex); i < end; i++) {
+            int x = getChildIndex(parent, pageKeys.get(i));
+            if (x < parent.getRawChildPageCount()) {
+                PageReference ref = parent.getChildPageReference(x);
+                if (ref.page == null && ref.pos > 0 && ref.isLeafPage())
+                    positions.add(ref.pos);
+            }
+        }
+        readAheadIndex = end;
+        if (!positions.isEmpty())
+            parent.map.btreeStorage.prefetchPages(positions);
+    }
+
     /**
     * Fetch the next entry if there is one.
     */
@@ -167,6 +172,7 @@ class PageKeyCursor<K, V> implements Iterator<K>, StorageMapCursor<K, V> {
             // // }
             // // min(pos.page.getChildPage(pos.index++), null);
             // }
+            readAhead(pos.page);
             if (min(pos.page, null)) {
                 break;
             }
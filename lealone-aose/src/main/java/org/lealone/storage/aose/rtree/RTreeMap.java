@@ -38,6 +38,11 @@ public class RTreeMap<V> extends BTreeMap<SpatialKey, V> {
         this.keyType = (SpatialDataType) getKeyType();
     }
 
+    @Override
+    protected boolean isConcurrentWriteSupported() {
+        return false;
+    }
+
     /**
      * Create a new map with the given dimensions and value type.
      *
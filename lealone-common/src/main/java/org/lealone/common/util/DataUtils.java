@@ -103,6 +103,11 @@ public class DataUtils {
      */
     public static final int ERROR_TRANSACTION_STILL_OPEN = 104;
 
+    /**
+     * Waiting for an entry locked by another transaction would cause a deadlock.
+     */
+    public static final int ERROR_TRANSACTION_DEADLOCK = 105;
+
     /**
      * The maximum length of a variable size int.
      */
@@ -336,6 +336,14 @@ public class DbSettings extends SettingsBase {
      */
     public final boolean compressData = get("COMPRESS", false);
 
+    /**
+     * Database setting <code>CONCURRENT_WRITE</code>
+     * (default: false).<br />
+     * Write to the maps of the tables and indexes without holding the map monitor.
+     * A table can override it with the concurrent_write table parameter.
+     */
+    public final boolean concurrentWrite = get("CONCURRENT_WRITE", false);
+
     /**
      * Database setting <code>PERSISTENT</code>
      * (default: true).<br />
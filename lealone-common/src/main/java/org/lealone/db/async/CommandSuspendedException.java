@@ -0,0 +1,109 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.db.async;
+
+/**
+ * Thrown when a command has to wait, for example for a page that is read in the background.
+ * The command gives up the thread that executes it, and is executed again from the start
+ * after it was resumed.
+ * <p>
+ * Only commands that were marked as suspendable in the current thread may be suspended,
+ * the others still wait in the current thread.
+ *
+ * @author zhh
+ */
+public class CommandSuspendedException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    // 可以挂起到什么时候(System.nanoTime)，0表示不能挂起
+    private static final ThreadLocal<Long> suspendableUntil = new ThreadLocal<>();
+
+    /**
+     * Check whether the command that is executed in the current thread may be suspended.
+     *
+     * @return true if it may be suspended
+     */
+    public static boolean isSuspendable() {
+        Long until = suspendableUntil.get();
+        if (until == null || until.longValue() == 0)
+            return false;
+        return until.longValue() == Long.MAX_VALUE || System.nanoTime() - until.longValue() < 0;
+    }
+
+    /**
+     * Allow or disallow suspending the command that is executed in the current thread.
+     *
+     * @param b the new value
+     * @return the old value, ignoring the time limit
+     */
+    public static boolean setSuspendable(boolean b) {
+        Long old = suspendableUntil.get();
+        suspendableUntil.set(b ? Long.MAX_VALUE : 0L);
+        return old != null && old.longValue() != 0;
+    }
+
+    /**
+     * Allow suspending the command that is executed in the current thread for the given time.
+     * A command that is executed again from the start after it was resumed repeats the work
+     * it did before, so long running commands should not be suspended any more.
+     *
+     * @param nanos the time in nanoseconds
+     */
+    public static void setSuspendableFor(long nanos) {
+        suspendableUntil.set(System.nanoTime() + nanos);
+    }
+
+    private boolean resumed;
+    private Runnable resumeListener;
+
+    public CommandSuspendedException() {
+        // 只用来挂起命令，不需要堆栈
+        super(null, null, false, false);
+    }
+
+    /**
+     * The command can continue now. Called by the thread that completed the wait.
+     */
+    public void resume() {
+        Runnable listener;
+        synchronized (this) {
+            resumed = true;
+            listener = resumeListener;
+            resumeListener = null;
+        }
+        if (listener != null)
+            listener.run();
+    }
+
+    /**
+     * Set the listener that executes the command again. If the command was already
+     * resumed, the listener is called immediately in the current thread.
+     *
+     * @param listener the listener
+     */
+    public void setResumeListener(Runnable listener) {
+        synchronized (this) {
+            if (!resumed) {
+                resumeListener = listener;
+                return;
+            }
+        }
+        listener.run();
+    }
+}
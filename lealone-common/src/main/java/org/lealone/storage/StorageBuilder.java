@@ -157,10 +157,79 @@ public abstract class StorageBuilder {
         return set("reuseSpace", 1);
     }
 
+    /**
+     * Allow writers of a map to modify it concurrently. Each write copies the
+     * path from a snapshot of the root page and installs the new root with a
+     * compare-and-set, instead of holding the map monitor. A map can override it
+     * with the concurrentWrite parameter, "false" disables it.
+     * 
+     * @return this
+     */
+    public StorageBuilder concurrentWrite() {
+        return set("concurrentWrite", 1);
+    }
+
     public StorageBuilder minFillRate(int minFillRate) {
         return set("minFillRate", minFillRate);
     }
 
+    /**
+     * Set the maximum amount of live pages re-written by one background compaction run, in MB.
+     * The default is 64 MB. The remaining pages are re-written after the next save.
+     * 
+     * @param mb the maximum number of megabytes re-written per run
+     * @return this
+     */
+    public StorageBuilder maxCompactBytes(int mb) {
+        return set("maxCompactBytes", mb);
+    }
+
+    /**
+     * Set the maximum write rate of the background compaction, in MB per second.
+     * The default is 16 MB/s, 0 means unlimited.
+     * 
+     * @param mb the maximum number of megabytes re-written per second
+     * @return this
+     */
+    public StorageBuilder compactRate(int mb) {
+        return set("compactRate", mb);
+    }
+
+    /**
+     * Set the size of the segments in which a chunk is written to disk, in bytes.
+     * The default is 1 MB.
+     * 
+     * @param chunkSegmentSize the segment size
+     * @return this
+     */
+    public StorageBuilder chunkSegmentSize(int chunkSegmentSize) {
+        return set("chunkSegmentSize", chunkSegmentSize);
+    }
+
+    /**
+     * Set the number of leaf pages a cursor reads ahead when it scans sequentially.
+     * The default is 8, 0 disables read-ahead.
+     * 
+     * @param pages the number of pages
+     * @return this
+     */
+    public StorageBuilder readAheadPages(int pages) {
+        return set("readAheadPages", pages);
+    }
+
+    /**
+     * Set the size of the off-heap page cache in MB. Pages that are not in the
+     * read cache are looked up there before they are read from the file.
+     * By default the maps use the cache of the storage engine if its
+     * off_heap_cache_size parameter is set, 0 disables it for the maps.
+     * 
+     * @param mb the cache size in megabytes
+     * @return this
+     */
+    public StorageBuilder offHeapCacheSize(int mb) {
+        return set("offHeapCacheSize", mb);
+    }
+
     public StorageBuilder db(Object db) {
         return set("db", db);
     }
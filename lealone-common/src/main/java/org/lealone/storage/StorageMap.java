@@ -23,6 +23,7 @@ import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.util.List;
 import java.util.Map;
+import java.util.function.BiFunction;
 
 import org.lealone.common.exceptions.DbException;
 import org.lealone.db.Session;
@@ -232,6 +233,29 @@ public interface StorageMap<K, V> extends ReplicationMap {
 
     K append(V value);
 
+    /**
+     * Update the values of existing entries. The keys must be sorted and unique,
+     * so that a storage engine can apply all updates in one pass.
+     * <p>
+     * The updater is called with the key and the current value, and returns the
+     * new value, or null to remove the entry. Keys that do not exist are skipped.
+     *
+     * @param keys the sorted keys
+     * @param updater the function that computes the new values
+     */
+    default void updateAll(List<K> keys, BiFunction<? super K, ? super V, ? extends V> updater) {
+        for (K key : keys) {
+            V old = get(key);
+            if (old == null)
+                continue;
+            V value = updater.apply(key, old);
+            if (value == null)
+                remove(key);
+            else
+                put(key, value);
+        }
+    }
+
     default void setMaxKey(Object key) {
     }
 
@@ -0,0 +1,350 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.storage.cache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.lealone.common.util.DataUtils;
+
+/**
+ * A cache of byte sequences that uses keys of type long. The bytes are kept in
+ * direct buffers, outside of the java heap, so a large cache does not slow down
+ * garbage collection.
+ * <p>
+ * One cache is shared by many users, each user has its own key space, so the
+ * same key can be used in different spaces. The memory is shared, the oldest
+ * entries are evicted no matter which space they belong to.
+ * <p>
+ * Internally, the cache is split into a number of segments. Each segment is a
+ * direct buffer used as a ring: new entries are appended at the write position,
+ * and the oldest entries are evicted when the write position reaches them again.
+ * The buffer of a segment is only allocated when the first entry is put into it.
+ * Access is synchronized per segment.
+ *
+ * @author zhh
+ */
+public class CacheLongKeyOffHeap {
+
+    // 一个direct buffer最大1G
+    private static final long MAX_SEGMENT_SIZE = 1024 * 1024 * 1024;
+
+    private final Segment[] segments;
+    private final int segmentMask;
+    private final long maxMemory;
+    private final AtomicInteger nextSpace = new AtomicInteger();
+
+    /**
+     * Create a new cache with the given memory size. No memory is allocated yet.
+     *
+     * @param maxMemory the maximum number of bytes kept in the cache
+     */
+    public CacheLongKeyOffHeap(long maxMemory) {
+        DataUtils.checkArgument(maxMemory > 0, "Max memory must be larger than 0, is {0}", maxMemory);
+        this.maxMemory = maxMemory;
+        int segmentCount = 16;
+        while (maxMemory / segmentCount > MAX_SEGMENT_SIZE)
+            segmentCount <<= 1;
+        segmentMask = segmentCount - 1;
+        segments = new Segment[segmentCount];
+        int segmentSize = (int) Math.max(1, maxMemory / segmentCount);
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(segmentSize);
+        }
+    }
+
+    /**
+     * Get a new key space.
+     *
+     * @return the id of the space
+     */
+    public int newSpace() {
+        return nextSpace.incrementAndGet();
+    }
+
+    private Segment getSegment(long key) {
+        int hash = (int) (key ^ (key >>> 32));
+        // 同一个chunk的key高位相同，打散后再选segment
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        hash = (hash >>> 16) ^ hash;
+        return segments[hash & segmentMask];
+    }
+
+    /**
+     * Get a copy of the bytes stored for the given key.
+     *
+     * @param space the key space
+     * @param key the key
+     * @return a heap buffer with the bytes, or null if there is no entry
+     */
+    public ByteBuffer get(int space, long key) {
+        return getSegment(key).get(space, key);
+    }
+
+    /**
+     * Check whether there is an entry for the given key. This method does not
+     * change the statistics.
+     *
+     * @param space the key space
+     * @param key the key
+     * @return true if there is an entry
+     */
+    public boolean containsKey(int space, long key) {
+        return getSegment(key).containsKey(space, key);
+    }
+
+    /**
+     * Copy the remaining bytes of the buffer into the cache. The position of
+     * the buffer is not changed. Entries larger than a segment are ignored.
+     *
+     * @param space the key space
+     * @param key the key
+     * @param value the bytes
+     */
+    public void put(int space, long key, ByteBuffer value) {
+        getSegment(key).put(space, key, value);
+    }
+
+    /**
+     * Remove an entry.
+     *
+     * @param space the key space
+     * @param key the key
+     */
+    public void remove(int space, long key) {
+        getSegment(key).remove(space, key);
+    }
+
+    /**
+     * Remove all entries of a key space.
+     *
+     * @param space the key space
+     */
+    public void removeSpace(int space) {
+        for (Segment s : segments) {
+            s.removeSpace(space);
+        }
+    }
+
+    /**
+     * Remove all entries and free the memory. The cache can still be used,
+     * the memory is allocated again when needed.
+     */
+    public void clear() {
+        for (Segment s : segments) {
+            s.clear();
+        }
+    }
+
+    /**
+     * Get the number of bytes used by the live entries.
+     *
+     * @return the used memory
+     */
+    public long getUsedMemory() {
+        long x = 0;
+        for (Segment s : segments) {
+            x += s.usedMemory;
+        }
+        return x;
+    }
+
+    /**
+     * Get the number of bytes of direct memory that is allocated.
+     *
+     * @return the allocated memory
+     */
+    public long getAllocatedMemory() {
+        long x = 0;
+        for (Segment s : segments) {
+            ByteBuffer buffer = s.buffer;
+            if (buffer != null)
+                x += buffer.capacity();
+        }
+        return x;
+    }
+
+    /**
+     * Get the maximum number of bytes kept in the cache.
+     *
+     * @return the maximum memory
+     */
+    public long getMaxMemory() {
+        return maxMemory;
+    }
+
+    /**
+     * Get the number of cache hits.
+     *
+     * @return the cache hits
+     */
+    public long getHits() {
+        long x = 0;
+        for (Segment s : segments) {
+            x += s.hits;
+        }
+        return x;
+    }
+
+    /**
+     * Get the number of cache misses.
+     *
+     * @return the cache misses
+     */
+    public long getMisses() {
+        long x = 0;
+        for (Segment s : segments) {
+            x += s.misses;
+        }
+        return x;
+    }
+
+    private static class Entry {
+        final int space;
+        final long key;
+        final int offset;
+        final int length;
+        Entry next; // 不同space中相同的key
+
+        Entry(int space, long key, int offset, int length) {
+            this.space = space;
+            this.key = key;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static class Segment {
+
+        final int size;
+        volatile ByteBuffer buffer;
+        final HashMap<Long, Entry> entries = new HashMap<>();
+        // 按写入顺序排列，也就是按在ring中的位置排列，队头是最老的
+        final ArrayDeque<Entry> queue = new ArrayDeque<>();
+        int writePos;
+        volatile long usedMemory;
+        volatile long hits;
+        volatile long misses;
+
+        Segment(int size) {
+            this.size = size;
+        }
+
+        private Entry find(int space, long key) {
+            Entry e = entries.get(key);
+            while (e != null && e.space != space)
+                e = e.next;
+            return e;
+        }
+
+        synchronized ByteBuffer get(int space, long key) {
+            Entry e = find(space, key);
+            if (e == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+            ByteBuffer src = buffer.duplicate();
+            src.limit(e.offset + e.length).position(e.offset);
+            ByteBuffer value = ByteBuffer.allocate(e.length);
+            value.put(src);
+            value.flip();
+            return value;
+        }
+
+        synchronized boolean containsKey(int space, long key) {
+            return find(space, key) != null;
+        }
+
+        synchronized void put(int space, long key, ByteBuffer value) {
+            int length = value.remaining();
+            if (length > size)
+                return;
+            remove(space, key);
+            if (buffer == null)
+                buffer = ByteBuffer.allocateDirect(size);
+            if (writePos + length > size) {
+                // 尾部放不下了，淘汰尾部剩下的entry，然后从头开始写
+                while (!queue.isEmpty() && queue.peekFirst().offset >= writePos)
+                    evict();
+                writePos = 0;
+            }
+            // 队头的entry在写位置之后时，说明ring已经转过一圈，覆盖到的entry要淘汰
+            while (!queue.isEmpty() && queue.peekFirst().offset >= writePos
+                    && queue.peekFirst().offset < writePos + length)
+                evict();
+            ByteBuffer dst = buffer.duplicate();
+            dst.position(writePos);
+            dst.put(value.duplicate());
+            Entry e = new Entry(space, key, writePos, length);
+            e.next = entries.put(key, e);
+            queue.addLast(e);
+            writePos += length;
+            usedMemory += length;
+        }
+
+        private void evict() {
+            Entry e = queue.pollFirst();
+            // 被删除或被替换的entry只是不在entries中了，空间要等到这里才回收
+            unlink(e);
+        }
+
+        // 从entries中删除，返回false表示它已经不在entries中了
+        private boolean unlink(Entry e) {
+            Entry head = entries.get(e.key);
+            if (head == e) {
+                if (e.next == null)
+                    entries.remove(e.key);
+                else
+                    entries.put(e.key, e.next);
+            } else {
+                Entry prev = head;
+                while (prev != null && prev.next != e)
+                    prev = prev.next;
+                if (prev == null)
+                    return false;
+                prev.next = e.next;
+            }
+            usedMemory -= e.length;
+            return true;
+        }
+
+        synchronized void remove(int space, long key) {
+            Entry e = find(space, key);
+            if (e != null)
+                unlink(e);
+        }
+
+        synchronized void removeSpace(int space) {
+            for (Entry e : queue) {
+                if (e.space == space)
+                    unlink(e);
+            }
+        }
+
+        synchronized void clear() {
+            entries.clear();
+            queue.clear();
+            writePos = 0;
+            usedMemory = 0;
+            buffer = null; // 由GC回收direct memory
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.storage.type;
+
+/**
+ * A key type whose keys are all long values.
+ * <p>
+ * The storage engine may keep the keys of a map using this type in primitive long arrays.
+ * The serialized form of the keys is still defined by the read and write methods.
+ */
+public interface LongKeyDataType extends StorageDataType {
+
+    /**
+     * Check whether the given object is a key of this type.
+     * Other objects (for example null, used to find the first entry) are compared with the compare method.
+     *
+     * @param key the object
+     * @return true if it can be converted to a long
+     */
+    boolean isLongKey(Object key);
+
+    /**
+     * Convert a key to a long value.
+     *
+     * @param key the key
+     * @return the long value
+     */
+    long getLongKey(Object key);
+
+    /**
+     * Convert a long value to a key.
+     *
+     * @param key the long value
+     * @return the key
+     */
+    Object createKey(long key);
+
+}
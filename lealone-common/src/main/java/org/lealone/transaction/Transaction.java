@@ -17,6 +17,8 @@
  */
 package org.lealone.transaction;
 
+import java.util.Map;
+
 import org.lealone.db.Session;
 import org.lealone.storage.Storage;
 import org.lealone.storage.type.StorageDataType;
@@ -90,8 +92,28 @@ public interface Transaction {
     <K, V> TransactionMap<K, V> openMap(String name, StorageDataType keyType, StorageDataType valueType,
             Storage storage);
 
+    default <K, V> TransactionMap<K, V> openMap(String name, String mapType, StorageDataType keyType,
+            StorageDataType valueType, Storage storage, boolean isShardingMode, String initReplicationEndpoints) {
+        return openMap(name, mapType, keyType, valueType, storage, isShardingMode, initReplicationEndpoints, null);
+    }
+
+    /**
+     * Open the map to store the data.
+     *
+     * @param <K> the key type
+     * @param <V> the value type
+     * @param name the name of the map
+     * @param mapType the map type, or null for the default type
+     * @param keyType the key data type
+     * @param valueType the value data type
+     * @param storage the storage
+     * @param isShardingMode whether the map is used in sharding mode
+     * @param initReplicationEndpoints the initial replication endpoints, or null
+     * @param parameters the map parameters, or null
+     * @return the transaction map
+     */
     <K, V> TransactionMap<K, V> openMap(String name, String mapType, StorageDataType keyType, StorageDataType valueType,
-            Storage storage, boolean isShardingMode, String initReplicationEndpoints);
+            Storage storage, boolean isShardingMode, String initReplicationEndpoints, Map<String, String> parameters);
 
     void addSavepoint(String name);
 
@@ -113,6 +135,49 @@ public interface Transaction {
 
     void replicationPrepareCommit(long validKey);
 
+    /**
+     * Register a listener that is called once the transaction holding the entry
+     * this transaction could not lock commits or rolls back.
+     *
+     * @param listener the listener
+     * @return false if no other transaction holds the entry any more,
+     *         the write can be retried immediately
+     */
+    default boolean addLockWaitListener(Runnable listener) {
+        return false;
+    }
+
+    /**
+     * Forget the entry this transaction could not lock. Called when the statement
+     * that failed to lock it gives up waiting, so that this transaction is no longer
+     * seen as waiting when deadlocks are checked.
+     */
+    default void clearLockWait() {
+    }
+
+    /**
+     * Check whether the last write of this transaction failed because the entry was
+     * changed by a transaction that committed after the snapshot was taken.
+     *
+     * @return true if the write conflicts with a later commit
+     */
+    default boolean isSnapshotConflict() {
+        return false;
+    }
+
+    /**
+     * Take a new snapshot, so that the next statement of this transaction sees all
+     * transactions that committed so far. Only allowed before the first statement of
+     * the transaction is retried after a conflict with a transaction that committed
+     * after the old snapshot was taken, otherwise the earlier statements and the later
+     * statements would see different snapshots.
+     *
+     * @return true if transactions committed since the old snapshot was taken
+     */
+    default boolean refreshSnapshot() {
+        return false;
+    }
+
     interface Participant {
         void addSavepoint(String name);
 
@@ -35,6 +35,14 @@ public interface TransactionMap<K, V> extends StorageMap<K, V> {
      */
     public long rawSize();
 
+    /**
+     * Get the number of committed entries. Uncommitted changes of all open
+     * transactions are not included.
+     *
+     * @return the number of committed entries
+     */
+    public long committedSize();
+
     /**
      * Get a clone of this map for the given transaction.
      *
@@ -2207,6 +2207,9 @@ public class Database implements DataHandler, DbObject, IDatabase {
             });
             storageBuilder.db(this);
         }
+        if (getSettings().concurrentWrite) {
+            storageBuilder.concurrentWrite();
+        }
         return storageBuilder;
     }
 
@@ -2245,7 +2248,7 @@ public class Database implements DataHandler, DbObject, IDatabase {
             if (e.getValue() == null)
                 continue;
             sql.appendExceptFirst(",");
-            sql.append(e.getKey()).append('=').append("'").append(e.getValue()).append("'");
+            sql.append(e.getKey()).append('=').append(StringUtils.quoteStringSQL(e.getValue()));
         }
         sql.append(')');
     }
@@ -690,12 +690,6 @@ public class ServerSession extends SessionBase implements Transaction.Validator
         }
     }
 
-    public ArrayList<ServerSession> checkDeadlock() {
-        if (locks.isEmpty())
-            return null;
-        return locks.get(0).checkDeadlock(this, null, null);
-    }
-
     private void releaseSessionCache() {
         if (!sessionCache.isEmpty()) {
             for (Session s : sessionCache.values()) {
@@ -815,6 +809,16 @@ public class ServerSession extends SessionBase implements Transaction.Validator
             containsDDL = true;
     }
 
+    /**
+     * Check if the given statement is the only statement executed in the current transaction.
+     *
+     * @param statement the statement
+     * @return true if no other statement was executed in the current transaction
+     */
+    public boolean isFirstStatement(PreparedStatement statement) {
+        return currentStatements.size() == 1 && currentStatements.get(0) == statement;
+    }
+
     /**
      * Check if the current transaction is canceled by calling
      * Statement.cancel() or because a session timeout was set and expired.
@@ -62,7 +62,7 @@ public class StandardPrimaryIndex extends IndexBase {
         for (int i = 0; i < columns.length; i++) {
             sortTypes[i] = SortOrder.ASCENDING;
         }
-        ValueDataType keyType = new ValueDataType(null, null, null);
+        RowKeyDataType keyType = new RowKeyDataType();
         ValueDataType valueType = new ValueDataType(database, database.getCompareMode(), sortTypes);
         VersionedValueType vvType = new VersionedValueType(valueType);
 
@@ -81,7 +81,7 @@ public class StandardPrimaryIndex extends IndexBase {
         // session.isShardingMode()是针对当前session的，如果是SystemSession，就算数据库是ShardingMode，也不管它
         Transaction t = transactionEngine.beginTransaction(false, session.isShardingMode());
         dataMap = t.openMap(mapName, table.getMapType(), keyType, vvType, storage,
-                session.getDatabase().isShardingMode(), initReplicationEndpoints);
+                session.getDatabase().isShardingMode(), initReplicationEndpoints, table.getMapParameters());
         transactionEngine.addTransactionMap(dataMap);
         t.commit(); // 避免产生内部未提交的事务
     }
@@ -288,7 +288,11 @@ public class StandardPrimaryIndex extends IndexBase {
 
     @Override
     public long getRowCountApproximation() {
-        return getRowCountMax();
+        try {
+            return dataMap.committedSize();
+        } catch (IllegalStateException e) {
+            throw DbException.get(ErrorCode.OBJECT_CLOSED, e);
+        }
     }
 
     @Override
@@ -82,7 +82,7 @@ public class StandardSecondaryIndex extends IndexBase implements StandardIndex {
 
         Transaction t = transactionEngine.beginTransaction(false, session.isShardingMode());
         TransactionMap<Value, Value> map = t.openMap(mapName, table.getMapType(), keyType, valueType, storage,
-                session.getDatabase().isShardingMode(), initReplicationEndpoints);
+                session.getDatabase().isShardingMode(), initReplicationEndpoints, table.getMapParameters());
         transactionEngine.addTransactionMap(map);
         t.commit(); // 避免产生内部未提交的事务
         if (!keyType.equals(map.getKeyType())) {
@@ -8,17 +8,19 @@ package org.lealone.db.table;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashSet;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.lealone.common.exceptions.DbException;
+import org.lealone.common.util.CaseInsensitiveMap;
 import org.lealone.common.util.MathUtils;
 import org.lealone.common.util.StatementBuilder;
 import org.lealone.common.util.StringUtils;
 import org.lealone.common.util.Utils;
 import org.lealone.db.Constants;
+import org.lealone.db.Database;
 import org.lealone.db.DbObjectType;
 import org.lealone.db.ServerSession;
 import org.lealone.db.SysProperties;
@@ -52,6 +54,9 @@ public class StandardTable extends Table {
     private final ArrayList<Index> indexes = Utils.newSmallArrayList();
     private final StorageEngine storageEngine;
     private final String mapType;
+    private final CaseInsensitiveMap<String> storageEngineParams;
+    // 表的WITH参数中要传给map的部分
+    private final Map<String, String> mapParameters;
     private final boolean globalTemporary;
 
     private long lastModificationId;
@@ -67,10 +72,19 @@ public class StandardTable extends Table {
     public StandardTable(CreateTableData data, StorageEngine storageEngine) {
         super(data.schema, data.id, data.tableName, data.persistIndexes, data.persistData);
         this.storageEngine = storageEngine;
-        if (data.storageEngineParams != null) {
-            mapType = data.storageEngineParams.get("map_type");
+        storageEngineParams = data.storageEngineParams;
+        if (storageEngineParams != null) {
+            mapType = storageEngineParams.get("map_type");
+            String concurrentWrite = storageEngineParams.get("concurrent_write");
+            if (concurrentWrite != null) {
+                mapParameters = new HashMap<>(1);
+                mapParameters.put("concurrentWrite", concurrentWrite);
+            } else {
+                mapParameters = null;
+            }
         } else {
             mapType = null;
+            mapParameters = null;
         }
         globalTemporary = data.globalTemporary;
         isHidden = data.isHidden;
@@ -96,6 +110,10 @@ public class StandardTable extends Table {
         return mapType;
     }
 
+    public Map<String, String> getMapParameters() {
+        return mapParameters;
+    }
+
     public StorageEngine getStorageEngine() {
         return storageEngine;
     }
@@ -147,6 +165,10 @@ public class StandardTable extends Table {
                 buff.append('\"');
             }
         }
+        if (storageEngineParams != null && !storageEngineParams.isEmpty()) {
+            buff.append("\nWITH");
+            Database.appendMap(buff, storageEngineParams);
+        }
         if (!isPersistIndexes() && !isPersistData()) {
             buff.append("\nNOT PERSISTENT");
         }
@@ -209,65 +231,6 @@ public class StandardTable extends Table {
         }
     }
 
-    public static String getDeadlockDetails(ArrayList<ServerSession> sessions) {
-        // We add the thread details here to make it easier for customers to
-        // match up these error messages with their own logs.
-        StringBuilder buff = new StringBuilder();
-        for (ServerSession s : sessions) {
-            Table lock = s.getWaitForLock();
-            Thread thread = s.getWaitForLockThread();
-            buff.append("\nSession ").append(s.toString()).append(" on thread ").append(thread.getName())
-                    .append(" is waiting to lock ").append(lock.toString()).append(" while locking ");
-            int i = 0;
-            for (Table t : s.getLocks()) {
-                if (i++ > 0) {
-                    buff.append(", ");
-                }
-                buff.append(t.toString());
-            }
-            buff.append('.');
-        }
-        return buff.toString();
-    }
-
-    @Override
-    public ArrayList<ServerSession> checkDeadlock(ServerSession session, ServerSession clash,
-            Set<ServerSession> visited) {
-        // only one deadlock check at any given time
-        synchronized (StandardTable.class) {
-            if (clash == null) {
-                // verification is started
-                clash = session;
-                visited = new HashSet<>();
-            } else if (clash == session) {
-                // we found a circle where this session is involved
-                return new ArrayList<>(0);
-            } else if (visited.contains(session)) {
-                // we have already checked this session.
-                // there is a circle, but the sessions in the circle need to
-                // find it out themselves
-                return null;
-            }
-            visited.add(session);
-            ArrayList<ServerSession> error = null;
-            for (ServerSession s : sharedSessions.keySet()) {
-                if (s == session) {
-                    // it doesn't matter if we have locked the object already
-                    continue;
-                }
-                Table t = s.getWaitForLock();
-                if (t != null) {
-                    error = t.checkDeadlock(s, clash, visited);
-                    if (error != null) {
-                        error.add(session);
-                        break;
-                    }
-                }
-            }
-            return error;
-        }
-    }
-
     @Override
     public boolean isLockedExclusively() {
         return false; // lockExclusiveSession != null;
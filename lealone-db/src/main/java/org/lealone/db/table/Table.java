@@ -10,7 +10,6 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
 
 import org.lealone.common.exceptions.DbException;
 import org.lealone.common.trace.Trace;
@@ -1030,26 +1029,6 @@ public abstract class Table extends SchemaObjectBase {
         }
     }
 
-    /**
-     * Check if a deadlock occurred. This method is called recursively. There is
-     * a circle if the session to be tested has already being visited. If this
-     * session is part of the circle (if it is the clash session), the method
-     * must return an empty object array. Once a deadlock has been detected, the
-     * methods must add the session to the list. If this session is not part of
-     * the circle, or if no deadlock is detected, this method returns null.
-     *
-     * @param session the session to be tested for
-     * @param clash set with sessions already visited, and null when starting
-     *            verification
-     * @param visited set with sessions already visited, and null when starting
-     *            verification
-     * @return an object array with the sessions involved in the deadlock, or null
-     */
-    public ArrayList<ServerSession> checkDeadlock(ServerSession session, ServerSession clash,
-            Set<ServerSession> visited) {
-        return null;
-    }
-
     public boolean isPersistIndexes() {
         return persistIndexes;
     }
@@ -18,8 +18,8 @@
 package org.lealone.transaction.mvcc;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.Map;
 
 import org.lealone.common.exceptions.DbException;
@@ -39,6 +39,9 @@ import org.lealone.transaction.mvcc.log.RedoLogRecord;
 
 public class MVCCTransaction implements Transaction {
 
+    // 记录数达到这个值时按map分组并按key排序后批量提交
+    private static final int BATCH_COMMIT_THRESHOLD = 16;
+
     // 以下几个public或包级别的字段是在其他地方频繁使用的，
     // 为了使用方便或节省一点点性能开销就不通过getter方法访问了
     final MVCCTransactionEngine transactionEngine;
@@ -47,10 +50,22 @@ public class MVCCTransaction implements Transaction {
 
     String globalTransactionName;
     int logId;
-    LinkedList<TransactionalLogRecord> logRecords = new LinkedList<>();
+    // 事务开始时最后提交的时间戳，只能看到提交时间戳不大于它的版本
+    volatile long readTimestamp = Long.MAX_VALUE;
+    UndoLog logRecords = new UndoLog();
+    // key: mapName, value: 当前事务增加或删除的记录数，提交时加到MVCCTransactionEngine的计数器中
+    // 只在当前事务的线程中使用
+    private HashMap<String, RowCountDelta> rowCountDeltas;
 
     private final LogSyncService logSyncService;
 
+    // 当前事务写某一行失败时，持有这一行的事务，用来检测死锁
+    private volatile MVCCTransaction lockOwner;
+    // 当前事务写某一行失败时，这一行是否已经被在当前快照之后提交的事务修改过了
+    private boolean snapshotConflict;
+    // 等待当前事务结束的其他事务注册的回调，当前事务提交或回滚时调用
+    private ArrayList<Runnable> lockWaiters;
+
     private HashMap<String, Integer> savepoints;
     private Session session;
     private int status;
@@ -70,13 +85,63 @@ public class MVCCTransaction implements Transaction {
     }
 
     public void log(String mapName, Object key, TransactionalValue oldValue, TransactionalValue newValue) {
-        logRecords.add(new TransactionalLogRecord(mapName, key, oldValue, newValue));
+        TransactionalLogRecord r = new TransactionalLogRecord(mapName, key, oldValue, newValue);
+        r.clearCount = getClearCount(mapName);
+        logRecords.add(r);
         logId++;
+        addRowCountDelta(mapName, r.clearCount, r.getRowCountDelta());
     }
 
     public void logUndo() {
-        logRecords.removeLast();
+        TransactionalLogRecord r = logRecords.removeLast();
         --logId;
+        addRowCountDelta(r.mapName, r.clearCount, -r.getRowCountDelta());
+    }
+
+    private int getClearCount(String mapName) {
+        MVCCTransactionEngine.RowCount count = transactionEngine.getRowCount(mapName);
+        return count == null ? 0 : count.getClearCount();
+    }
+
+    // map被clear之后，之前的修改已经被清除了，它们的delta也不再算数
+    private void addRowCountDelta(String mapName, int clearCount, int delta) {
+        if (delta == 0)
+            return;
+        if (rowCountDeltas == null)
+            rowCountDeltas = new HashMap<>();
+        RowCountDelta d = rowCountDeltas.get(mapName);
+        if (d == null) {
+            d = new RowCountDelta();
+            d.clearCount = clearCount;
+            rowCountDeltas.put(mapName, d);
+        } else if (d.clearCount != clearCount) {
+            if (clearCount < d.clearCount)
+                return;
+            d.clearCount = clearCount;
+            d.delta = 0;
+        }
+        d.delta += delta;
+    }
+
+    long getRowCountDelta(String mapName, int clearCount) {
+        if (rowCountDeltas == null)
+            return 0;
+        RowCountDelta d = rowCountDeltas.get(mapName);
+        return d == null || d.clearCount != clearCount ? 0 : d.delta;
+    }
+
+    // 提交时由事务引擎调用，把这个事务的增量加到已提交记录数中
+    void addRowCountDeltas() {
+        if (rowCountDeltas != null) {
+            for (Map.Entry<String, RowCountDelta> e : rowCountDeltas.entrySet()) {
+                transactionEngine.addRowCount(e.getKey(), e.getValue().clearCount, e.getValue().delta);
+            }
+        }
+    }
+
+    private static class RowCountDelta {
+        long delta;
+        int clearCount;
     }
 
     @Override
@@ -160,28 +225,33 @@ public class MVCCTransaction implements Transaction {
     @Override
     public <K, V> MVCCTransactionMap<K, V> openMap(String name, StorageDataType keyType, StorageDataType valueType,
             Storage storage) {
-        return openMap(name, null, keyType, valueType, storage, false, null);
+        return openMap(name, null, keyType, valueType, storage, false, null, null);
     }
 
     @SuppressWarnings("unchecked")
     @Override
     public <K, V> MVCCTransactionMap<K, V> openMap(String name, String mapType, StorageDataType keyType,
-            StorageDataType valueType, Storage storage, boolean isShardingMode, String initReplicationEndpoints) {
+            StorageDataType valueType, Storage storage, boolean isShardingMode, String initReplicationEndpoints,
+            Map<String, String> mapParameters) {
         checkNotClosed();
         if (keyType == null)
             keyType = new ObjectDataType();
         if (valueType == null)
             valueType = new ObjectDataType();
         valueType = new TransactionalValueType(valueType);
-        Map<String, String> parameters = null;
+        Map<String, String> parameters = mapParameters;
         if (isShardingMode) {
-            parameters = new HashMap<>(2);
+            parameters = mapParameters == null ? new HashMap<>(2) : new HashMap<>(mapParameters);
             parameters.put("isShardingMode", "true");
             parameters.put("initReplicationEndpoints", initReplicationEndpoints);
         }
         StorageMap<K, TransactionalValue> map = storage.openMap(name, mapType, keyType, valueType, parameters);
         if (!map.isInMemory()) {
-            TransactionalLogRecord.redo(map, logSyncService.getAndRemovePendingRedoLog(map.getName()));
+            // redo的记录保存到map之前，不能回收它们所在的redo日志
+            if (logSyncService.hasPendingRedoLog(map.getName()))
+                transactionEngine.markRedone(map.getName());
+            // 一批批地redo，写到spill文件中的记录也是一批批读回来的
+            logSyncService.redo(map.getName(), keyValues -> TransactionalLogRecord.redo(map, keyValues));
         }
         transactionEngine.addMap((StorageMap<Object, TransactionalValue>) map);
         return createTransactionMap(map, isShardingMode);
@@ -271,23 +341,117 @@ public class MVCCTransaction implements Transaction {
         MVCCTransaction t = transactionEngine.removeTransaction(tid);
         if (t == null)
             return;
-        for (TransactionalLogRecord r : t.logRecords) {
-            r.commit(transactionEngine);
+        // 先标记为已提交，读操作遇到这个事务写的版本时按提交时间戳判断是否可见，不用等下面改写完
+        long commitTimestamp = transactionEngine.commitTransactionStatus(t);
+        long oldestReadTimestamp = transactionEngine.getOldestReadTimestamp();
+        if (t.logRecords.size() < BATCH_COMMIT_THRESHOLD) {
+            for (TransactionalLogRecord r : t.logRecords) {
+                r.commit(transactionEngine, commitTimestamp, oldestReadTimestamp);
+            }
+        } else {
+            TransactionalLogRecord.commit(transactionEngine, t.logRecords, commitTimestamp, oldestReadTimestamp);
         }
         t.endTransaction();
     }
 
     private void endTransaction() {
         savepoints = null;
-        logRecords = null;
-        status = STATUS_CLOSED;
+        rowCountDeltas = null;
+        lockOwner = null;
+        if (logRecords != null) {
+            logRecords.close();
+            logRecords = null;
+        }
+        ArrayList<Runnable> waiters;
+        synchronized (this) {
+            status = STATUS_CLOSED;
+            waiters = lockWaiters;
+            lockWaiters = null;
+        }
         transactionEngine.removeTransaction(transactionId);
+        transactionEngine.endTransactionStatus(transactionId);
+        // 已经改写完所有记录了，等待的事务重试时不会再冲突
+        if (waiters != null) {
+            for (Runnable waiter : waiters) {
+                waiter.run();
+            }
+        }
+    }
+
+    // 记下持有当前事务没能锁住的那一行的事务
+    void setLockOwner(long tid) {
+        lockOwner = transactionEngine.getTransaction(tid);
+    }
+
+    /**
+     * Check whether waiting for the transaction that holds the entry this
+     * transaction failed to lock would cause a deadlock.
+     *
+     * @throws IllegalStateException if there is a deadlock
+     */
+    void checkDeadlock() {
+        MVCCTransaction owner = lockOwner;
+        if (owner == null)
+            return;
+        // 沿着wait-for图往下找，如果回到了当前事务就是死锁
+        int maxDepth = transactionEngine.getCurrentTransactions().size();
+        for (MVCCTransaction t = owner; t != null && maxDepth-- >= 0; t = t.lockOwner) {
+            if (t == this) {
+                lockOwner = null;
+                throw DataUtils.newIllegalStateException(DataUtils.ERROR_TRANSACTION_DEADLOCK,
+                        "Transaction {0} and {1} are waiting for each other", transactionName, owner.transactionName);
+            }
+        }
+    }
+
+    void clearLockOwner() {
+        lockOwner = null;
+        snapshotConflict = false;
+    }
+
+    void setSnapshotConflict() {
+        snapshotConflict = true;
+    }
+
+    @Override
+    public boolean isSnapshotConflict() {
+        return snapshotConflict;
+    }
+
+    @Override
+    public void clearLockWait() {
+        lockOwner = null;
+    }
+
+    @Override
+    public boolean addLockWaitListener(Runnable listener) {
+        MVCCTransaction owner = lockOwner;
+        return owner != null && owner.addLockWaiter(listener);
+    }
+
+    private synchronized boolean addLockWaiter(Runnable listener) {
+        if (status == STATUS_CLOSED)
+            return false;
+        if (lockWaiters == null)
+            lockWaiters = new ArrayList<>(1);
+        lockWaiters.add(listener);
+        return true;
+    }
+
+    // 事务的第一条语句遇到先提交者胜的冲突时，重试前换成新快照就不会再冲突了，
+    // 后面的语句不能换，否则同一个事务中前后的语句看到的是不同的快照
+    @Override
+    public boolean refreshSnapshot() {
+        checkNotClosed();
+        snapshotConflict = false;
+        return transactionEngine.refreshReadTimestamp(this);
     }
 
     // 将当前一系列的事务操作日志转换成单条RedoLogRecord
     protected ByteBuffer logRecords2redoLogRecordBuffer() {
         if (logRecords.isEmpty())
             return null;
+        transactionEngine.addRedoLogChunkId(transactionId);
         try (DataBuffer writeBuffer = DataBuffer.create()) {
             for (TransactionalLogRecord r : logRecords) {
                 r.writeForRedo(writeBuffer, transactionEngine);
@@ -329,6 +493,8 @@ public class MVCCTransaction implements Transaction {
         }
         int i = savepointId.intValue();
         rollbackToSavepoint(i);
+        // 回滚到保存点之后不再等待之前没能锁住的行了
+        lockOwner = null;
 
         if (savepoints != null) {
             String[] names = new String[savepoints.size()];
@@ -353,6 +519,7 @@ public class MVCCTransaction implements Transaction {
         while (--logId >= toLogId) {
             TransactionalLogRecord r = logRecords.removeLast();
             r.rollback(transactionEngine);
+            addRowCountDelta(r.mapName, r.clearCount, -r.getRowCountDelta());
         }
     }
 
@@ -17,24 +17,35 @@
  */
 package org.lealone.transaction.mvcc;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
+import org.lealone.common.concurrent.DebuggableThreadPoolExecutor;
+import org.lealone.common.exceptions.DbException;
 import org.lealone.common.logging.Logger;
 import org.lealone.common.logging.LoggerFactory;
 import org.lealone.common.util.DataUtils;
 import org.lealone.common.util.DateTimeUtils;
 import org.lealone.common.util.ShutdownHookUtils;
+import org.lealone.net.NetEndpoint;
 import org.lealone.storage.Storage;
 import org.lealone.storage.StorageEventListener;
 import org.lealone.storage.StorageMap;
+import org.lealone.storage.StorageMapCursor;
+import org.lealone.storage.type.StorageDataType;
 import org.lealone.transaction.TransactionEngineBase;
 import org.lealone.transaction.TransactionMap;
 import org.lealone.transaction.mvcc.log.LogSyncService;
@@ -52,14 +63,26 @@ public class MVCCTransactionEngine extends TransactionEngineBase implements Stor
     private final ConcurrentHashMap<String, TransactionMap<?, ?>> tmaps = new ConcurrentHashMap<>();
     // key: mapName, value: memory size
     private final ConcurrentHashMap<String, AtomicInteger> estimatedMemory = new ConcurrentHashMap<>();
+    // key: mapName, value: 已提交的记录数，不包含未提交事务的修改
+    private final ConcurrentHashMap<String, RowCount> rowCounts = new ConcurrentHashMap<>();
+    // key: mapName, value: 提交后留下旧版本或删除标记的记录数，由VersionGcService回收
+    private final ConcurrentHashMap<String, AtomicLong> garbageCounts = new ConcurrentHashMap<>();
+    // key: mapName, value: 上次保存之后的修改所在的第一个redo日志chunk
+    private final ConcurrentHashMap<String, DirtyState> dirtyStates = new ConcurrentHashMap<>();
+    // key: transactionId, value: 写redo日志时的chunk id，事务结束时删除，
+    // 在这之前它的修改不一定在保存的map中，所以这个chunk及之后的chunk都不能回收
+    private final ConcurrentHashMap<Long, Integer> redoLogChunkIds = new ConcurrentHashMap<>();
     // key: transactionId
     private final ConcurrentSkipListMap<Long, MVCCTransaction> currentTransactions = new ConcurrentSkipListMap<>();
 
+    private final TransactionStatusTable statusTable = new TransactionStatusTable();
+
     private final AtomicLong lastTransactionId = new AtomicLong();
     private final AtomicBoolean init = new AtomicBoolean(false);
 
     private LogSyncService logSyncService;
     private CheckpointService checkpointService;
+    private VersionGcService versionGcService;
 
     public MVCCTransactionEngine() {
         super(NAME);
@@ -85,6 +108,59 @@ public class MVCCTransactionEngine extends TransactionEngineBase implements Stor
         return currentTransactions.get(tid);
     }
 
+    long getTransactionStatus(long tid) {
+        return statusTable.getStatus(tid);
+    }
+
+    // 提交时间戳和已提交记录数要一起改，VersionGcService重新数记录数时也是在statusTable上同步取快照和读计数器的，
+    // 在快照之前提交的事务已经算在计数器中，之后提交的事务只算在之后的增量中
+    long commitTransactionStatus(MVCCTransaction t) {
+        synchronized (statusTable) {
+            long commitTimestamp = statusTable.commit(t.transactionId);
+            t.addRowCountDeltas();
+            return commitTimestamp;
+        }
+    }
+
+    /**
+     * Get the read timestamp of the oldest active transaction.
+     *
+     * @return the read timestamp, or Long.MAX_VALUE if there is no active transaction
+     */
+    long getOldestReadTimestamp() {
+        long oldest = Long.MAX_VALUE;
+        for (MVCCTransaction t : currentTransactions.values()) {
+            long readTimestamp = t.readTimestamp;
+            if (readTimestamp < oldest)
+                oldest = readTimestamp;
+        }
+        return oldest;
+    }
+
+    void endTransactionStatus(long tid) {
+        statusTable.end(tid);
+        redoLogChunkIds.remove(tid);
+    }
+
+    // 在生成事务的redo日志记录之前调用
+    void addRedoLogChunkId(long tid) {
+        redoLogChunkIds.putIfAbsent(tid, logSyncService.getCurrentChunkId());
+    }
+
+    private int getOldestRedoLogChunkId() {
+        int oldest = DirtyState.NOT_DIRTY;
+        for (int chunkId : redoLogChunkIds.values()) {
+            if (chunkId < oldest)
+                oldest = chunkId;
+        }
+        return oldest;
+    }
+
+    // 启动时读到的redo日志记录都可能在这个map中，它们所在的chunk是最前面的那些chunk
+    void markRedone(String mapName) {
+        dirtyStates.computeIfAbsent(mapName, k -> new DirtyState()).markDirty(0);
+    }
+
     Collection<MVCCTransaction> getCurrentTransactions() {
         return currentTransactions.values();
     }
@@ -95,19 +171,90 @@ public class MVCCTransactionEngine extends TransactionEngineBase implements Stor
 
     void addMap(StorageMap<Object, TransactionalValue> map) {
         estimatedMemory.put(map.getName(), new AtomicInteger(0));
+        dirtyStates.computeIfAbsent(map.getName(), k -> new DirtyState());
+        boolean uncounted = false;
+        if (!rowCounts.containsKey(map.getName())) {
+            // 底层map中除了可见的记录，还可能有删除标记、旧版本和崩溃前留下的未提交记录，
+            // 打开map时不扫描，先用底层map的记录数，由VersionGcService在后台数过之后再修正，之后由提交的事务增减
+            garbageCounts.putIfAbsent(map.getName(), new AtomicLong());
+            uncounted = rowCounts.putIfAbsent(map.getName(), new RowCount(map.sizeAsLong())) == null;
+        }
         maps.put(map.getName(), map);
         map.getStorage().registerEventListener(this);
+        if (uncounted)
+            versionGcService.addUncountedMap(map.getName());
     }
 
     void removeMap(String mapName) {
         estimatedMemory.remove(mapName);
+        dirtyStates.remove(mapName);
+        rowCounts.remove(mapName);
+        garbageCounts.remove(mapName);
         maps.remove(mapName);
         RedoLogRecord r = RedoLogRecord.createDroppedMapRedoLogRecord(mapName);
         logSyncService.addAndMaybeWaitForSync(r);
     }
 
+    /**
+     * Get the number of committed rows of the map.
+     *
+     * @param mapName the map name
+     * @return the counter, or null if the map is not open
+     */
+    RowCount getRowCount(String mapName) {
+        return rowCounts.get(mapName);
+    }
+
+    void addRowCount(String mapName, int clearCount, long delta) {
+        RowCount count = rowCounts.get(mapName);
+        if (count != null)
+            count.add(clearCount, delta);
+    }
+
+    /**
+     * The number of committed rows of a map. Clearing the map removes the rows written
+     * before by all transactions, including the uncommitted ones, so the deltas of the
+     * transactions are only added if the map was not cleared since they were counted.
+     */
+    static class RowCount {
+
+        private volatile long count;
+        private volatile int clearCount;
+
+        RowCount(long count) {
+            this.count = count;
+        }
+
+        long get() {
+            return count;
+        }
+
+        int getClearCount() {
+            return clearCount;
+        }
+
+        synchronized void add(int clearCount, long delta) {
+            if (this.clearCount == clearCount)
+                count += delta;
+        }
+
+        synchronized void clear() {
+            clearCount++;
+            count = 0;
+        }
+    }
+
+    void addGarbage(String mapName, long count) {
+        AtomicLong counter = garbageCounts.get(mapName);
+        if (counter != null)
+            counter.addAndGet(count);
+    }
+
     void incrementEstimatedMemory(String mapName, int memory) {
         estimatedMemory.get(mapName).addAndGet(memory);
+        DirtyState state = dirtyStates.get(mapName);
+        if (state != null)
+            state.markDirty(logSyncService.getCurrentChunkId());
     }
 
     @Override
@@ -115,14 +262,24 @@ public class MVCCTransactionEngine extends TransactionEngineBase implements Stor
         if (!init.compareAndSet(false, true))
             return;
         checkpointService = new CheckpointService(config);
+        versionGcService = new VersionGcService(config);
         logSyncService = LogSyncService.create(config);
 
         long lastTransactionId = logSyncService.initPendingRedoLog();
         this.lastTransactionId.set(lastTransactionId);
+        // 关闭之前没有结束的事务已经不能再提交了，不能让它们的读时间戳挡住旧版本的回收
+        currentTransactions.clear();
+        // 重新初始化时之前打开的map都已经在关闭时保存过了，用的也是之前的redo日志
+        redoLogChunkIds.clear();
+        dirtyStates.clear();
+        for (String mapName : maps.keySet()) {
+            dirtyStates.put(mapName, new DirtyState());
+        }
 
         // 调用完initPendingRedoLog后再启动logSyncService
         logSyncService.start();
         checkpointService.start();
+        versionGcService.start();
 
         addShutdownHook();
     }
@@ -138,13 +295,44 @@ public class MVCCTransactionEngine extends TransactionEngineBase implements Stor
         if (!init.get()) {
             throw DataUtils.newIllegalStateException(DataUtils.ERROR_TRANSACTION_ILLEGAL_STATE, "Not initialized");
         }
-        long tid = getTransactionId(autoCommit, isShardingMode);
-        MVCCTransaction t = createTransaction(tid);
+        MVCCTransaction t;
+        // 跟commitTransactionStatus互斥，提交时计算getOldestReadTimestamp能看到所有已经取得读时间戳的事务；
+        // 分配事务ID和登记到statusTable也必须是原子的，否则保存map时算出的lowWaterTransactionId
+        // 可能比一个已经分配了ID但还没登记的事务的ID大，重启时这个事务的redo日志就被跳过了
+        synchronized (statusTable) {
+            long tid = getTransactionId(autoCommit, isShardingMode);
+            t = createTransaction(tid);
+            t.readTimestamp = statusTable.begin(tid);
+            currentTransactions.put(tid, t);
+        }
         t.setAutoCommit(autoCommit);
-        currentTransactions.put(tid, t);
         return t;
     }
 
+    // 读时间戳只会变大，跟beginTransaction一样在statusTable上同步，提交时算出的最老读时间戳不会漏掉它
+    boolean refreshReadTimestamp(MVCCTransaction t) {
+        synchronized (statusTable) {
+            long readTimestamp = statusTable.getLastCommitTimestamp();
+            if (readTimestamp == t.readTimestamp)
+                return false;
+            t.readTimestamp = readTimestamp;
+            return true;
+        }
+    }
+
+    /**
+     * Get the smallest id of the transactions whose changes may not be in a map that is
+     * saved now. All transactions with a smaller id have already ended, and all
+     * transactions that begin later get a larger id.
+     * 
+     * @return the low water transaction id
+     */
+    public long getLowWaterTransactionId() {
+        synchronized (statusTable) {
+            return Math.min(statusTable.getMinTransactionId(), lastTransactionId.get() + 1);
+        }
+    }
+
     protected MVCCTransaction createTransaction(long tid) {
         return new MVCCTransaction(this, tid);
     }
@@ -155,6 +343,11 @@ public class MVCCTransactionEngine extends TransactionEngineBase implements Stor
             return;
         if (logSyncService != null) {
             // logSyncService放在最后关闭，这样还能执行一次checkpoint，下次启动时能减少redo操作的次数
+            try {
+                versionGcService.close();
+                versionGcService.join();
+            } catch (Exception e) {
+            }
             try {
                 checkpointService.close();
                 checkpointService.join();
@@ -167,6 +360,7 @@ public class MVCCTransactionEngine extends TransactionEngineBase implements Stor
             }
             this.logSyncService = null;
             this.checkpointService = null;
+            this.versionGcService = null;
         }
     }
 
@@ -234,16 +428,59 @@ public class MVCCTransactionEngine extends TransactionEngineBase implements Stor
         checkpointService.checkpoint();
     }
 
+    /**
+     * Remove the versions that no active transaction can read any more.
+     * This is done by a background thread, this method runs it immediately.
+     */
+    public void collectGarbage() {
+        versionGcService.collectGarbage();
+    }
+
     @Override
     public void beforeClose(Storage storage) {
         checkpoint();
         for (String mapName : storage.getMapNames()) {
             estimatedMemory.remove(mapName);
+            dirtyStates.remove(mapName);
+            rowCounts.remove(mapName);
+            garbageCounts.remove(mapName);
             maps.remove(mapName);
             tmaps.remove(mapName);
         }
     }
 
+    // 记录map上次保存之后是否有新的修改，以及这些修改的redo日志从哪个chunk开始
+    private static class DirtyState {
+
+        static final int NOT_DIRTY = Integer.MAX_VALUE;
+
+        final AtomicInteger firstDirtyChunkId = new AtomicInteger(NOT_DIRTY);
+        volatile long firstDirtyTime;
+
+        void markDirty(int chunkId) {
+            while (true) {
+                int old = firstDirtyChunkId.get();
+                if (chunkId >= old)
+                    return;
+                if (firstDirtyChunkId.compareAndSet(old, chunkId)) {
+                    if (old == NOT_DIRTY)
+                        firstDirtyTime = System.currentTimeMillis();
+                    return;
+                }
+            }
+        }
+
+        boolean isDirty() {
+            return firstDirtyChunkId.get() != NOT_DIRTY;
+        }
+
+        int reset() {
+            return firstDirtyChunkId.getAndSet(NOT_DIRTY);
+        }
+    }
+
+    // 每个map单独保存，脏map各自从第一次修改开始计算checkpointPeriod，保存操作就分散在整个周期里，
+    // 保存完一个map就写一条MapCheckpoint记录，所有map都不再需要的redo日志chunk可以逐步回收
     private class CheckpointService extends Thread {
 
         private static final int DEFAULT_COMMITTED_DATA_CACHE_SIZE = 32 * 1024 * 1024; // 32M
@@ -253,8 +490,9 @@ public class MVCCTransactionEngine extends TransactionEngineBase implements Stor
         private final int committedDataCacheSize;
         private final long checkpointPeriod;
         private final long loopInterval;
+        private final int threads;
+        private ExecutorService executor;
 
-        private volatile long lastSavedAt = System.currentTimeMillis();
         private volatile boolean isClosed;
 
         CheckpointService(Map<String, String> config) {
@@ -273,6 +511,13 @@ public class MVCCTransactionEngine extends TransactionEngineBase implements Stor
             else
                 checkpointPeriod = DEFAULT_CHECKPOINT_PERIOD;
 
+            // 同时保存的map个数
+            v = config.get("checkpoint_service_threads");
+            if (v != null)
+                threads = Math.max(1, Integer.parseInt(v));
+            else
+                threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
             // 默认1分钟
             long loopInterval = DateTimeUtils.getLoopInterval(config, "checkpoint_service_loop_interval",
                     1 * 60 * 1000);
@@ -301,36 +546,337 @@ public class MVCCTransactionEngine extends TransactionEngineBase implements Stor
         private void checkpoint(boolean force) {
             if (!checking.compareAndSet(false, true))
                 return;
+            try {
+                boolean all = force || isClosed;
+                saveMaps(getMapsToSave(all));
+                if (all && !logSyncService.hasPendingRedoLog()) {
+                    // 所有map都保存了，之前的redo日志都不再需要
+                    logSyncService.checkpoint(nextEvenTransactionId());
+                } else {
+                    truncateRedoLog();
+                }
+            } finally {
+                checking.set(false);
+            }
+        }
+
+        private ArrayList<StorageMap<Object, TransactionalValue>> getMapsToSave(boolean all) {
+            ArrayList<StorageMap<Object, TransactionalValue>> toSave = new ArrayList<>();
+            ArrayList<StorageMap<Object, TransactionalValue>> others = new ArrayList<>();
             long now = System.currentTimeMillis();
-            boolean executeCheckpoint = force || isClosed || (lastSavedAt + checkpointPeriod < now);
+            long totalEstimatedMemory = 0;
+            for (StorageMap<Object, TransactionalValue> map : maps.values()) {
+                if (map.isClosed())
+                    continue;
+                DirtyState state = dirtyStates.get(map.getName());
+                if (state == null || !state.isDirty())
+                    continue;
+                if (all || state.firstDirtyTime + checkpointPeriod < now) {
+                    toSave.add(map);
+                } else {
+                    others.add(map);
+                    totalEstimatedMemory += getEstimatedMemory(map);
+                }
+            }
+            // 已经提交的数据占用的预估总内存大小大于阈值时，先保存占用内存最多的map
+            if (totalEstimatedMemory > committedDataCacheSize) {
+                others.sort((m1, m2) -> Long.compare(getEstimatedMemory(m2), getEstimatedMemory(m1)));
+                for (StorageMap<Object, TransactionalValue> map : others) {
+                    if (totalEstimatedMemory <= committedDataCacheSize)
+                        break;
+                    toSave.add(map);
+                    totalEstimatedMemory -= getEstimatedMemory(map);
+                }
+            }
+            return toSave;
+        }
+
+        private long getEstimatedMemory(StorageMap<Object, TransactionalValue> map) {
+            AtomicInteger counter = estimatedMemory.get(map.getName());
+            return counter == null ? 0 : counter.get();
+        }
+
+        private void saveMaps(ArrayList<StorageMap<Object, TransactionalValue>> toSave) {
+            if (threads <= 1 || toSave.size() <= 1) {
+                for (StorageMap<Object, TransactionalValue> map : toSave) {
+                    save(map);
+                }
+                return;
+            }
+            if (executor == null)
+                executor = DebuggableThreadPoolExecutor.createWithFixedPoolSize("CheckpointThread", threads);
+            ArrayList<Future<?>> futures = new ArrayList<>(toSave.size());
+            for (StorageMap<Object, TransactionalValue> map : toSave) {
+                futures.add(executor.submit(() -> save(map)));
+            }
+            try {
+                for (Future<?> f : futures) {
+                    f.get();
+                }
+            } catch (InterruptedException e) {
+                throw DbException.convert(e);
+            } catch (ExecutionException e) {
+                throw DbException.convert(e.getCause());
+            }
+        }
+
+        // 保存时不阻塞对这个map的读写，
+        // 在这里有可能把已提交和未提交事务的数据都保存了，
+        // 不过不要紧，如果在生成检查点之后系统崩溃了导致未提交事务不能正常完成，还有读时撤销机制保证数据完整性，
+        // 因为在保存未提交数据时，也同时保存了原来的数据，如果在读到未提交数据时发现了异常，就会进行撤销，
+        // 读时撤销机制在TransactionalValue类中实现。
+        private void save(StorageMap<Object, TransactionalValue> map) {
+            String mapName = map.getName();
+            DirtyState state = dirtyStates.get(mapName);
+            if (state == null || map.isClosed())
+                return;
+            AtomicInteger counter = estimatedMemory.get(mapName);
+            if (counter != null)
+                counter.set(0);
+            // 从这里开始的修改会重新标记map
+            int firstDirtyChunkId = state.reset();
+            // 事务ID比它小的事务在保存之前都已经结束了，它们的修改一定在保存的map中，
+            // 之后开始的事务的ID都不会比它小
+            long lowWaterTransactionId = getLowWaterTransactionId();
+            int oldestRedoLogChunkId = getOldestRedoLogChunkId();
+            try {
+                map.save();
+            } catch (RuntimeException e) {
+                state.markDirty(firstDirtyChunkId);
+                throw e;
+            }
+            // 还没有结束的事务的修改不一定在保存的map中，它们的redo日志还不能回收
+            state.markDirty(oldestRedoLogChunkId);
+            logSyncService.checkpointMap(mapName, lowWaterTransactionId, lastTransactionId.get());
+        }
 
-            // 如果上面的条件都不满足，那么再看看已经提交的数据占用的预估总内存大小是否大于阈值
-            if (!executeCheckpoint) {
-                long totalEstimatedMemory = 0;
-                for (AtomicInteger counter : estimatedMemory.values()) {
-                    totalEstimatedMemory += counter.get();
+        private void truncateRedoLog() {
+            // 还有map没有redo，启动时读到的redo日志都还不能回收
+            if (logSyncService.hasPendingRedoLog())
+                return;
+            int chunkId = logSyncService.getCurrentChunkId();
+            for (DirtyState state : dirtyStates.values()) {
+                chunkId = Math.min(chunkId, state.firstDirtyChunkId.get());
+            }
+            chunkId = Math.min(chunkId, getOldestRedoLogChunkId());
+            logSyncService.truncate(chunkId);
+        }
+
+        @Override
+        public void run() {
+            while (!isClosed) {
+                try {
+                    semaphore.tryAcquire(loopInterval, TimeUnit.MILLISECONDS);
+                    semaphore.drainPermits();
+                } catch (InterruptedException e) {
+                    throw new AssertionError();
+                }
+                try {
+                    checkpoint(false);
+                } catch (Exception e) {
+                    logger.error("Failed to execute checkpoint", e);
                 }
-                executeCheckpoint = totalEstimatedMemory > committedDataCacheSize;
             }
+            if (executor != null)
+                executor.shutdown();
+        }
+    }
+
+    // 增量回收已提交记录的旧版本、删除标记，以及崩溃前写入的未提交记录，
+    // 每一轮对每个有垃圾的map最多只检查versionGcBatchSize条记录，下一轮从上次停下的位置继续
+    private class VersionGcService extends Thread {
 
-            if (executeCheckpoint) {
+        private static final int DEFAULT_VERSION_GC_BATCH_SIZE = 1024;
+        private final AtomicBoolean collecting = new AtomicBoolean(false);
+        private final Semaphore semaphore = new Semaphore(1);
+        private final int batchSize;
+        private final long loopInterval;
+        // key: mapName, value: 上一轮停下时的key，没有key的map不在回收过程中
+        private final HashMap<String, Object> positions = new HashMap<>();
+        // 打开后还没有数过记录数的map
+        private final ConcurrentLinkedQueue<String> uncountedMaps = new ConcurrentLinkedQueue<>();
+
+        private volatile boolean isClosed;
+
+        VersionGcService(Map<String, String> config) {
+            setName(getClass().getSimpleName());
+            setDaemon(true);
+
+            String v = config.get("version_gc_batch_size");
+            if (v != null)
+                batchSize = Integer.parseInt(v);
+            else
+                batchSize = DEFAULT_VERSION_GC_BATCH_SIZE;
+
+            // 默认10秒
+            loopInterval = DateTimeUtils.getLoopInterval(config, "version_gc_service_loop_interval", 10 * 1000);
+        }
+
+        void close() {
+            if (!isClosed) {
+                isClosed = true;
+                semaphore.release();
+            }
+        }
+
+        void collectGarbage() {
+            if (isClosed)
+                return;
+            // 等正在执行的一轮结束，然后一直执行到所有map都检查完
+            while (!collecting.compareAndSet(false, true)) {
+                Thread.yield();
+            }
+            try {
+                countRows();
+                do {
+                    collect();
+                } while (!positions.isEmpty());
+            } finally {
+                collecting.set(false);
+            }
+        }
+
+        void addUncountedMap(String mapName) {
+            uncountedMaps.add(mapName);
+            semaphore.release();
+        }
+
+        // 用一个快照把map中可见的记录重新数一遍，跟打开map时估算的记录数的差加到计数器上，
+        // 同时把删除标记、旧版本和崩溃前留下的未提交记录算到要回收的记录数中
+        private void countRows() {
+            String mapName;
+            while ((mapName = uncountedMaps.poll()) != null) {
+                // 重新打开的map要从头回收，上次停下的位置是关闭之前的那个map的
+                positions.remove(mapName);
+                StorageMap<Object, TransactionalValue> map = maps.get(mapName);
+                RowCount count = rowCounts.get(mapName);
+                if (map == null || map.isClosed() || count == null)
+                    continue;
+                MVCCTransaction t;
+                long counted;
+                int clearCount;
+                synchronized (statusTable) {
+                    t = beginTransaction(true, false);
+                    counted = count.get();
+                    clearCount = count.getClearCount();
+                }
+                try {
+                    MVCCTransactionMap<Object, Object> tmap = new MVCCTransactionMap<>(t, map);
+                    long rows = 0;
+                    long garbage = 0;
+                    StorageMapCursor<Object, TransactionalValue> cursor = map.cursor(null);
+                    while (cursor.hasNext()) {
+                        Object key = cursor.next();
+                        TransactionalValue value = cursor.getValue();
+                        if (value.tid != 0 || value.value == null || value.getOldValue() != null)
+                            garbage++;
+                        value = tmap.getValue(key, value);
+                        if (value != null && value.value != null)
+                            rows++;
+                    }
+                    // 数的过程中map被clear了，计数器已经是准确的
+                    count.add(clearCount, rows - counted);
+                    addGarbage(mapName, garbage);
+                } finally {
+                    t.rollback();
+                }
+            }
+        }
+
+        private void collect() {
+            if (maps.isEmpty())
+                return;
+            // 用一个不做任何修改的事务给要删除的记录加锁，跟普通事务的写操作互斥
+            MVCCTransaction t = beginTransaction(true, false);
+            try {
+                long oldestReadTimestamp = getOldestReadTimestamp();
                 for (StorageMap<Object, TransactionalValue> map : maps.values()) {
                     if (map.isClosed())
                         continue;
+                    String mapName = map.getName();
+                    if (!positions.containsKey(mapName)) {
+                        AtomicLong counter = garbageCounts.get(mapName);
+                        if (counter == null || counter.getAndSet(0) <= 0)
+                            continue;
+                        positions.put(mapName, null);
+                    }
+                    collect(map, t, oldestReadTimestamp);
+                }
+                positions.keySet().retainAll(maps.keySet());
+            } finally {
+                t.rollback();
+            }
+        }
 
-                    // 在这里有可能把已提交和未提交事务的数据都保存了，
-                    // 不过不要紧，如果在生成检查点之后系统崩溃了导致未提交事务不能正常完成，还有读时撤销机制保证数据完整性，
-                    // 因为在保存未提交数据时，也同时保存了原来的数据，如果在读到未提交数据时发现了异常，就会进行撤销，
-                    // 读时撤销机制在TransactionalValue类中实现。
-                    AtomicInteger counter = estimatedMemory.get(map.getName());
-                    if (counter != null && counter.getAndSet(0) > 0) {
-                        map.save();
+        private void collect(StorageMap<Object, TransactionalValue> map, MVCCTransaction t,
+                long oldestReadTimestamp) {
+            String mapName = map.getName();
+            Object from = positions.get(mapName);
+            StorageDataType keyType = map.getKeyType();
+            StorageMapCursor<Object, TransactionalValue> cursor = map.cursor(from);
+            ArrayList<Object> keys = new ArrayList<>();
+            ArrayList<TransactionalValue> values = new ArrayList<>();
+            Object lastKey = from;
+            int count = 0;
+            boolean end = true;
+            while (cursor.hasNext()) {
+                Object key = cursor.next();
+                if (from != null && keyType.compare(key, from) == 0)
+                    continue;
+                if (count++ >= batchSize) {
+                    end = false;
+                    break;
+                }
+                lastKey = key;
+                TransactionalValue value = cursor.getValue();
+                if (value.tid != 0 || value.value == null || value.getOldValue() != null) {
+                    keys.add(key);
+                    values.add(value);
+                }
+            }
+            if (end)
+                positions.remove(mapName);
+            else
+                positions.put(mapName, lastKey);
+
+            int collected = 0, remaining = 0;
+            for (int i = 0, size = keys.size(); i < size; i++) {
+                Object key = keys.get(i);
+                TransactionalValue value = values.get(i);
+                if (value.tid != 0) {
+                    // 只撤销本节点崩溃前写入的未提交记录，同读时撤销
+                    if (value.getHostAndPort() == null
+                            || value.getHostAndPort().equals(NetEndpoint.getLocalTcpHostAndPort())) {
+                        if (getTransactionStatus(value.tid) == TransactionStatusTable.UNKNOWN
+                                && map.get(key) == value) {
+                            value.undo(map, key);
+                            collected++;
+                        }
+                    }
+                    continue;
+                }
+                TransactionalValue pruned = TransactionalValue.prune(value, oldestReadTimestamp);
+                if (pruned.value == null && pruned.getOldValue() == null
+                        && pruned.getCommitTimestamp() <= oldestReadTimestamp) {
+                    // 先换成当前事务的删除标记，其他事务不会再修改它，然后才能安全删除
+                    TransactionalValue lock = TransactionalValue.create(t, null, null, map.getValueType());
+                    if (map.replace(key, value, lock)) {
+                        map.remove(key);
+                        collected++;
                     }
+                } else {
+                    if (pruned != value && map.replace(key, value, pruned))
+                        collected++;
+                    // 还有活跃事务要读的旧版本，下次再回收
+                    if (pruned.getOldValue() != null || pruned.value == null)
+                        remaining++;
                 }
-                lastSavedAt = now;
-                logSyncService.checkpoint(nextEvenTransactionId());
             }
-            checking.set(false);
+            if (remaining > 0)
+                addGarbage(mapName, remaining);
+            // 让下一次检查点保存修改过的page
+            if (collected > 0)
+                incrementEstimatedMemory(mapName, collected);
         }
 
         @Override
@@ -342,10 +888,17 @@ public class MVCCTransactionEngine extends TransactionEngineBase implements Stor
                 } catch (InterruptedException e) {
                     throw new AssertionError();
                 }
+                if (isClosed)
+                    break;
+                if (!collecting.compareAndSet(false, true))
+                    continue;
                 try {
-                    checkpoint(false);
+                    countRows();
+                    collect();
                 } catch (Exception e) {
-                    logger.error("Failed to execute checkpoint", e);
+                    logger.error("Failed to collect garbage versions", e);
+                } finally {
+                    collecting.set(false);
                 }
             }
         }
@@ -6,7 +6,6 @@
 package org.lealone.transaction.mvcc;
 
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map.Entry;
 
@@ -15,10 +14,8 @@ import org.lealone.db.Session;
 import org.lealone.net.NetEndpoint;
 import org.lealone.storage.DelegatedStorageMap;
 import org.lealone.storage.PageKey;
-import org.lealone.storage.Storage;
 import org.lealone.storage.StorageMap;
 import org.lealone.storage.StorageMapCursor;
-import org.lealone.storage.type.ObjectDataType;
 import org.lealone.storage.type.StorageDataType;
 import org.lealone.transaction.Transaction;
 import org.lealone.transaction.TransactionMap;
@@ -116,6 +113,11 @@ public class MVCCTransactionMap<K, V> extends DelegatedStorageMap<K, V> implemen
             long tid = data.tid;
             if (tid == 0) {
                 // it is committed
+                if (data.getCommitTimestamp() > transaction.readTimestamp) {
+                    // 当前事务开始之后才提交的，读之前的版本
+                    data = data.getOldValue();
+                    continue;
+                }
                 return data;
             }
 
@@ -133,27 +135,25 @@ public class MVCCTransactionMap<K, V> extends DelegatedStorageMap<K, V> implemen
             if (v != null)
                 return v;
 
-            // 底层存储写入了未提交事务的脏数据，并且在事务提交前数据库崩溃了
-            if (!transaction.transactionEngine.containsTransaction(tid)) {
-                return data.undo(map, key);
-            }
-
-            // get the value before the uncommitted transaction
-            LinkedList<TransactionalLogRecord> d = transaction.transactionEngine.getTransaction(tid).logRecords;
-            if (d == null) {
-                // this entry should be committed or rolled back
-                // in the meantime (the transaction might still be open)
-                // or it might be changed again in a different
-                // transaction (possibly one with the same id)
-                data = map.get(key);
-                if (data != null && data.tid == tid) {
-                    // the transaction was not committed correctly
-                    throw DataUtils.newIllegalStateException(DataUtils.ERROR_TRANSACTION_CORRUPT,
-                            "The transaction log might be corrupt for key {0}", key);
-                }
+            long status = transaction.transactionEngine.getTransactionStatus(tid);
+            if (status == TransactionStatusTable.ACTIVE) {
+                // get the value before the uncommitted transaction
+                data = data.getOldValue();
+            } else if (status > 0) {
+                // 已经提交，只是还没有改写成已提交的值
+                if (status > transaction.readTimestamp)
+                    data = data.getOldValue();
+                else
+                    return data;
             } else {
-                TransactionalLogRecord r = d.get(data.getLogId());
-                data = r.oldValue;
+                // 事务刚刚结束，重新读一次
+                TransactionalValue current = map.get(key);
+                if (current != data) {
+                    data = current;
+                    continue;
+                }
+                // 底层存储写入了未提交事务的脏数据，并且在事务提交前数据库崩溃了
+                return data.undo(map, key);
             }
         }
     }
@@ -186,12 +186,14 @@ public class MVCCTransactionMap<K, V> extends DelegatedStorageMap<K, V> implemen
     @SuppressWarnings("unchecked")
     private V set(K key, V value) {
         transaction.checkNotClosed();
+        transaction.clearLockOwner();
         TransactionalValue oldValue = map.get(key);
         boolean ok = trySet(key, value, oldValue);
         if (ok) {
             oldValue = getValue(key, oldValue);
             return oldValue == null ? null : (V) oldValue.value;
         }
+        transaction.checkDeadlock();
         throw DataUtils.newIllegalStateException(DataUtils.ERROR_TRANSACTION_LOCKED, "Entry is locked");
     }
 
@@ -232,6 +234,8 @@ public class MVCCTransactionMap<K, V> extends DelegatedStorageMap<K, V> implemen
      * @return true if the value was set, false if there was a concurrent update
      */
     public boolean trySet(K key, V value) {
+        transaction.checkNotClosed();
+        transaction.clearLockOwner();
         TransactionalValue oldValue = map.get(key);
         return trySet(key, value, oldValue);
     }
@@ -245,6 +249,8 @@ public class MVCCTransactionMap<K, V> extends DelegatedStorageMap<K, V> implemen
             TransactionalValue old = map.putIfAbsent(key, newValue);
             if (old != null) {
                 transaction.logUndo();
+                if (old.tid == 0 && old.getCommitTimestamp() > transaction.readTimestamp)
+                    transaction.setSnapshotConflict();
                 return false;
             }
             return true;
@@ -252,12 +258,26 @@ public class MVCCTransactionMap<K, V> extends DelegatedStorageMap<K, V> implemen
         long tid = oldValue.tid;
         if (tid == 0) {
             // committed
+            if (oldValue.getCommitTimestamp() > transaction.readTimestamp) {
+                // 当前事务开始之后被其他事务修改过了，先提交者胜
+                transaction.setSnapshotConflict();
+                return false;
+            }
             transaction.log(mapName, key, oldValue, newValue);
             // the transaction is committed:
             // overwrite the value
             if (!map.replace(key, oldValue, newValue)) {
                 // somebody else was faster
                 transaction.logUndo();
+                // 也可能是版本回收线程刚刚去掉了旧版本，回收时所有事务都能读到的版本会把提交时间戳改成0，
+                // 所以只要还是同一个值并且当前事务能读到它，就说明没有被其他事务修改过，重试
+                TransactionalValue current = map.get(key);
+                if (current == null ? oldValue.value == null
+                        : current.tid == 0 && current.value == oldValue.value
+                                && current.getCommitTimestamp() <= transaction.readTimestamp)
+                    return trySet(key, value, current);
+                if (current != null && current.tid == 0 && current.getCommitTimestamp() > transaction.readTimestamp)
+                    transaction.setSnapshotConflict();
                 return false;
             }
             return true;
@@ -275,6 +295,7 @@ public class MVCCTransactionMap<K, V> extends DelegatedStorageMap<K, V> implemen
         }
 
         // the transaction is not yet committed
+        transaction.setLockOwner(tid);
         return false;
     }
 
@@ -390,68 +411,23 @@ public class MVCCTransactionMap<K, V> extends DelegatedStorageMap<K, V> implemen
 
     /**
      * Get the size of the map as seen by this transaction.
+     * This is the number of committed entries plus the entries added and minus
+     * the entries removed by this transaction.
      *
      * @return the size
      */
     @Override
     public long sizeAsLong() {
-        long sizeRaw = map.sizeAsLong();
-        long undoLogSize = 0;
-        for (MVCCTransaction t : transaction.transactionEngine.getCurrentTransactions()) {
-            undoLogSize += t.logRecords.size();
-        }
-        if (undoLogSize == 0) {
-            return sizeRaw;
-        }
-        if (undoLogSize > sizeRaw) {
-            // the undo log is larger than the map -
-            // count the entries of the map
-            long size = 0;
-            StorageMapCursor<K, TransactionalValue> cursor = map.cursor(null);
-            while (cursor.hasNext()) {
-                K key = cursor.next();
-                TransactionalValue data = cursor.getValue();
-                data = getValue(key, data);
-                if (data != null && data.value != null) {
-                    size++;
-                }
-            }
-            return size;
-        }
-        // the undo log is smaller than the map -
-        // scan the undo log and subtract invisible entries
-        // re-fetch in case any transaction was committed now
-        long size = map.sizeAsLong();
-        String mapName = getName();
-        Storage storage = map.getStorage();
-        String tmpMapName = storage.nextTemporaryMapName();
-        StorageMap<Object, Integer> temp = storage.openMap(tmpMapName, null, new ObjectDataType(), new ObjectDataType(),
-                null);
-        try {
-            for (MVCCTransaction t : transaction.transactionEngine.getCurrentTransactions()) {
-                LinkedList<TransactionalLogRecord> records = t.logRecords;
-                for (TransactionalLogRecord r : records) {
-                    String m = r.mapName;
-                    if (!mapName.equals(m)) {
-                        // a different map - ignore
-                        continue;
-                    }
-                    @SuppressWarnings("unchecked")
-                    K key = (K) r.key;
-                    if (get(key) == null) {
-                        Integer old = temp.put(key, 1);
-                        // count each key only once (there might be multiple
-                        // changes for the same key)
-                        if (old == null) {
-                            size--;
-                        }
-                    }
-                }
-            }
-        } finally {
-            temp.remove();
-        }
-        return size;
+        MVCCTransactionEngine.RowCount count = transaction.transactionEngine.getRowCount(getName());
+        if (count == null) // map没有在事务引擎中注册过
+            return map.sizeAsLong();
+        return count.get() + transaction.getRowCountDelta(getName(), count.getClearCount());
+    }
+
+    @Override
+    public long committedSize() {
+        MVCCTransactionEngine.RowCount count = transaction.transactionEngine.getRowCount(getName());
+        return count == null ? map.sizeAsLong() : count.get();
     }
 
     @Override
@@ -510,6 +486,10 @@ public class MVCCTransactionMap<K, V> extends DelegatedStorageMap<K, V> implemen
     public void clear() {
         // TODO truncate transactionally?
         map.clear();
+        // 所有事务在clear之前的修改都没有了，它们的delta在提交时也不会再加上来
+        MVCCTransactionEngine.RowCount count = transaction.transactionEngine.getRowCount(getName());
+        if (count != null)
+            count.clear();
     }
 
     @Override
@@ -554,6 +534,11 @@ public class MVCCTransactionMap<K, V> extends DelegatedStorageMap<K, V> implemen
         DataUtils.checkArgument(value != null, "The value may not be null");
         TransactionalValue newValue = TransactionalValue.createCommitted(value);
         TransactionalValue oldValue = map.put(key, newValue);
+        if (oldValue == null || oldValue.value == null) {
+            MVCCTransactionEngine.RowCount count = transaction.transactionEngine.getRowCount(getName());
+            if (count != null)
+                count.add(count.getClearCount(), 1);
+        }
         return (V) (oldValue == null ? null : oldValue.value);
     }
 
@@ -0,0 +1,126 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.transaction.mvcc;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The status of the transactions whose versions may still be found in the maps.
+ * <p>
+ * A reader that finds a version of another transaction only needs the status of
+ * that transaction: if it is active, the reader continues with the old value stored
+ * in the version, if it is committed, the version is visible when the commit
+ * timestamp is not larger than the read timestamp of the reader.
+ *
+ * @author zhh
+ */
+class TransactionStatusTable {
+
+    /**
+     * The transaction is active, or it is being rolled back.
+     */
+    static final long ACTIVE = 0;
+
+    /**
+     * The transaction is not in the table. It ended and all its versions were
+     * rewritten, or the version was written before a crash.
+     */
+    static final long UNKNOWN = -1;
+
+    // key: transactionId, value: ACTIVE或者大于0的提交时间戳
+    private final ConcurrentHashMap<Long, Long> statusMap = new ConcurrentHashMap<>();
+    // 提交时间戳会跟着版本写到硬盘，所以每次启动都从当前时间开始，
+    // 保证比之前写到硬盘的时间戳都大，重启前提交的版本对所有事务都可见
+    // (左移20位，每毫秒可以分配一百多万个时间戳)
+    private final AtomicLong lastCommitTimestamp = new AtomicLong(System.currentTimeMillis() << 20);
+
+    /**
+     * Mark the transaction as active.
+     *
+     * @param tid the transaction id
+     * @return the read timestamp of the transaction
+     */
+    synchronized long begin(long tid) {
+        statusMap.put(tid, ACTIVE);
+        return lastCommitTimestamp.get();
+    }
+
+    /**
+     * Mark the transaction as committed. It stays in the table until its versions
+     * were rewritten as committed values.
+     *
+     * @param tid the transaction id
+     * @return the commit timestamp
+     */
+    synchronized long commit(long tid) {
+        long commitTimestamp = lastCommitTimestamp.incrementAndGet();
+        statusMap.put(tid, commitTimestamp);
+        return commitTimestamp;
+    }
+
+    void end(long tid) {
+        statusMap.remove(tid);
+    }
+
+    /**
+     * Get the status of the transaction.
+     *
+     * @param tid the transaction id
+     * @return ACTIVE, UNKNOWN, or the commit timestamp
+     */
+    long getStatus(long tid) {
+        Long status = statusMap.get(tid);
+        return status == null ? UNKNOWN : status.longValue();
+    }
+
+    /**
+     * Get the smallest id of the transactions in the table.
+     *
+     * @return the transaction id, or Long.MAX_VALUE if the table is empty
+     */
+    long getMinTransactionId() {
+        long min = Long.MAX_VALUE;
+        for (Long tid : statusMap.keySet()) {
+            if (tid.longValue() < min)
+                min = tid.longValue();
+        }
+        return min;
+    }
+
+    /**
+     * Get the ids of the transactions that are committed, but whose versions
+     * were not all rewritten yet.
+     *
+     * @return the transaction ids
+     */
+    ArrayList<Long> getCommittedTransactionIds() {
+        ArrayList<Long> list = new ArrayList<>();
+        for (Map.Entry<Long, Long> e : statusMap.entrySet()) {
+            if (e.getValue().longValue() > ACTIVE)
+                list.add(e.getKey());
+        }
+        return list;
+    }
+
+    long getLastCommitTimestamp() {
+        return lastCommitTimestamp.get();
+    }
+}
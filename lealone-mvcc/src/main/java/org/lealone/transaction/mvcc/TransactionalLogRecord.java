@@ -19,9 +19,12 @@ package org.lealone.transaction.mvcc;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.lealone.common.util.DataUtils;
 import org.lealone.db.DataBuffer;
 import org.lealone.db.value.ValueString;
 import org.lealone.storage.StorageMap;
@@ -33,6 +36,7 @@ public class TransactionalLogRecord {
     Object key; // 没有用final，在MVCCTransaction.replicationPrepareCommit方法那里有特殊用途
     final TransactionalValue oldValue;
     final TransactionalValue newValue;
+    int clearCount; // 写这条记录时map被clear过的次数
 
     public TransactionalLogRecord(String mapName, Object key, TransactionalValue oldValue,
             TransactionalValue newValue) {
@@ -42,8 +46,17 @@ public class TransactionalLogRecord {
         this.newValue = newValue;
     }
 
+    // 这条记录让当前事务看到的记录数变化了多少(1、0或-1)
+    int getRowCountDelta() {
+        int delta = newValue.value != null ? 1 : 0;
+        if (oldValue != null && oldValue.value != null)
+            delta--;
+        return delta;
+    }
+
     // 调用这个方法时事务已经提交，redo日志已经写完，这里只是在内存中更新到最新值
-    public void commit(MVCCTransactionEngine transactionEngine) {
+    // 如果还有事务的快照早于commitTimestamp，提交前的版本要保留下来给它们读
+    public void commit(MVCCTransactionEngine transactionEngine, long commitTimestamp, long oldestReadTimestamp) {
         StorageMap<Object, TransactionalValue> map = transactionEngine.getMap(mapName);
         if (map == null) {
             // map was later removed
@@ -51,12 +64,67 @@ public class TransactionalLogRecord {
             TransactionalValue value = map.get(key);
             if (value == null) {
                 // nothing to do
-            } else if (value.value == null) {
-                // remove the value
-                map.remove(key);
             } else {
-                map.put(key, TransactionalValue.createCommitted(value.value));
+                TransactionalValue committed = TransactionalValue.createCommitted(value.value, commitTimestamp,
+                        value.getOldValue(), oldestReadTimestamp);
+                if (committed == null) {
+                    // remove the value
+                    map.remove(key);
+                } else {
+                    map.put(key, committed);
+                    if (committed.getOldValue() != null || committed.value == null)
+                        transactionEngine.addGarbage(mapName, 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Commit the records in batches: the keys are grouped by map and sorted,
+     * so that each map is updated in one pass.
+     *
+     * @param transactionEngine the transaction engine
+     * @param records the records of the committed transaction
+     * @param commitTimestamp the commit timestamp of the transaction
+     * @param oldestReadTimestamp the read timestamp of the oldest active transaction
+     */
+    public static void commit(MVCCTransactionEngine transactionEngine, UndoLog records,
+            long commitTimestamp, long oldestReadTimestamp) {
+        HashMap<String, ArrayList<Object>> mapKeys = new HashMap<>();
+        for (TransactionalLogRecord r : records) {
+            ArrayList<Object> keys = mapKeys.get(r.mapName);
+            if (keys == null) {
+                keys = new ArrayList<>();
+                mapKeys.put(r.mapName, keys);
+            }
+            keys.add(r.key);
+        }
+        for (Map.Entry<String, ArrayList<Object>> e : mapKeys.entrySet()) {
+            StorageMap<Object, TransactionalValue> map = transactionEngine.getMap(e.getKey());
+            if (map == null)
+                continue; // map was later removed
+            StorageDataType keyType = map.getKeyType();
+            ArrayList<Object> keys = e.getValue();
+            keys.sort(keyType::compare);
+            // 同一个key被修改多次时只需要提交一次
+            ArrayList<Object> uniqueKeys = new ArrayList<>(keys.size());
+            Object last = null;
+            for (Object key : keys) {
+                if (uniqueKeys.isEmpty() || keyType.compare(last, key) != 0)
+                    uniqueKeys.add(key);
+                last = key;
             }
+            int[] garbage = new int[1];
+            // 返回null时删除
+            map.updateAll(uniqueKeys, (k, value) -> {
+                TransactionalValue committed = TransactionalValue.createCommitted(value.value, commitTimestamp,
+                        value.getOldValue(), oldestReadTimestamp);
+                if (committed != null && (committed.getOldValue() != null || committed.value == null))
+                    garbage[0]++;
+                return committed;
+            });
+            if (garbage[0] > 0)
+                transactionEngine.addGarbage(e.getKey(), garbage[0]);
         }
     }
 
@@ -84,7 +152,7 @@ public class TransactionalLogRecord {
         }
         int lastPosition = writeBuffer.position();
 
-        ValueString.type.write(writeBuffer, mapName);
+        writeBuffer.putVarInt(transactionEngine.getLogSyncService().getMapId(mapName));
         int keyValueLengthStartPos = writeBuffer.position();
         writeBuffer.putInt(0);
 
@@ -102,36 +170,67 @@ public class TransactionalLogRecord {
         transactionEngine.incrementEstimatedMemory(mapName, memory);
     }
 
-    // 这个方法在数据库初始化读取redo日志时调用，此时还没有打开底层存储的map，所以只预先解析出mapName和keyValue字节数组
-    public static void readForRedo(ByteBuffer buff, Map<String, List<ByteBuffer>> pendingRedoLog) {
-        String mapName = ValueString.type.read(buff);
+    // 这两个方法在数据库初始化读取redo日志时调用，此时还没有打开底层存储的map，所以只预先解析出mapName和keyValue字节数组
+    // mapNames为null时是老格式的日志，记录中直接写的是mapName，返回这条记录所属的mapName
+    public static String readMapNameForRedo(ByteBuffer buff, Map<Integer, String> mapNames) {
+        if (mapNames == null)
+            return ValueString.type.read(buff);
+        int mapId = DataUtils.readVarInt(buff);
+        String mapName = mapNames.get(mapId);
+        if (mapName == null)
+            throw DataUtils.newIllegalStateException(DataUtils.ERROR_FILE_CORRUPT, "Unknown map id {0}", mapId);
+        return mapName;
+    }
 
-        List<ByteBuffer> keyValues = pendingRedoLog.get(mapName);
-        if (keyValues == null) {
-            keyValues = new ArrayList<>();
-            pendingRedoLog.put(mapName, keyValues);
-        }
+    public static ByteBuffer readKeyValueForRedo(ByteBuffer buff) {
         int len = buff.getInt();
         byte[] keyValue = new byte[len];
         buff.get(keyValue);
-        keyValues.add(ByteBuffer.wrap(keyValue));
+        return ByteBuffer.wrap(keyValue);
     }
 
+    // 一次排序的key/value个数
+    public static final int REDO_BATCH_SIZE = 64 * 1024;
+
     // 第一次打开底层存储的map时调用这个方法，重新执行一次上次已经成功并且在检查点之后的事务操作
+    // 每一批先按key排序，同一个key只保留最后一次操作，然后按key的顺序写入，相邻的key通常在同一个page中
     @SuppressWarnings("unchecked")
     public static <K> void redo(StorageMap<K, TransactionalValue> map, List<ByteBuffer> pendingKeyValues) {
         if (pendingKeyValues != null && !pendingKeyValues.isEmpty()) {
             StorageDataType kt = map.getKeyType();
             StorageDataType vt = ((TransactionalValueType) map.getValueType()).valueType;
-            for (ByteBuffer kv : pendingKeyValues) {
-                K key = (K) kt.read(kv);
-                if (kv.get() == 0)
-                    map.remove(key);
-                else {
-                    Object value = vt.read(kv);
-                    map.put(key, TransactionalValue.createCommitted(value));
+            int size = pendingKeyValues.size();
+            for (int start = 0; start < size; start += REDO_BATCH_SIZE) {
+                int end = Math.min(size, start + REDO_BATCH_SIZE);
+                RedoKeyValue[] batch = new RedoKeyValue[end - start];
+                for (int i = start; i < end; i++) {
+                    ByteBuffer kv = pendingKeyValues.get(i);
+                    Object key = kt.read(kv);
+                    Object value = kv.get() == 0 ? null : vt.read(kv);
+                    batch[i - start] = new RedoKeyValue(key, value);
+                }
+                // 稳定排序，相同key的操作保持原来的顺序
+                Arrays.sort(batch, (kv1, kv2) -> kt.compare(kv1.key, kv2.key));
+                for (int i = 0, len = batch.length; i < len; i++) {
+                    if (i + 1 < len && kt.compare(batch[i].key, batch[i + 1].key) == 0)
+                        continue;
+                    K key = (K) batch[i].key;
+                    if (batch[i].value == null)
+                        map.remove(key);
+                    else
+                        map.put(key, TransactionalValue.createCommitted(batch[i].value));
                 }
             }
         }
     }
+
+    private static class RedoKeyValue {
+        final Object key;
+        final Object value; // null表示删除
+
+        RedoKeyValue(Object key, Object value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
 }
@@ -28,6 +28,10 @@ import org.lealone.storage.type.StorageDataType;
 
 public class TransactionalValue {
 
+    // write时value前面的标记字节
+    private static final byte HAS_VALUE = 1;
+    private static final byte HAS_COMMIT_TIMESTAMP = 2;
+
     public final long tid; // 如果是0代表事务已经提交
     public final Object value;
 
@@ -36,6 +40,24 @@ public class TransactionalValue {
         this.value = value;
     }
 
+    /**
+     * Get the value before the transaction that wrote this version.
+     *
+     * @return the old value, or null for committed values and inserted entries
+     */
+    public TransactionalValue getOldValue() {
+        return null;
+    }
+
+    /**
+     * Get the commit timestamp of this version.
+     *
+     * @return the commit timestamp, or 0 if the version is visible to all transactions
+     */
+    public long getCommitTimestamp() {
+        return 0;
+    }
+
     public int getLogId() {
         return 0;
     }
@@ -67,7 +89,7 @@ public class TransactionalValue {
         if (value == null) {
             buff.put((byte) 0);
         } else {
-            buff.put((byte) 1);
+            buff.put(HAS_VALUE);
             valueType.write(buff, value);
         }
     }
@@ -75,11 +97,19 @@ public class TransactionalValue {
     public static TransactionalValue read(ByteBuffer buff, StorageDataType valueType, StorageDataType oldValueType) {
         long tid = DataUtils.readVarLong(buff);
         Object value = null;
-        if (buff.get() == 1) {
+        byte flags = buff.get();
+        if ((flags & HAS_VALUE) != 0) {
             value = valueType.read(buff);
         }
         if (tid == 0) {
-            return createCommitted(value);
+            if ((flags & HAS_COMMIT_TIMESTAMP) == 0)
+                return createCommitted(value);
+            long commitTimestamp = DataUtils.readVarLong(buff);
+            TransactionalValue previous = null;
+            if (buff.get() == 1) {
+                previous = read(buff, valueType, oldValueType);
+            }
+            return new Committed(value, commitTimestamp, previous);
         } else {
             return NotCommitted.read(tid, value, buff, oldValueType);
         }
@@ -91,18 +121,98 @@ public class TransactionalValue {
     }
 
     public static TransactionalValue createCommitted(Object value) {
-        return new Committed(value);
+        return new Committed(value, 0, null);
     }
 
+    /**
+     * Create the committed version of a value. The previous version is only kept
+     * if a transaction that started before the commit may still read it.
+     *
+     * @param value the value, null if the entry was deleted
+     * @param commitTimestamp the commit timestamp
+     * @param previous the version before the transaction
+     * @param oldestReadTimestamp the read timestamp of the oldest active transaction
+     * @return the committed version, or null if the entry can be removed
+     */
+    public static TransactionalValue createCommitted(Object value, long commitTimestamp,
+            TransactionalValue previous, long oldestReadTimestamp) {
+        if (commitTimestamp <= oldestReadTimestamp) {
+            // 所有活跃事务都能看到这个版本，旧版本不再需要了
+            previous = null;
+        } else if (previous != null) {
+            previous = prune(previous, oldestReadTimestamp);
+        }
+        if (value == null && previous == null)
+            return null;
+        // 所有活跃事务都能看到的版本不用再记提交时间戳，写到硬盘时也更紧凑
+        if (commitTimestamp <= oldestReadTimestamp)
+            commitTimestamp = 0;
+        return new Committed(value, commitTimestamp, previous);
+    }
+
+    // 去掉所有活跃事务都不会再读到的旧版本
+    static TransactionalValue prune(TransactionalValue v, long oldestReadTimestamp) {
+        TransactionalValue previous = v.getOldValue();
+        if (previous == null || !(v instanceof Committed))
+            return v;
+        if (v.getCommitTimestamp() <= oldestReadTimestamp)
+            return new Committed(v.value, 0, null);
+        TransactionalValue newPrevious = prune(previous, oldestReadTimestamp);
+        if (newPrevious == previous)
+            return v;
+        return new Committed(v.value, v.getCommitTimestamp(), newPrevious);
+    }
+
+    // 已提交的版本，还有活跃事务可能读不到它时，commitTimestamp和previous也要写到硬盘，
+    // 否则page被保存并从内存中淘汰后再读回来，旧版本就丢了，当前版本也会变成所有事务可见
     static class Committed extends TransactionalValue {
-        Committed(Object value) {
+
+        private final long commitTimestamp;
+        private final TransactionalValue previous;
+
+        Committed(Object value, long commitTimestamp, TransactionalValue previous) {
             super(0, value);
+            this.commitTimestamp = commitTimestamp;
+            this.previous = previous;
+        }
+
+        @Override
+        public TransactionalValue getOldValue() {
+            return previous;
+        }
+
+        @Override
+        public long getCommitTimestamp() {
+            return commitTimestamp;
+        }
+
+        @Override
+        public void write(DataBuffer buff, StorageDataType valueType) {
+            if (commitTimestamp == 0 && previous == null) {
+                super.write(buff, valueType);
+                return;
+            }
+            buff.putVarLong(0);
+            if (value == null) {
+                buff.put(HAS_COMMIT_TIMESTAMP);
+            } else {
+                buff.put((byte) (HAS_VALUE | HAS_COMMIT_TIMESTAMP));
+                valueType.write(buff, value);
+            }
+            buff.putVarLong(commitTimestamp);
+            if (previous == null) {
+                buff.put((byte) 0);
+            } else {
+                buff.put((byte) 1);
+                previous.write(buff, valueType);
+            }
         }
 
         @Override
         public String toString() {
-            StringBuilder buff = new StringBuilder("Committed[ value = ");
-            buff.append(value).append(" ]");
+            StringBuilder buff = new StringBuilder("Committed[ ");
+            buff.append("commitTimestamp = ").append(commitTimestamp);
+            buff.append(", value = ").append(value).append(" ]");
             return buff.toString();
         }
     }
@@ -149,6 +259,11 @@ public class TransactionalValue {
             return logId;
         }
 
+        @Override
+        public TransactionalValue getOldValue() {
+            return oldValue;
+        }
+
         @Override
         public String getHostAndPort() {
             return hostAndPort;
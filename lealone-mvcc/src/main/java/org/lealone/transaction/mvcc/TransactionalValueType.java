@@ -52,8 +52,15 @@ public class TransactionalValueType implements StorageDataType {
         long comp = a.tid - b.tid;
         if (comp == 0) {
             comp = a.getLogId() - b.getLogId();
-            if (comp == 0)
-                return valueType.compare(a.value, b.value);
+            if (comp == 0) {
+                // 值相同但提交时间戳不同的已提交版本也不能当成同一个版本
+                comp = a.getCommitTimestamp() - b.getCommitTimestamp();
+                if (comp == 0) {
+                    if (a.value == null || b.value == null)
+                        return a.value == b.value ? 0 : (a.value == null ? -1 : 1);
+                    return valueType.compare(a.value, b.value);
+                }
+            }
         }
         return Long.signum(comp);
     }
@@ -0,0 +1,171 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.transaction.mvcc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The log records of a transaction, in the order they were written.
+ * <p>
+ * The records are kept in fixed size chunks, so that appending does not copy
+ * the records written before, and the record of a log id can be found in
+ * constant time. Most transactions only write a few records, so the first chunk
+ * starts small and grows to the full size when it is full. Full size chunks are
+ * reused through a pool after the transaction ended. A transaction often ends in
+ * another thread than the one that wrote it, so the pool is shared by all threads.
+ *
+ * @author zhh
+ */
+public class UndoLog implements Iterable<TransactionalLogRecord> {
+
+    private static final int CHUNK_SHIFT = 7;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT; // 每个chunk可以放128条记录
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    // 第一个chunk开始时只放8条记录，写满了再换成128条的
+    private static final int FIRST_CHUNK_SIZE = 8;
+
+    // 所有线程共用的chunk池最多缓存的chunk个数
+    private static final int MAX_POOLED_CHUNKS = 64;
+
+    private static final ConcurrentLinkedQueue<TransactionalLogRecord[]> chunkPool = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooledChunks = new AtomicInteger(); // 不要求精确
+
+    private final ArrayList<TransactionalLogRecord[]> chunks = new ArrayList<>(1);
+    private int size;
+
+    public void add(TransactionalLogRecord r) {
+        int chunkIndex = size >>> CHUNK_SHIFT;
+        int index = size & CHUNK_MASK;
+        TransactionalLogRecord[] chunk;
+        if (chunkIndex == chunks.size()) {
+            chunk = chunkIndex == 0 ? new TransactionalLogRecord[FIRST_CHUNK_SIZE] : allocateChunk();
+            chunks.add(chunk);
+        } else {
+            chunk = chunks.get(chunkIndex);
+            if (index == chunk.length) {
+                // 第一个chunk写满了，换成完整大小的chunk
+                TransactionalLogRecord[] newChunk = allocateChunk();
+                System.arraycopy(chunk, 0, newChunk, 0, index);
+                chunks.set(chunkIndex, newChunk);
+                chunk = newChunk;
+            }
+        }
+        chunk[index] = r;
+        size++;
+    }
+
+    /**
+     * Get the record at the given index. The index of a record is its log id minus 1.
+     *
+     * @param index the index
+     * @return the record
+     */
+    public TransactionalLogRecord get(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        return chunks.get(index >>> CHUNK_SHIFT)[index & CHUNK_MASK];
+    }
+
+    public TransactionalLogRecord getLast() {
+        if (size == 0)
+            throw new NoSuchElementException();
+        return get(size - 1);
+    }
+
+    public TransactionalLogRecord removeLast() {
+        if (size == 0)
+            throw new NoSuchElementException();
+        int index = --size;
+        TransactionalLogRecord[] chunk = chunks.get(index >>> CHUNK_SHIFT);
+        TransactionalLogRecord r = chunk[index & CHUNK_MASK];
+        chunk[index & CHUNK_MASK] = null;
+        // 最后一个chunk空了，还给chunk池，回滚后再写入时可以再用
+        if ((index & CHUNK_MASK) == 0) {
+            chunks.remove(chunks.size() - 1);
+            releaseChunk(chunk);
+        }
+        return r;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Clear the log and give the chunks back to the pool.
+     */
+    public void close() {
+        for (int i = 0, len = chunks.size(); i < len; i++) {
+            TransactionalLogRecord[] chunk = chunks.get(i);
+            if (chunk.length != CHUNK_SIZE)
+                continue;
+            // 最后一个chunk可能没写满
+            Arrays.fill(chunk, 0, i == len - 1 ? ((size - 1) & CHUNK_MASK) + 1 : CHUNK_SIZE, null);
+            releaseChunk(chunk);
+        }
+        chunks.clear();
+        size = 0;
+    }
+
+    @Override
+    public Iterator<TransactionalLogRecord> iterator() {
+        return new Iterator<TransactionalLogRecord>() {
+            private int index;
+
+            @Override
+            public boolean hasNext() {
+                return index < size;
+            }
+
+            @Override
+            public TransactionalLogRecord next() {
+                if (index >= size)
+                    throw new NoSuchElementException();
+                return chunks.get(index >>> CHUNK_SHIFT)[index++ & CHUNK_MASK];
+            }
+        };
+    }
+
+    private static TransactionalLogRecord[] allocateChunk() {
+        TransactionalLogRecord[] chunk = chunkPool.poll();
+        if (chunk == null)
+            return new TransactionalLogRecord[CHUNK_SIZE];
+        pooledChunks.decrementAndGet();
+        return chunk;
+    }
+
+    private static void releaseChunk(TransactionalLogRecord[] chunk) {
+        // 第一个chunk还没有换成完整大小时不缓存
+        if (chunk.length != CHUNK_SIZE)
+            return;
+        if (pooledChunks.incrementAndGet() <= MAX_POOLED_CHUNKS)
+            chunkPool.offer(chunk);
+        else
+            pooledChunks.decrementAndGet();
+    }
+}
@@ -29,15 +29,18 @@ class InstantLogSyncService extends LogSyncService {
     InstantLogSyncService(Map<String, String> config) {
         syncIntervalMillis = DateTimeUtils.getLoopInterval(config, "log_sync_service_loop_interval",
                 DEFAULT_LOG_SYNC_INTERVAL);
+        // 单位是微秒，sync前等待更多的事务提交，用延迟换取更少的sync次数
+        if (config.containsKey("log_sync_batch_delay"))
+            batchDelayNanos = Long.parseLong(config.get("log_sync_batch_delay")) * 1000;
     }
 
     @Override
     public void maybeWaitForSync(RedoLogRecord r) {
         haveWork.release();
-        if (!r.isSynced() && running) {
+        if (!isSynced(r) && running) {
             while (true) {
                 WaitQueue.Signal signal = syncComplete.register();
-                if (r.isSynced() || !running) {
+                if (isSynced(r) || !running) {
                     signal.cancel();
                     return;
                 } else
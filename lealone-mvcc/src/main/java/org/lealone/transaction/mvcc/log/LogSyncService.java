@@ -19,15 +19,16 @@ package org.lealone.transaction.mvcc.log;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 import org.lealone.common.concurrent.WaitQueue;
 import org.lealone.transaction.mvcc.MVCCTransaction;
+import org.lealone.transaction.mvcc.TransactionalLogRecord;
 
 public abstract class LogSyncService extends Thread {
 
@@ -41,12 +42,14 @@ public abstract class LogSyncService extends Thread {
     protected final LinkedBlockingQueue<MVCCTransaction> transactions = new LinkedBlockingQueue<>();
 
     protected long syncIntervalMillis;
+    // sync前最多等待多久让更多的记录加入同一批，0表示不等待
+    protected long batchDelayNanos;
     protected volatile long lastSyncedAt = System.currentTimeMillis();
     protected boolean running = true;
     protected RedoLog redoLog;
 
-    // key: mapName, value: map key/value ByteBuffer list
-    private final HashMap<String, List<ByteBuffer>> pendingRedoLog = new HashMap<>();
+    // 不同的map可以在不同的线程中并发打开并redo
+    private volatile PendingRedoLog pendingRedoLog = new PendingRedoLog();
 
     public LogSyncService() {
         setName(getClass().getSimpleName());
@@ -68,6 +71,8 @@ public abstract class LogSyncService extends Thread {
     @Override
     public void run() {
         while (running) {
+            if (batchDelayNanos > 0)
+                redoLog.waitForBatch(batchDelayNanos);
             long syncStarted = System.currentTimeMillis();
             sync();
             lastSyncedAt = syncStarted;
@@ -91,16 +96,19 @@ public abstract class LogSyncService extends Thread {
     }
 
     private void sync() {
+        // 先取出事务再save，这些事务的redo log记录一定在这一批中
+        ArrayList<MVCCTransaction> oldTransactions = null;
+        if (!transactions.isEmpty()) {
+            oldTransactions = new ArrayList<>(transactions.size());
+            transactions.drainTo(oldTransactions);
+        }
         if (redoLog != null)
             redoLog.save();
-        commitTransactions();
+        if (oldTransactions != null)
+            commitTransactions(oldTransactions);
     }
 
-    private void commitTransactions() {
-        if (transactions.isEmpty())
-            return;
-        ArrayList<MVCCTransaction> oldTransactions = new ArrayList<>(transactions.size());
-        transactions.drainTo(oldTransactions);
+    private void commitTransactions(ArrayList<MVCCTransaction> oldTransactions) {
         for (MVCCTransaction t : oldTransactions) {
             if (t.getSession() != null)
                 t.getSession().commit(null);
@@ -110,30 +118,171 @@ public abstract class LogSyncService extends Thread {
     }
 
     public void addRedoLogRecord(RedoLogRecord r) {
-        redoLog.addRedoLogRecord(r);
+        // 攒够一批了就马上sync
+        if (redoLog.addRedoLogRecord(r))
+            haveWork.release();
     }
 
     public void addAndMaybeWaitForSync(RedoLogRecord r) {
-        redoLog.addRedoLogRecord(r);
+        addRedoLogRecord(r);
         maybeWaitForSync(r);
     }
 
+    protected boolean isSynced(RedoLogRecord r) {
+        return redoLog.isSynced(r);
+    }
+
+    /**
+     * Get the number of batches written and synced to the redo log.
+     *
+     * @return the number of syncs
+     */
+    public long getSyncCount() {
+        return redoLog.getSyncCount();
+    }
+
+    /**
+     * Get the number of records written to the redo log.
+     *
+     * @return the number of records
+     */
+    public long getSyncedRecordCount() {
+        return redoLog.getSyncedRecordCount();
+    }
+
+    /**
+     * Get the number of bytes written to the redo log.
+     *
+     * @return the number of bytes
+     */
+    public long getSyncedBytes() {
+        return redoLog.getSyncedBytes();
+    }
+
+    /**
+     * Get the average number of records written by one sync.
+     *
+     * @return the average batch size
+     */
+    public double getAverageBatchSize() {
+        long count = redoLog.getSyncCount();
+        return count == 0 ? 0 : (double) redoLog.getSyncedRecordCount() / count;
+    }
+
+    /**
+     * Get the average time to write and sync one batch, in nanoseconds.
+     *
+     * @return the average sync time
+     */
+    public long getAverageSyncTime() {
+        long count = redoLog.getSyncCount();
+        return count == 0 ? 0 : redoLog.getTotalSyncTime() / count;
+    }
+
+    /**
+     * Get the maximum time to write and sync one batch, in nanoseconds.
+     *
+     * @return the maximum sync time
+     */
+    public long getMaxSyncTime() {
+        return redoLog.getMaxSyncTime();
+    }
+
     public void checkpoint(long checkpointId) {
         RedoLogRecord r = RedoLogRecord.createCheckpoint(checkpointId);
         addRedoLogRecord(r);
         maybeWaitForSync(r);
     }
 
+    /**
+     * Record that the map was saved, the records of the transactions whose id is smaller
+     * than lowWaterTransactionId do not need to be redone for this map.
+     *
+     * @param mapName the map name
+     * @param lowWaterTransactionId the smallest transaction id that may not be in the saved map
+     * @param lastTransactionId the last transaction id that was used
+     */
+    public void checkpointMap(String mapName, long lowWaterTransactionId, long lastTransactionId) {
+        RedoLogRecord r = RedoLogRecord.createMapCheckpoint(mapName, lowWaterTransactionId, lastTransactionId);
+        addRedoLogRecord(r);
+        maybeWaitForSync(r);
+    }
+
+    /**
+     * Get the id that represents the map in the redo log records.
+     *
+     * @param mapName the map name
+     * @return the map id
+     */
+    public int getMapId(String mapName) {
+        return redoLog.getMapId(mapName);
+    }
+
+    /**
+     * Get the id of the chunk the records are currently added to.
+     * Records added later are in this chunk or in a later one.
+     *
+     * @return the chunk id
+     */
+    public int getCurrentChunkId() {
+        return redoLog.getCurrentChunkId();
+    }
+
+    /**
+     * Recycle the chunks before the given chunk, after the records added before were synced.
+     *
+     * @param chunkId the id of the first chunk that is still needed
+     */
+    public void truncate(int chunkId) {
+        redoLog.truncate(chunkId);
+        haveWork.release();
+    }
+
+    /**
+     * Check whether there are records read at startup of maps that were not opened yet.
+     *
+     * @return true if some maps were not redone yet
+     */
+    public boolean hasPendingRedoLog() {
+        return !pendingRedoLog.isEmpty();
+    }
+
+    public boolean hasPendingRedoLog(String mapName) {
+        return pendingRedoLog.containsMap(mapName);
+    }
+
     public long initPendingRedoLog() {
-        long lastTransactionId = 0;
-        for (RedoLogRecord r : redoLog.getAllRedoLogRecords()) {
-            lastTransactionId = r.initPendingRedoLog(pendingRedoLog, lastTransactionId);
-        }
-        return lastTransactionId;
+        pendingRedoLog = redoLog.readPendingRedoLog();
+        return pendingRedoLog.getLastTransactionId();
+    }
+
+    /**
+     * Get the bytes of the key/values read at startup that are still held in memory.
+     * The rest of the key/values were spilled to files.
+     *
+     * @return the estimated memory
+     */
+    public long getPendingRedoLogMemory() {
+        return pendingRedoLog.getMemory();
+    }
+
+    /**
+     * Remove the key/values of the map read at startup, and pass them to the consumer
+     * in batches of at most TransactionalLogRecord.REDO_BATCH_SIZE, in the order they were written.
+     *
+     * @param mapName the map name
+     * @param consumer the consumer of the batches
+     * @return false if there is nothing to redo for the map
+     */
+    public boolean redo(String mapName, Consumer<List<ByteBuffer>> consumer) {
+        return pendingRedoLog.removeMap(mapName, TransactionalLogRecord.REDO_BATCH_SIZE, consumer);
     }
 
     public List<ByteBuffer> getAndRemovePendingRedoLog(String mapName) {
-        return pendingRedoLog.remove(mapName);
+        ArrayList<ByteBuffer> keyValues = new ArrayList<>();
+        if (!redo(mapName, keyValues::addAll))
+            return null;
+        return keyValues;
     }
 
     public static LogSyncService create(Map<String, String> config) {
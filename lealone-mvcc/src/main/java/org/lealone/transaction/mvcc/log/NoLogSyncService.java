@@ -36,6 +36,16 @@ class NoLogSyncService extends LogSyncService {
     public void maybeWaitForSync(RedoLogRecord r) {
     }
 
+    @Override
+    public void addRedoLogRecord(RedoLogRecord r) {
+        // 不会写redo log，也就不用在内存中保留记录
+    }
+
+    @Override
+    public int getMapId(String mapName) {
+        return 0;
+    }
+
     @Override
     public void prepareCommit(MVCCTransaction t) {
         if (t.getSession() != null) {
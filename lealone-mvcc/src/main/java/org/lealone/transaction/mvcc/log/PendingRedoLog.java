@@ -0,0 +1,406 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.transaction.mvcc.log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.lealone.common.exceptions.DbException;
+import org.lealone.storage.fs.FileUtils;
+import org.lealone.transaction.mvcc.TransactionalLogRecord;
+
+/**
+ * The key/values of the redo log records after the last checkpoint, partitioned by map.
+ * <p>
+ * Each chunk is read into its own instance, the instances are then merged in the order of the chunks.
+ * When the key/values of the merged instance use more than the configured memory, the largest maps
+ * are spilled to files and read back batch by batch when the maps are redone.
+ *
+ * @author zhh
+ */
+class PendingRedoLog {
+
+    // 每个key/value除了字节数组本身之外的内存占用(ByteBuffer、数组头、list中的引用和事务ID)
+    private static final int KEY_VALUE_OVERHEAD = 80;
+
+    private final HashMap<String, MapRedoLog> maps = new HashMap<>();
+    // 这一段日志中单独保存过的map，value是最大的lowWaterTransactionId，合并时要丢弃前面的日志中这些map的旧记录
+    private final HashMap<String, Long> mapCheckpoints = new HashMap<>();
+    // 在这一段日志中被删除过的map，合并时要丢弃前面的日志中这些map的记录
+    private final HashSet<String> droppedMaps = new HashSet<>();
+    // 这一段日志中第一个checkpoint，合并时要丢弃前面的日志中的所有记录
+    private long firstCheckpointId = -1;
+    private long lastTransactionId;
+    // key: map id, value: mapName，老格式的日志中直接写的是mapName，此时为null
+    private HashMap<Integer, String> mapNames;
+
+    // 只有合并后的实例才会把记录写到spillDir中
+    private final String spillDir;
+    private final long maxMemory;
+    private long memory;
+    private int nextSpillFileId;
+
+    PendingRedoLog() {
+        this(null, Long.MAX_VALUE);
+    }
+
+    PendingRedoLog(String spillDir, long maxMemory) {
+        this.spillDir = spillDir;
+        this.maxMemory = maxMemory;
+    }
+
+    void useMapIds() {
+        mapNames = new HashMap<>();
+    }
+
+    void addMapId(int mapId, String mapName) {
+        mapNames.put(mapId, mapName);
+    }
+
+    void checkpoint(long checkpointId) {
+        if (checkpointId < lastTransactionId) {
+            throw DbException.throwInternalError(
+                    "checkpointId=" + checkpointId + ", lastTransactionId=" + lastTransactionId);
+        }
+        if (firstCheckpointId < 0)
+            firstCheckpointId = checkpointId;
+        clear();
+        lastTransactionId = checkpointId;
+    }
+
+    private void clear() {
+        for (MapRedoLog m : maps.values())
+            m.deleteSpillFile();
+        maps.clear();
+        droppedMaps.clear();
+        mapCheckpoints.clear();
+        memory = 0;
+    }
+
+    private void discardMap(String mapName) {
+        MapRedoLog m = maps.remove(mapName);
+        if (m != null) {
+            memory -= m.memory;
+            m.deleteSpillFile();
+        }
+    }
+
+    void dropMap(String mapName) {
+        discardMap(mapName);
+        mapCheckpoints.remove(mapName);
+        droppedMaps.add(mapName);
+    }
+
+    /**
+     * The map was saved. The records of the transactions whose id is smaller than
+     * lowWaterTransactionId ended before the save started, so they are in the saved map.
+     *
+     * @param mapName the map name
+     * @param lowWaterTransactionId the smallest transaction id that may not be in the saved map
+     * @param lastTransactionId the last transaction id when the record was written
+     */
+    void checkpointMap(String mapName, long lowWaterTransactionId, long lastTransactionId) {
+        removeOldRecords(mapName, lowWaterTransactionId);
+        if (lastTransactionId > this.lastTransactionId)
+            this.lastTransactionId = lastTransactionId;
+        Long old = mapCheckpoints.get(mapName);
+        if (old == null || old.longValue() < lowWaterTransactionId)
+            mapCheckpoints.put(mapName, lowWaterTransactionId);
+    }
+
+    private void removeOldRecords(String mapName, long lowWaterTransactionId) {
+        MapRedoLog m = maps.get(mapName);
+        if (m == null)
+            return;
+        memory -= m.memory;
+        m.removeOldRecords(lowWaterTransactionId);
+        memory += m.memory;
+        if (m.isEmpty())
+            maps.remove(mapName);
+    }
+
+    void addTransaction(long transactionId, ByteBuffer operations) {
+        ByteBuffer buff = operations;
+        while (buff.hasRemaining()) {
+            String mapName = TransactionalLogRecord.readMapNameForRedo(buff, mapNames);
+            ByteBuffer keyValue = TransactionalLogRecord.readKeyValueForRedo(buff);
+            MapRedoLog m = maps.get(mapName);
+            if (m == null) {
+                m = new MapRedoLog();
+                maps.put(mapName, m);
+            }
+            memory += m.add(transactionId, keyValue);
+        }
+        if (transactionId > lastTransactionId)
+            lastTransactionId = transactionId;
+        spillIfNeeded();
+    }
+
+    /**
+     * Append the records of the next chunk.
+     *
+     * @param next the records of the next chunk
+     */
+    void merge(PendingRedoLog next) {
+        if (next.firstCheckpointId >= 0) {
+            if (next.firstCheckpointId < lastTransactionId) {
+                throw DbException.throwInternalError(
+                        "checkpointId=" + next.firstCheckpointId + ", lastTransactionId=" + lastTransactionId);
+            }
+            clear();
+            firstCheckpointId = next.firstCheckpointId;
+        } else {
+            for (String mapName : next.droppedMaps) {
+                discardMap(mapName);
+            }
+            for (Map.Entry<String, Long> e : next.mapCheckpoints.entrySet()) {
+                removeOldRecords(e.getKey(), e.getValue());
+            }
+        }
+        droppedMaps.addAll(next.droppedMaps);
+        for (Map.Entry<String, MapRedoLog> e : next.maps.entrySet()) {
+            String mapName = e.getKey();
+            MapRedoLog m = maps.get(mapName);
+            if (m == null) {
+                maps.put(mapName, e.getValue());
+                memory += e.getValue().memory;
+            } else {
+                memory += m.addAll(e.getValue());
+            }
+        }
+        next.maps.clear();
+        if (next.lastTransactionId > lastTransactionId)
+            lastTransactionId = next.lastTransactionId;
+        spillIfNeeded();
+    }
+
+    // 超过内存限制时，从最大的map开始把记录写到文件，直到内存占用降到限制的一半
+    private void spillIfNeeded() {
+        if (spillDir == null || memory <= maxMemory)
+            return;
+        ArrayList<MapRedoLog> list = new ArrayList<>(maps.values());
+        list.sort((m1, m2) -> Long.compare(m2.memory, m1.memory));
+        for (MapRedoLog m : list) {
+            if (memory <= maxMemory / 2 || m.memory == 0)
+                break;
+            if (m.spillFileName == null) {
+                if (nextSpillFileId == 0)
+                    FileUtils.createDirectories(spillDir);
+                m.spillFileName = spillDir + File.separator + (nextSpillFileId++) + ".spill";
+            }
+            memory -= m.memory;
+            m.spill();
+        }
+    }
+
+    synchronized boolean isEmpty() {
+        return maps.isEmpty();
+    }
+
+    synchronized boolean containsMap(String mapName) {
+        return maps.containsKey(mapName);
+    }
+
+    /**
+     * Remove the records of the map and pass them to the consumer in batches,
+     * in the order they were written. The spilled records are read back one batch at a time.
+     *
+     * @param mapName the map name
+     * @param batchSize the maximum number of key/values per batch
+     * @param consumer the consumer of the batches
+     * @return false if the map has no records
+     */
+    boolean removeMap(String mapName, int batchSize, Consumer<List<ByteBuffer>> consumer) {
+        MapRedoLog m;
+        synchronized (this) {
+            m = maps.remove(mapName);
+            if (m == null)
+                return false;
+            memory -= m.memory;
+        }
+        try {
+            m.read(batchSize, consumer);
+        } finally {
+            m.deleteSpillFile();
+        }
+        return true;
+    }
+
+    synchronized long getMemory() {
+        return memory;
+    }
+
+    long getLastTransactionId() {
+        return lastTransactionId;
+    }
+
+    private static class MapRedoLog {
+        // 还在内存中的key/value以及跟它们一一对应的事务ID
+        private ArrayList<ByteBuffer> keyValues = new ArrayList<>();
+        private TransactionIds transactionIds = new TransactionIds();
+        private long memory;
+
+        // 写到文件中的记录，每次spill是一段，每一段有各自的lowWaterTransactionId，
+        // 读回来时丢弃事务ID小于它的记录
+        private String spillFileName;
+        private DataOutputStream spillOut;
+        private final ArrayList<long[]> spillSegments = new ArrayList<>(); // {记录数, lowWaterTransactionId}
+
+        long add(long tid, ByteBuffer keyValue) {
+            keyValues.add(keyValue);
+            transactionIds.add(tid);
+            long m = keyValue.remaining() + KEY_VALUE_OVERHEAD;
+            memory += m;
+            return m;
+        }
+
+        long addAll(MapRedoLog other) {
+            keyValues.addAll(other.keyValues);
+            transactionIds.addAll(other.transactionIds);
+            memory += other.memory;
+            return other.memory;
+        }
+
+        boolean isEmpty() {
+            return keyValues.isEmpty() && spillSegments.isEmpty();
+        }
+
+        void removeOldRecords(long lowWaterTransactionId) {
+            ArrayList<ByteBuffer> newList = new ArrayList<>();
+            TransactionIds newIds = new TransactionIds();
+            long newMemory = 0;
+            for (int i = 0, size = keyValues.size(); i < size; i++) {
+                long tid = transactionIds.get(i);
+                if (tid >= lowWaterTransactionId) {
+                    ByteBuffer kv = keyValues.get(i);
+                    newList.add(kv);
+                    newIds.add(tid);
+                    newMemory += kv.remaining() + KEY_VALUE_OVERHEAD;
+                }
+            }
+            keyValues = newList;
+            transactionIds = newIds;
+            memory = newMemory;
+            for (long[] segment : spillSegments) {
+                if (segment[1] < lowWaterTransactionId)
+                    segment[1] = lowWaterTransactionId;
+            }
+        }
+
+        void spill() {
+            try {
+                if (spillOut == null)
+                    spillOut = new DataOutputStream(
+                            new BufferedOutputStream(FileUtils.newOutputStream(spillFileName, false)));
+                int size = keyValues.size();
+                for (int i = 0; i < size; i++) {
+                    ByteBuffer kv = keyValues.get(i);
+                    spillOut.writeLong(transactionIds.get(i));
+                    spillOut.writeInt(kv.remaining());
+                    spillOut.write(kv.array(), kv.arrayOffset() + kv.position(), kv.remaining());
+                }
+                spillOut.flush();
+                spillSegments.add(new long[] { size, 0 });
+            } catch (IOException e) {
+                throw DbException.convertIOException(e, spillFileName);
+            }
+            keyValues = new ArrayList<>();
+            transactionIds = new TransactionIds();
+            memory = 0;
+        }
+
+        void read(int batchSize, Consumer<List<ByteBuffer>> consumer) {
+            ArrayList<ByteBuffer> batch = new ArrayList<>();
+            if (!spillSegments.isEmpty()) {
+                FileUtils.closeQuietly(spillOut);
+                spillOut = null;
+                try (DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(FileUtils.newInputStream(spillFileName)))) {
+                    for (long[] segment : spillSegments) {
+                        for (long i = 0; i < segment[0]; i++) {
+                            long tid = in.readLong();
+                            byte[] keyValue = new byte[in.readInt()];
+                            in.readFully(keyValue);
+                            if (tid < segment[1])
+                                continue;
+                            batch.add(ByteBuffer.wrap(keyValue));
+                            if (batch.size() >= batchSize) {
+                                consumer.accept(batch);
+                                batch = new ArrayList<>();
+                            }
+                        }
+                    }
+                } catch (IOException e) {
+                    throw DbException.convertIOException(e, spillFileName);
+                }
+            }
+            for (ByteBuffer kv : keyValues) {
+                batch.add(kv);
+                if (batch.size() >= batchSize) {
+                    consumer.accept(batch);
+                    batch = new ArrayList<>();
+                }
+            }
+            if (!batch.isEmpty())
+                consumer.accept(batch);
+        }
+
+        void deleteSpillFile() {
+            if (spillFileName != null) {
+                FileUtils.closeQuietly(spillOut);
+                spillOut = null;
+                FileUtils.tryDelete(spillFileName);
+                spillSegments.clear();
+            }
+        }
+    }
+
+    private static class TransactionIds {
+        private long[] ids = new long[16];
+        private int size;
+
+        void add(long tid) {
+            if (size == ids.length)
+                ids = Arrays.copyOf(ids, size * 2);
+            ids[size++] = tid;
+        }
+
+        void addAll(TransactionIds other) {
+            if (size + other.size > ids.length)
+                ids = Arrays.copyOf(ids, Math.max(size * 2, size + other.size));
+            System.arraycopy(other.ids, 0, ids, size, other.size);
+            size += other.size;
+        }
+
+        long get(int index) {
+            return ids[index];
+        }
+    }
+}
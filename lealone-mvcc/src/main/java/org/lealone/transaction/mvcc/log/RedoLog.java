@@ -18,14 +18,21 @@
 package org.lealone.transaction.mvcc.log;
 
 import java.io.File;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.HashMap;
 import java.util.Map;
-import java.util.Queue;
-import java.util.concurrent.LinkedTransferQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
+import org.lealone.common.concurrent.DebuggableThreadPoolExecutor;
+import org.lealone.common.exceptions.DbException;
 import org.lealone.db.Constants;
+import org.lealone.db.DataBuffer;
 import org.lealone.storage.fs.FilePath;
 import org.lealone.storage.fs.FileUtils;
 
@@ -37,13 +44,46 @@ import org.lealone.storage.fs.FileUtils;
 class RedoLog {
 
     private static final long DEFAULT_LOG_CHUNK_SIZE = 32 * 1024 * 1024;
+    private static final int DEFAULT_LOG_SYNC_BATCH_SIZE = 1024 * 1024;
+    // checkpoint之后最多保留几个旧chunk文件给后面的chunk重用，多出来的直接删除
+    private static final int MAX_FREE_CHUNKS = 2;
+    // 启动时读取redo日志最多在内存中保留多少字节的key/value，超过后写到spill目录中的文件
+    private static final long DEFAULT_RECOVERY_MEMORY = 64 * 1024 * 1024;
 
     public static final char NAME_ID_SEPARATOR = Constants.NAME_SEPARATOR;
+    static final String SPILL_DIR_NAME = "spill";
 
     private final Map<String, String> config;
     private final long logChunkSize;
+    private final int batchSize;
+    private final boolean mmap;
+    private final int recoveryThreads;
+    private final long recoveryMemory;
 
     private RedoLogChunk currentChunk;
+    private volatile int currentChunkId;
+    // id小于它的chunk中的记录对应的map都已经保存过了，由sync线程回收
+    private volatile int truncateBeforeChunkId;
+    private int recycledBeforeChunkId; // 只由sync线程修改
+    // key: mapName, value: 事务的redo日志记录中代替mapName的id，
+    // 每个chunk开头和checkpoint之后都会写一次完整的对应关系，之后新加的map在第一次使用时写入
+    private final ConcurrentHashMap<String, Integer> mapIds = new ConcurrentHashMap<>();
+
+    // 提交事务的线程把记录序列化到activeBuffer，sync线程把它跟flushBuffer交换后再写文件，
+    // 这样写文件和sync时不会阻塞新加入的记录，一次sync就能完成一批记录
+    private DataBuffer activeBuffer;
+    private DataBuffer flushBuffer;
+    private int lastCheckpointPos = -1; // activeBuffer中最后一个checkpoint记录的位置
+    private int pendingRecords;
+    private long lastSequence;
+    private volatile long syncedSequence; // 序列号不大于它的记录都已经sync到硬盘了
+
+    // 以下统计信息只由sync线程修改
+    private volatile long syncCount;
+    private volatile long syncedRecordCount;
+    private volatile long syncedBytes;
+    private volatile long totalSyncTime;
+    private volatile long maxSyncTime;
 
     RedoLog(Map<String, String> config) {
         this.config = config;
@@ -52,6 +92,22 @@ class RedoLog {
         else
             logChunkSize = DEFAULT_LOG_CHUNK_SIZE;
 
+        if (config.containsKey("log_sync_batch_size"))
+            batchSize = Integer.parseInt(config.get("log_sync_batch_size"));
+        else
+            batchSize = DEFAULT_LOG_SYNC_BATCH_SIZE;
+        mmap = Boolean.parseBoolean(config.get("log_mmap"));
+        if (config.containsKey("redo_log_recovery_threads"))
+            recoveryThreads = Integer.parseInt(config.get("redo_log_recovery_threads"));
+        else
+            recoveryThreads = Runtime.getRuntime().availableProcessors();
+        if (config.containsKey("redo_log_recovery_memory"))
+            recoveryMemory = Long.parseLong(config.get("redo_log_recovery_memory"));
+        else
+            recoveryMemory = DEFAULT_RECOVERY_MEMORY;
+        activeBuffer = DataBuffer.create(batchSize);
+        flushBuffer = DataBuffer.create(batchSize);
+
         String baseDir = config.get("base_dir");
         String logDir = config.get("redo_log_dir");
         String storagePath = baseDir + File.separator + logDir;
@@ -66,16 +122,27 @@ class RedoLog {
             lastId = ids.get(ids.size() - 1);
         else
             lastId = 0;
-        currentChunk = new RedoLogChunk(lastId, config);
+        currentChunk = createChunk(lastId);
+        if (currentChunk.isLegacy() || !currentChunk.usesMapIds()) {
+            // 老格式的文件只读，新记录写到下一个chunk
+            currentChunk.close();
+            currentChunk = createChunk(lastId + 1);
+        }
+        currentChunkId = currentChunk.getId();
+        truncateBeforeChunkId = recycledBeforeChunkId = ids.isEmpty() ? 0 : ids.get(0);
     }
 
     private List<Integer> getAllChunkIds() {
+        return getAllChunkIds(RedoLogChunk.CHUNK_FILE_NAME_PREFIX);
+    }
+
+    private List<Integer> getAllChunkIds(String prefix) {
         ArrayList<Integer> ids = new ArrayList<>();
-        int prefixLength = RedoLogChunk.CHUNK_FILE_NAME_PREFIX.length();
+        int prefixLength = prefix.length();
         FilePath dir = FilePath.get(config.get("storagePath"));
         for (FilePath fp : dir.newDirectoryStream()) {
             String fullName = fp.getName();
-            if (fullName.startsWith(RedoLogChunk.CHUNK_FILE_NAME_PREFIX)) {
+            if (fullName.startsWith(prefix)) {
                 int id = Integer.parseInt(fullName.substring(prefixLength));
                 ids.add(id);
             }
@@ -84,23 +151,189 @@ class RedoLog {
         return ids;
     }
 
-    void addRedoLogRecord(RedoLogRecord r) {
-        currentChunk.addRedoLogRecord(r);
+    private RedoLogChunk createChunk(int id) {
+        String fileName = RedoLogChunk.getChunkFileName(config, id);
+        if (!FileUtils.exists(fileName)) {
+            // 优先重用已经预分配好的空闲文件
+            List<Integer> freeIds = getAllChunkIds(RedoLogChunk.FREE_CHUNK_FILE_NAME_PREFIX);
+            if (!freeIds.isEmpty())
+                FileUtils.move(RedoLogChunk.getFreeChunkFileName(config, freeIds.get(0)), fileName);
+        }
+        return new RedoLogChunk(id, config, logChunkSize, mmap);
     }
 
-    Queue<RedoLogRecord> getAllRedoLogRecords() {
-        LinkedTransferQueue<RedoLogRecord> queue = new LinkedTransferQueue<>();
-        List<Integer> ids = getAllChunkIds();
-        for (int id : ids) {
-            RedoLogChunk chunk;
-            if (id == currentChunk.getId()) {
-                chunk = currentChunk;
+    int getCurrentChunkId() {
+        return currentChunkId;
+    }
+
+    /**
+     * The records in the chunks before the given chunk are not needed any more.
+     * The chunks are recycled by the sync thread, after the records added before were synced.
+     *
+     * @param chunkId the id of the first chunk that is still needed
+     */
+    void truncate(int chunkId) {
+        if (chunkId > truncateBeforeChunkId)
+            truncateBeforeChunkId = chunkId;
+    }
+
+    // checkpoint之后，当前chunk之前的chunk都不再需要了
+    private void recycleOldChunks(int beforeChunkId) {
+        if (beforeChunkId > currentChunk.getId())
+            beforeChunkId = currentChunk.getId();
+        if (beforeChunkId <= recycledBeforeChunkId)
+            return;
+        recycledBeforeChunkId = beforeChunkId;
+        int freeCount = getAllChunkIds(RedoLogChunk.FREE_CHUNK_FILE_NAME_PREFIX).size();
+        for (int id : getAllChunkIds()) {
+            if (id >= beforeChunkId)
+                break;
+            String fileName = RedoLogChunk.getChunkFileName(config, id);
+            if (freeCount < MAX_FREE_CHUNKS && RedoLogChunk.reset(fileName, config)) {
+                FileUtils.move(fileName, RedoLogChunk.getFreeChunkFileName(config, id));
+                freeCount++;
             } else {
-                chunk = new RedoLogChunk(id, config);
+                FileUtils.delete(fileName);
+            }
+        }
+    }
+
+    /**
+     * Serialize the record into the buffer of the next batch.
+     *
+     * @param r the record
+     * @return true if the batch reached its size limit and should be synced now
+     */
+    synchronized boolean addRedoLogRecord(RedoLogRecord r) {
+        if (r.isCheckpoint())
+            lastCheckpointPos = activeBuffer.position();
+        r.write(activeBuffer);
+        r.setSequence(++lastSequence);
+        pendingRecords++;
+        // chunk会从checkpoint记录的位置开始重写，之后的记录还要用到前面的map id
+        if (r.isCheckpoint())
+            writeMapIds(activeBuffer);
+        if (activeBuffer.position() >= batchSize) {
+            notifyAll(); // 唤醒在waitForBatch中等待的sync线程
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Get the id that represents the map in the redo log records.
+     *
+     * @param mapName the map name
+     * @return the map id
+     */
+    int getMapId(String mapName) {
+        Integer id = mapIds.get(mapName);
+        if (id != null)
+            return id;
+        synchronized (this) {
+            id = mapIds.get(mapName);
+            if (id == null) {
+                id = mapIds.size() + 1;
+                mapIds.put(mapName, id);
+                // 在使用这个id的记录之前写入
+                HashMap<String, Integer> newId = new HashMap<>(1);
+                newId.put(mapName, id);
+                addRedoLogRecord(RedoLogRecord.createMapIds(newId));
+            }
+            return id;
+        }
+    }
+
+    private synchronized void writeMapIds(DataBuffer buff) {
+        RedoLogRecord.createMapIds(new HashMap<>(mapIds)).write(buff);
+    }
+
+    private synchronized boolean hasPendingRecords() {
+        return pendingRecords > 0;
+    }
+
+    boolean isSynced(RedoLogRecord r) {
+        return r.getSequence() <= syncedSequence;
+    }
+
+    /**
+     * Wait until the next batch reaches its size limit or the given time has passed,
+     * so that more records can be synced together. Returns at once if there is no record.
+     *
+     * @param maxDelayNanos the maximum time to wait
+     */
+    synchronized void waitForBatch(long maxDelayNanos) {
+        long deadline = System.nanoTime() + maxDelayNanos;
+        while (pendingRecords > 0 && activeBuffer.position() < batchSize) {
+            long nanos = deadline - System.nanoTime();
+            if (nanos <= 0)
+                break;
+            try {
+                wait(nanos / 1000000, (int) (nanos % 1000000));
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Read the records after the last checkpoint. The chunks are read in parallel,
+     * one chunk at a time per thread, and then merged in the order of their ids.
+     * <p>
+     * At most recoveryThreads chunks are read ahead of the merge, and the merged key/values
+     * that exceed recoveryMemory are spilled to files. So the memory used is bounded by
+     * recoveryMemory plus (recoveryThreads + 1) chunks, no matter how many chunks there are.
+     *
+     * @return the pending redo log
+     */
+    PendingRedoLog readPendingRedoLog() {
+        List<Integer> ids = getAllChunkIds();
+        String spillDir = config.get("storagePath") + File.separator + SPILL_DIR_NAME;
+        FileUtils.deleteRecursive(spillDir, true); // 上次启动时没有redo完的map留下的文件
+        PendingRedoLog pendingRedoLog = new PendingRedoLog(spillDir, recoveryMemory);
+        int threads = Math.min(ids.size(), recoveryThreads);
+        if (threads <= 1) {
+            for (int id : ids) {
+                pendingRedoLog.merge(readPendingRedoLog(id));
+            }
+            return pendingRedoLog;
+        }
+        ExecutorService executor = DebuggableThreadPoolExecutor.createWithFixedPoolSize("RedoLogRecoveryThread",
+                threads);
+        try {
+            ArrayDeque<Future<PendingRedoLog>> futures = new ArrayDeque<>(threads);
+            int next = 0;
+            while (next < ids.size() || !futures.isEmpty()) {
+                // 只提前读threads个chunk，避免读完的chunk等待合并时占用太多内存
+                while (next < ids.size() && futures.size() < threads) {
+                    int id = ids.get(next++);
+                    futures.add(executor.submit(() -> readPendingRedoLog(id)));
+                }
+                pendingRedoLog.merge(futures.poll().get());
+            }
+        } catch (InterruptedException e) {
+            throw DbException.convert(e);
+        } catch (ExecutionException e) {
+            throw DbException.convert(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        return pendingRedoLog;
+    }
+
+    private PendingRedoLog readPendingRedoLog(int id) {
+        PendingRedoLog pendingRedoLog = new PendingRedoLog();
+        if (id == currentChunk.getId()) {
+            currentChunk.readRedoLogRecords(pendingRedoLog);
+        } else {
+            RedoLogChunk chunk = new RedoLogChunk(id, config, logChunkSize, mmap);
+            try {
+                chunk.readRedoLogRecords(pendingRedoLog);
+            } finally {
+                chunk.close();
             }
-            queue.addAll(chunk.getAndResetRedoLogRecords());
         }
-        return queue;
+        return pendingRedoLog;
     }
 
     void close() {
@@ -108,11 +341,71 @@ class RedoLog {
         currentChunk.close();
     }
 
+    long getSyncCount() {
+        return syncCount;
+    }
+
+    long getSyncedRecordCount() {
+        return syncedRecordCount;
+    }
+
+    long getSyncedBytes() {
+        return syncedBytes;
+    }
+
+    long getTotalSyncTime() {
+        return totalSyncTime;
+    }
+
+    long getMaxSyncTime() {
+        return maxSyncTime;
+    }
+
+    // 只在LogSyncService的线程中调用
     void save() {
-        currentChunk.save();
-        if (currentChunk.logChunkSize() > logChunkSize) {
+        // 要在取出记录之前读，这样调用truncate之前加入的记录一定在这一批或之前的批次中
+        int truncateBeforeChunkId = this.truncateBeforeChunkId;
+        DataBuffer buff;
+        int checkpointPos;
+        int records;
+        long sequence;
+        if (!hasPendingRecords()) {
+            recycleOldChunks(truncateBeforeChunkId);
+            return;
+        }
+        synchronized (this) {
+            buff = activeBuffer;
+            activeBuffer = flushBuffer;
+            flushBuffer = buff;
+            checkpointPos = lastCheckpointPos;
+            records = pendingRecords;
+            sequence = lastSequence;
+            lastCheckpointPos = -1;
+            pendingRecords = 0;
+        }
+        int bytes = buff.position();
+        long start = System.nanoTime();
+        currentChunk.save(buff.getAndFlipBuffer(), checkpointPos);
+        long syncTime = System.nanoTime() - start;
+        buff.clear();
+        syncedSequence = sequence;
+
+        syncCount++;
+        syncedRecordCount += records;
+        syncedBytes += bytes;
+        totalSyncTime += syncTime;
+        if (syncTime > maxSyncTime)
+            maxSyncTime = syncTime;
+
+        recycleOldChunks(checkpointPos >= 0 ? currentChunk.getId() : truncateBeforeChunkId);
+        if (currentChunk.logChunkSize() >= logChunkSize) {
             currentChunk.close();
-            currentChunk = new RedoLogChunk(currentChunk.getId() + 1, config);
+            currentChunk = createChunk(currentChunk.getId() + 1);
+            currentChunkId = currentChunk.getId();
+            // 每个chunk都要能单独读取，所以新chunk先写入所有的map id
+            DataBuffer mapIdsBuffer = DataBuffer.create();
+            writeMapIds(mapIdsBuffer);
+            currentChunk.save(mapIdsBuffer.getAndFlipBuffer(), -1);
         }
     }
 }
@@ -18,108 +18,308 @@
 package org.lealone.transaction.mvcc.log;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.Map;
-import java.util.concurrent.LinkedTransferQueue;
+import java.util.zip.CRC32;
 
-import org.lealone.db.DataBuffer;
+import org.lealone.common.util.DataUtils;
 import org.lealone.storage.fs.FileStorage;
-import org.lealone.storage.fs.FileUtils;
 
 /**
- * A queue-based redo log chunk
- *  
+ * A redo log chunk.
+ * <p>
+ * File format: a header (magic: int, format version: int, generation: long),
+ * followed by batches of records (length: int, checksum: int, records).
+ * The checksum covers the generation and the records, the first batch
+ * that is not valid is the end of the log. New chunk files are preallocated,
+ * so the file length does not change when a batch is synced.
+ * <p>
+ * Since format version 1, the maps in the transaction records are represented by ids,
+ * and the chunk contains the names of the ids before the records that use them.
+ * <p>
+ * Files written by older versions are read but never written.
+ *
  * @author zhh
  */
 class RedoLogChunk implements Comparable<RedoLogChunk> {
 
     static final String CHUNK_FILE_NAME_PREFIX = "redoLog" + RedoLog.NAME_ID_SEPARATOR;
+    // checkpoint之后不再需要的chunk文件改成这个前缀的名字，滚动到新chunk时重用
+    static final String FREE_CHUNK_FILE_NAME_PREFIX = "redoLogFree" + RedoLog.NAME_ID_SEPARATOR;
+
+    private static final int MAGIC = 0x4C524C47;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int BATCH_HEADER_SIZE = 8;
+    // 预分配文件时每次写入的0字节数
+    private static final int PREALLOCATE_BLOCK_SIZE = 1024 * 1024;
+
+    static String getChunkFileName(Map<String, String> config, int id) {
+        return getFileName(config, CHUNK_FILE_NAME_PREFIX, id);
+    }
+
+    static String getFreeChunkFileName(Map<String, String> config, int id) {
+        return getFileName(config, FREE_CHUNK_FILE_NAME_PREFIX, id);
+    }
 
-    private static String getChunkFileName(Map<String, String> config, int id) {
+    private static String getFileName(Map<String, String> config, String prefix, int id) {
         String storagePath = config.get("storagePath");
-        return storagePath + File.separator + CHUNK_FILE_NAME_PREFIX + id;
+        return storagePath + File.separator + prefix + id;
     }
 
     private final int id;
     private final FileStorage fileStorage;
-    private final Map<String, String> config;
-    private LinkedTransferQueue<RedoLogRecord> queue;
+    private final String chunkFileName;
+    private final long chunkSize;
+    private final boolean mmap;
     private long pos;
+    private long generation;
+    private int formatVersion = FORMAT_VERSION;
+    private boolean initialized; // 文件头已经写好了
+    private boolean legacy; // 老格式的文件，只能读
+    private FileChannel mappedFile;
+    private MappedByteBuffer mappedBuffer;
 
-    RedoLogChunk(int id, Map<String, String> config) {
+    RedoLogChunk(int id, Map<String, String> config, long chunkSize, boolean mmap) {
         this.id = id;
-        this.config = config;
-        String chunkFileName = getChunkFileName(config, id);
+        this.chunkSize = chunkSize;
+        this.mmap = mmap;
+        chunkFileName = getChunkFileName(config, id);
         fileStorage = new FileStorage();
         fileStorage.open(chunkFileName, config);
-        queue = new LinkedTransferQueue<>();
-        pos = fileStorage.size();
-        if (pos > 0)
-            read();
-    }
-
-    private void read() {
-        ByteBuffer buffer = fileStorage.readFully(0, (int) pos);
-        while (buffer.remaining() > 0) {
-            RedoLogRecord r = RedoLogRecord.read(buffer);
-            if (r.isCheckpoint())
-                queue = new LinkedTransferQueue<>(); // 丢弃之前的
-            queue.add(r);
+        long size = fileStorage.size();
+        if (size >= HEADER_SIZE && readHeader()) {
+            pos = readBatches(size, null);
+        } else if (size > 0) {
+            legacy = true;
+            pos = size;
+        } else {
+            generation = 1;
+            pos = HEADER_SIZE;
+        }
+    }
+
+    private boolean readHeader() {
+        ByteBuffer header = fileStorage.readFully(0, HEADER_SIZE);
+        if (header.getInt() != MAGIC)
+            return false;
+        formatVersion = header.getInt();
+        generation = header.getLong();
+        initialized = true;
+        return true;
+    }
+
+    // 逐批读取，不需要把整个文件读到内存，返回最后一批有效记录的结束位置
+    private long readBatches(long size, PendingRedoLog pendingRedoLog) {
+        long pos = HEADER_SIZE;
+        while (pos + BATCH_HEADER_SIZE <= size) {
+            ByteBuffer batchHeader = fileStorage.readFully(pos, BATCH_HEADER_SIZE);
+            int length = batchHeader.getInt();
+            int checksum = batchHeader.getInt();
+            if (length <= 0 || pos + BATCH_HEADER_SIZE + length > size)
+                break;
+            ByteBuffer records = fileStorage.readFully(pos + BATCH_HEADER_SIZE, length);
+            // 校验和不对说明是没有写完的一批记录或者是重用之前的旧记录，日志到此结束
+            if (getChecksum(generation, records.duplicate()) != checksum)
+                break;
+            if (pendingRedoLog != null) {
+                while (records.hasRemaining()) {
+                    RedoLogRecord.read(records).initPendingRedoLog(pendingRedoLog);
+                }
+            }
+            pos += BATCH_HEADER_SIZE + length;
+        }
+        return pos;
+    }
+
+    /**
+     * Parse the records of this chunk into the given pending redo log.
+     *
+     * @param pendingRedoLog the pending redo log
+     */
+    void readRedoLogRecords(PendingRedoLog pendingRedoLog) {
+        if (usesMapIds())
+            pendingRedoLog.useMapIds();
+        if (legacy) {
+            ByteBuffer buffer = fileStorage.readFully(0, (int) pos);
+            while (buffer.remaining() > 0) {
+                RedoLogRecord.read(buffer).initPendingRedoLog(pendingRedoLog);
+            }
+        } else if (initialized) {
+            readBatches(pos, pendingRedoLog);
+        }
+    }
+
+    private static int getChecksum(long generation, ByteBuffer records) {
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < 8; i++) {
+            crc.update((int) (generation >>> (i * 8)));
         }
+        crc.update(records);
+        return (int) crc.getValue();
     }
 
     int getId() {
         return id;
     }
 
-    void addRedoLogRecord(RedoLogRecord r) {
-        queue.add(r);
+    boolean isLegacy() {
+        return legacy;
     }
 
-    LinkedTransferQueue<RedoLogRecord> getAndResetRedoLogRecords() {
-        LinkedTransferQueue<RedoLogRecord> oldQueue = this.queue;
-        this.queue = new LinkedTransferQueue<>();
-        return oldQueue;
+    boolean usesMapIds() {
+        return !legacy && formatVersion >= 1;
     }
 
     void close() {
-        save();
+        if (mappedFile != null) {
+            mappedBuffer = null;
+            try {
+                mappedFile.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            mappedFile = null;
+        }
         fileStorage.close();
     }
 
-    synchronized void save() {
-        LinkedTransferQueue<RedoLogRecord> oldQueue = getAndResetRedoLogRecords();
-        if (!oldQueue.isEmpty()) {
-            try (DataBuffer buff = DataBuffer.create()) {
-                for (RedoLogRecord r : oldQueue) {
-                    if (r.isCheckpoint()) {
-                        deleteOldChunkFiles();
-                        fileStorage.truncate(0);
-                        buff.reset();
-                        pos = 0;
-                    }
-                    r.write(buff);
-                }
-                int chunkLength = buff.position();
-                if (chunkLength > 0) {
-                    buff.limit(chunkLength);
-                    buff.position(0);
-                    fileStorage.writeFully(pos, buff.getBuffer());
-                    pos += chunkLength;
-                    fileStorage.sync();
-                }
-                for (RedoLogRecord r : oldQueue) {
-                    r.setSynced(true);
+    /**
+     * Write a batch of serialized records and sync the file.
+     *
+     * @param batch the records
+     * @param checkpointPos the position of the last checkpoint record in the batch, or -1
+     */
+    synchronized void save(ByteBuffer batch, int checkpointPos) {
+        if (legacy)
+            throw DataUtils.newIllegalStateException(DataUtils.ERROR_INTERNAL, "Legacy redo log chunk {0}", id);
+        if (!initialized) {
+            // 先写文件头，这样预分配到一半时崩溃了也不会被当成老格式的文件
+            fileStorage.writeFully(0, createHeader(generation));
+            preallocate();
+            initialized = true;
+        }
+        if (mmap && mappedFile == null)
+            map();
+        if (checkpointPos >= 0) {
+            // checkpoint之前的记录都不需要了，换一个generation后从头开始写，旧记录的校验和就对不上了
+            generation++;
+            pos = HEADER_SIZE;
+            batch.position(batch.position() + checkpointPos);
+        }
+        int length = batch.remaining();
+        if (length > 0) {
+            ByteBuffer batchHeader = ByteBuffer.allocate(BATCH_HEADER_SIZE);
+            batchHeader.putInt(length).putInt(getChecksum(generation, batch.duplicate())).flip();
+            write(pos, batchHeader);
+            write(pos + BATCH_HEADER_SIZE, batch);
+            pos += BATCH_HEADER_SIZE + length;
+            // 后面可能是之前写过的记录，用一个长度为0的batch标记日志的结尾
+            write(pos, ByteBuffer.allocate(BATCH_HEADER_SIZE));
+        }
+        if (checkpointPos >= 0)
+            write(0, createHeader(generation));
+        sync();
+    }
+
+    private static ByteBuffer createHeader(long generation) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(FORMAT_VERSION).putLong(generation).flip();
+        return header;
+    }
+
+    // 提前把文件扩展到chunkSize，之后sync时就不用更新文件长度了
+    private void preallocate() {
+        long size = fileStorage.size();
+        if (size >= chunkSize)
+            return;
+        ByteBuffer zeros = ByteBuffer.allocate((int) Math.min(PREALLOCATE_BLOCK_SIZE, chunkSize - size));
+        while (size < chunkSize) {
+            zeros.clear();
+            zeros.limit((int) Math.min(zeros.capacity(), chunkSize - size));
+            size += zeros.remaining();
+            fileStorage.writeFully(size - zeros.remaining(), zeros);
+        }
+        fileStorage.sync();
+    }
+
+    private void map() {
+        try {
+            mappedFile = FileChannel.open(Paths.get(chunkFileName), StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            mappedBuffer = mappedFile.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(chunkSize, pos));
+        } catch (IOException e) {
+            throw DataUtils.newIllegalStateException(DataUtils.ERROR_WRITING_FAILED, "Could not map file {0}",
+                    chunkFileName, e);
+        }
+    }
+
+    private void write(long filePos, ByteBuffer src) {
+        if (mappedBuffer != null) {
+            long end = filePos + src.remaining();
+            if (end > mappedBuffer.capacity()) {
+                // 一批记录超出了映射的范围，重新映射一块更大的区域
+                try {
+                    mappedBuffer.force();
+                    mappedBuffer = mappedFile.map(FileChannel.MapMode.READ_WRITE, 0,
+                            Math.max(end, mappedBuffer.capacity() * 2L));
+                } catch (IOException e) {
+                    throw DataUtils.newIllegalStateException(DataUtils.ERROR_WRITING_FAILED,
+                            "Could not map file {0}", chunkFileName, e);
                 }
             }
+            ByteBuffer dst = mappedBuffer.duplicate();
+            dst.position((int) filePos);
+            dst.put(src);
+        } else {
+            fileStorage.writeFully(filePos, src);
+        }
+    }
+
+    private void sync() {
+        if (mappedBuffer != null) {
+            mappedBuffer.force();
+        } else {
+            // 文件是预分配的，不需要同步元数据
+            try {
+                fileStorage.getFile().force(false);
+            } catch (IOException e) {
+                throw DataUtils.newIllegalStateException(DataUtils.ERROR_WRITING_FAILED, "Could not sync file {0}",
+                        chunkFileName, e);
+            }
         }
     }
 
-    private void deleteOldChunkFiles() {
-        for (int i = 0; i < id; i++) {
-            String chunkFileName = getChunkFileName(config, i);
-            if (FileUtils.exists(chunkFileName))
-                FileUtils.delete(chunkFileName);
+    /**
+     * Reset a chunk file that is no longer needed, so that it can be reused as an empty chunk.
+     *
+     * @param fileName the chunk file name
+     * @param config the config
+     * @return false if the file can not be reused
+     */
+    static boolean reset(String fileName, Map<String, String> config) {
+        FileStorage fileStorage = new FileStorage();
+        fileStorage.open(fileName, config);
+        try {
+            if (fileStorage.size() < HEADER_SIZE + BATCH_HEADER_SIZE)
+                return false;
+            ByteBuffer header = fileStorage.readFully(0, HEADER_SIZE);
+            if (header.getInt() != MAGIC)
+                return false;
+            header.getInt();
+            long generation = header.getLong();
+            // 新的generation让旧记录都失效，后面再跟一个长度为0的batch
+            fileStorage.writeFully(0, createHeader(generation + 1));
+            fileStorage.writeFully(HEADER_SIZE, ByteBuffer.allocate(BATCH_HEADER_SIZE));
+            fileStorage.sync();
+            return true;
+        } finally {
+            fileStorage.close();
         }
     }
 
@@ -18,15 +18,13 @@
 package org.lealone.transaction.mvcc.log;
 
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.HashMap;
 import java.util.Map;
 
 import org.lealone.common.exceptions.DbException;
 import org.lealone.common.util.DataUtils;
 import org.lealone.db.DataBuffer;
 import org.lealone.db.value.ValueString;
-import org.lealone.transaction.mvcc.TransactionalLogRecord;
 
 public abstract class RedoLogRecord {
 
@@ -36,22 +34,25 @@ public abstract class RedoLogRecord {
     private static byte TYPE_DROPPED_MAP_REDO_LOG_RECORD = 1;
     private static byte TYPE_LOCAL_TRANSACTION_REDO_LOG_RECORD = 2;
     private static byte TYPE_DISTRIBUTED_TRANSACTION_REDO_LOG_RECORD = 3;
+    private static byte TYPE_MAP_CHECKPOINT = 4;
+    private static byte TYPE_MAP_IDS = 5;
 
-    private volatile boolean synced;
+    // 加入RedoLog时分配的序列号，不大于RedoLog中已sync的序列号时就说明这条记录已经写到硬盘了
+    private long sequence;
 
-    boolean isSynced() {
-        return synced;
+    long getSequence() {
+        return sequence;
     }
 
-    void setSynced(boolean synced) {
-        this.synced = synced;
+    void setSequence(long sequence) {
+        this.sequence = sequence;
     }
 
     boolean isCheckpoint() {
         return false;
     }
 
-    abstract long initPendingRedoLog(Map<String, List<ByteBuffer>> pendingRedoLog, long lastTransactionId);
+    abstract void initPendingRedoLog(PendingRedoLog pendingRedoLog);
 
     abstract void write(DataBuffer buff);
 
@@ -65,6 +66,10 @@ public abstract class RedoLogRecord {
             return LocalTransactionRedoLogRecord.read(buff);
         } else if (type == TYPE_DISTRIBUTED_TRANSACTION_REDO_LOG_RECORD) {
             return DistributedTransactionRedoLogRecord.read(buff);
+        } else if (type == TYPE_MAP_CHECKPOINT) {
+            return MapCheckpoint.read(buff);
+        } else if (type == TYPE_MAP_IDS) {
+            return MapIds.read(buff);
         } else {
             throw DbException.throwInternalError("unknow type: " + type);
         }
@@ -74,6 +79,15 @@ public abstract class RedoLogRecord {
         return new Checkpoint(checkpointId);
     }
 
+    public static MapCheckpoint createMapCheckpoint(String mapName, long lowWaterTransactionId,
+            long lastTransactionId) {
+        return new MapCheckpoint(mapName, lowWaterTransactionId, lastTransactionId);
+    }
+
+    static MapIds createMapIds(Map<String, Integer> mapIds) {
+        return new MapIds(mapIds);
+    }
+
     public static DroppedMapRedoLogRecord createDroppedMapRedoLogRecord(String mapName) {
         return new DroppedMapRedoLogRecord(mapName);
     }
@@ -103,13 +117,8 @@ public abstract class RedoLogRecord {
         }
 
         @Override
-        public long initPendingRedoLog(Map<String, List<ByteBuffer>> pendingRedoLog, long lastTransactionId) {
-            pendingRedoLog.clear();
-            if (checkpointId < lastTransactionId) {
-                throw DbException.throwInternalError(
-                        "checkpointId=" + checkpointId + ", lastTransactionId=" + lastTransactionId);
-            }
-            return checkpointId;
+        public void initPendingRedoLog(PendingRedoLog pendingRedoLog) {
+            pendingRedoLog.checkpoint(checkpointId);
         }
 
         @Override
@@ -124,6 +133,77 @@ public abstract class RedoLogRecord {
         }
     }
 
+    // 单独保存了一个map之后写入，redo时这个map中事务ID小于lowWaterTransactionId的记录都不需要了
+    static class MapCheckpoint extends RedoLogRecord {
+        private final String mapName;
+        private final long lowWaterTransactionId;
+        // 前面的chunk被回收后，启动时还能知道已经用过的事务ID
+        private final long lastTransactionId;
+
+        MapCheckpoint(String mapName, long lowWaterTransactionId, long lastTransactionId) {
+            DataUtils.checkArgument(mapName != null, "The mapName may not be null");
+            this.mapName = mapName;
+            this.lowWaterTransactionId = lowWaterTransactionId;
+            this.lastTransactionId = lastTransactionId;
+        }
+
+        @Override
+        public void initPendingRedoLog(PendingRedoLog pendingRedoLog) {
+            pendingRedoLog.checkpointMap(mapName, lowWaterTransactionId, lastTransactionId);
+        }
+
+        @Override
+        public void write(DataBuffer buff) {
+            buff.put(TYPE_MAP_CHECKPOINT);
+            ValueString.type.write(buff, mapName);
+            buff.putVarLong(lowWaterTransactionId);
+            buff.putVarLong(lastTransactionId);
+        }
+
+        public static RedoLogRecord read(ByteBuffer buff) {
+            String mapName = ValueString.type.read(buff);
+            long lowWaterTransactionId = DataUtils.readVarLong(buff);
+            long lastTransactionId = DataUtils.readVarLong(buff);
+            return new MapCheckpoint(mapName, lowWaterTransactionId, lastTransactionId);
+        }
+    }
+
+    // 事务的redo日志记录中只写map的id，map名在每个chunk中只需要出现一次
+    static class MapIds extends RedoLogRecord {
+        private final Map<String, Integer> mapIds;
+
+        MapIds(Map<String, Integer> mapIds) {
+            this.mapIds = mapIds;
+        }
+
+        @Override
+        public void initPendingRedoLog(PendingRedoLog pendingRedoLog) {
+            for (Map.Entry<String, Integer> e : mapIds.entrySet()) {
+                pendingRedoLog.addMapId(e.getValue(), e.getKey());
+            }
+        }
+
+        @Override
+        public void write(DataBuffer buff) {
+            buff.put(TYPE_MAP_IDS);
+            buff.putVarInt(mapIds.size());
+            for (Map.Entry<String, Integer> e : mapIds.entrySet()) {
+                buff.putVarInt(e.getValue());
+                ValueString.type.write(buff, e.getKey());
+            }
+        }
+
+        public static RedoLogRecord read(ByteBuffer buff) {
+            int size = DataUtils.readVarInt(buff);
+            HashMap<String, Integer> mapIds = new HashMap<>(size);
+            for (int i = 0; i < size; i++) {
+                int id = DataUtils.readVarInt(buff);
+                mapIds.put(ValueString.type.read(buff), id);
+            }
+            return new MapIds(mapIds);
+        }
+    }
+
     static class DroppedMapRedoLogRecord extends RedoLogRecord {
         private final String mapName;
 
@@ -133,13 +213,8 @@ public abstract class RedoLogRecord {
         }
 
         @Override
-        public long initPendingRedoLog(Map<String, List<ByteBuffer>> pendingRedoLog, long lastTransactionId) {
-            List<ByteBuffer> logs = pendingRedoLog.get(mapName);
-            if (logs != null) {
-                logs = new ArrayList<>();
-                pendingRedoLog.put(mapName, logs);
-            }
-            return lastTransactionId;
+        public void initPendingRedoLog(PendingRedoLog pendingRedoLog) {
+            pendingRedoLog.dropMap(mapName);
         }
 
         @Override
@@ -164,12 +239,8 @@ public abstract class RedoLogRecord {
         }
 
         @Override
-        public long initPendingRedoLog(Map<String, List<ByteBuffer>> pendingRedoLog, long lastTransactionId) {
-            ByteBuffer buff = operations;
-            while (buff.hasRemaining()) {
-                TransactionalLogRecord.readForRedo(buff, pendingRedoLog);
-            }
-            return transactionId > lastTransactionId ? transactionId : lastTransactionId;
+        public void initPendingRedoLog(PendingRedoLog pendingRedoLog) {
+            pendingRedoLog.addTransaction(transactionId, operations);
         }
 
         @Override
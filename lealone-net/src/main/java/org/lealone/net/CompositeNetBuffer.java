@@ -0,0 +1,155 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.net;
+
+import java.util.Arrays;
+
+import org.lealone.common.exceptions.DbException;
+
+/**
+ * A read-only buffer made of several buffers, without copying their bytes.
+ * It is used when a packet spans several reads.
+ *
+ * @author zhh
+ */
+public class CompositeNetBuffer implements NetBuffer {
+
+    private NetBuffer[] components;
+    // offsets[i]是第i个buffer在整个buffer中的开始位置，最后一个元素是总长度
+    private int[] offsets;
+    private int count;
+    private int lastIndex; // 通常是顺序读，记住上一次用到的buffer
+
+    public CompositeNetBuffer(NetBuffer first, NetBuffer second) {
+        components = new NetBuffer[4];
+        offsets = new int[5];
+        add(first);
+        add(second);
+    }
+
+    private CompositeNetBuffer(NetBuffer[] components, int count) {
+        this.components = new NetBuffer[Math.max(4, count)];
+        this.offsets = new int[this.components.length + 1];
+        for (int i = 0; i < count; i++) {
+            add(components[i]);
+        }
+    }
+
+    private void add(NetBuffer buff) {
+        int len = buff.length();
+        if (len == 0)
+            return;
+        if (count == components.length) {
+            components = Arrays.copyOf(components, count * 2);
+            offsets = Arrays.copyOf(offsets, count * 2 + 1);
+        }
+        components[count] = buff;
+        offsets[count + 1] = offsets[count] + len;
+        count++;
+    }
+
+    private int getIndex(int pos) {
+        int i = lastIndex;
+        if (pos < offsets[i] || pos >= offsets[i + 1]) {
+            // 找最后一个开始位置小于等于pos的buffer
+            int low = 0, high = count - 1;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (offsets[mid] <= pos)
+                    low = mid;
+                else
+                    high = mid - 1;
+            }
+            i = low;
+            lastIndex = i;
+        }
+        return i;
+    }
+
+    @Override
+    public CompositeNetBuffer appendBuffer(NetBuffer buff) {
+        if (buff instanceof CompositeNetBuffer) {
+            CompositeNetBuffer c = (CompositeNetBuffer) buff;
+            for (int i = 0; i < c.count; i++) {
+                add(c.components[i]);
+            }
+        } else {
+            add(buff);
+        }
+        return this;
+    }
+
+    @Override
+    public int length() {
+        return offsets[count];
+    }
+
+    @Override
+    public NetBuffer slice(int start, int end) {
+        return subBuffer(start, end, false);
+    }
+
+    @Override
+    public NetBuffer getBuffer(int start, int end) {
+        return subBuffer(start, end, true);
+    }
+
+    private NetBuffer subBuffer(int start, int end, boolean copy) {
+        if (start == end)
+            return new CompositeNetBuffer(new NetBuffer[0], 0);
+        int from = getIndex(start);
+        int to = getIndex(end - 1);
+        NetBuffer[] parts = new NetBuffer[to - from + 1];
+        for (int i = from; i <= to; i++) {
+            int s = Math.max(start, offsets[i]) - offsets[i];
+            int e = Math.min(end, offsets[i + 1]) - offsets[i];
+            parts[i - from] = copy ? components[i].getBuffer(s, e) : components[i].slice(s, e);
+        }
+        if (parts.length == 1)
+            return parts[0];
+        return new CompositeNetBuffer(parts, parts.length);
+    }
+
+    @Override
+    public short getUnsignedByte(int pos) {
+        int i = getIndex(pos);
+        return components[i].getUnsignedByte(pos - offsets[i]);
+    }
+
+    @Override
+    public NetBuffer setByte(int pos, byte b) {
+        int i = getIndex(pos);
+        components[i].setByte(pos - offsets[i], b);
+        return this;
+    }
+
+    @Override
+    public NetBuffer appendByte(byte b) {
+        throw DbException.getUnsupportedException("appendByte");
+    }
+
+    @Override
+    public NetBuffer appendBytes(byte[] bytes, int offset, int len) {
+        throw DbException.getUnsupportedException("appendBytes");
+    }
+
+    @Override
+    public NetBuffer appendInt(int i) {
+        throw DbException.getUnsupportedException("appendInt");
+    }
+}
@@ -147,7 +147,8 @@ public abstract class TransferConnection extends AsyncConnection {
                         continue;
                     }
                 } else {
-                    lastBuffer = buffer.getBuffer(pos, pos + length);
+                    // 包还没收完，从头开始的buffer直接留着等下次组合，不用复制
+                    lastBuffer = pos == 0 ? buffer : buffer.getBuffer(pos, pos + length);
                     break;
                 }
             }
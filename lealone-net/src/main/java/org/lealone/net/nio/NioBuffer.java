@@ -20,38 +20,58 @@ package org.lealone.net.nio;
 import java.nio.ByteBuffer;
 
 import org.lealone.db.DataBuffer;
+import org.lealone.net.CompositeNetBuffer;
 import org.lealone.net.NetBuffer;
 
 public class NioBuffer implements NetBuffer {
 
-    private DataBuffer dataBuffer;
+    private final DataBuffer dataBuffer;
+    private ByteBuffer pooledBuffer; // 从NioBufferPool中分配的buffer，写到socket后再放回去
+    private ByteBuffer flippedBuffer;
 
     public NioBuffer(DataBuffer dataBuffer) {
         this.dataBuffer = dataBuffer;
     }
 
+    static NioBuffer createPooled(int initialSizeHint) {
+        ByteBuffer buffer = NioBufferPool.allocate(initialSizeHint);
+        NioBuffer nioBuffer = new NioBuffer(DataBuffer.create(buffer));
+        nioBuffer.pooledBuffer = buffer;
+        return nioBuffer;
+    }
+
+    /**
+     * Flip the buffer for writing to a socket. Calling it again returns the same buffer.
+     *
+     * @return the byte buffer
+     */
     public ByteBuffer getByteBuffer() {
-        return dataBuffer.getAndFlipBuffer();
+        if (flippedBuffer == null)
+            flippedBuffer = dataBuffer.getAndFlipBuffer();
+        return flippedBuffer;
     }
 
-    @Override
-    public NioBuffer appendBuffer(NetBuffer buff) {
-        if (buff instanceof NioBuffer) {
-            DataBuffer newDataBuffer = ((NioBuffer) buff).dataBuffer;
-            if (dataBuffer.limit() == 0) {
-                dataBuffer = newDataBuffer;
-            } else {
-                DataBuffer tmp = DataBuffer
-                        .create(dataBuffer.limit() + (newDataBuffer.limit() - newDataBuffer.position()));
-                tmp.put(dataBuffer.getBuffer());
-                tmp.put(newDataBuffer.getBuffer());
-                tmp.getBuffer().flip();
-                dataBuffer = tmp;
-                // dataBuffer.position(dataBuffer.limit()).put(newDataBuffer.getBuffer());
-                // dataBuffer.getBuffer().flip();
-            }
+    /**
+     * Give the pooled buffer back after the bytes were written to the socket.
+     * DataBuffer may have already moved the bytes to a larger heap buffer,
+     * in this case the pooled buffer is not used any more either.
+     */
+    void release() {
+        ByteBuffer buffer = pooledBuffer;
+        if (buffer != null) {
+            pooledBuffer = null;
+            NioBufferPool.release(buffer);
         }
-        return this;
+    }
+
+    // 一个协议包跨越多次读时不再复制，而是组合成一个CompositeNetBuffer
+    @Override
+    public NetBuffer appendBuffer(NetBuffer buff) {
+        if (buff.length() == 0)
+            return this;
+        if (length() == 0)
+            return buff;
+        return new CompositeNetBuffer(this, buff);
     }
 
     @Override
@@ -17,7 +17,6 @@
  */
 package org.lealone.net.nio;
 
-import org.lealone.db.DataBuffer;
 import org.lealone.net.NetBufferFactory;
 
 public class NioBufferFactory implements NetBufferFactory {
@@ -33,7 +32,7 @@ public class NioBufferFactory implements NetBufferFactory {
 
     @Override
     public NioBuffer createBuffer(int initialSizeHint) {
-        return new NioBuffer(DataBuffer.create(initialSizeHint));
+        return NioBuffer.createPooled(initialSizeHint);
     }
 
 }
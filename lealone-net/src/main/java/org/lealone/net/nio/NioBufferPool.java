@@ -0,0 +1,109 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.net.nio;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of direct byte buffers, used for the packets written to a socket.
+ * <p>
+ * The buffers are grouped in size classes of 4 KB, 16 KB, 64 KB, 256 KB and 1 MB.
+ * Buffers are allocated by the threads that execute commands but released by the
+ * event loop threads after writing, so every size class uses one queue shared by
+ * all threads, at most 4 MB each. Larger requests get a heap buffer that is not pooled.
+ *
+ * @author zhh
+ */
+class NioBufferPool {
+
+    private static final int MIN_SIZE_SHIFT = 12; // 最小4K
+    private static final int SIZE_CLASS_COUNT = 5; // 最大1M，每一级是上一级的4倍
+    private static final int MAX_POOLED_SIZE = 1 << (MIN_SIZE_SHIFT + 2 * (SIZE_CLASS_COUNT - 1));
+
+    // 每一级最多缓存4M
+    private static final int MAX_SHARED_BYTES = 4 * 1024 * 1024;
+
+    private static final SizeClass[] sizeClasses = new SizeClass[SIZE_CLASS_COUNT];
+    static {
+        for (int i = 0; i < SIZE_CLASS_COUNT; i++) {
+            sizeClasses[i] = new SizeClass(1 << (MIN_SIZE_SHIFT + 2 * i));
+        }
+    }
+
+    private NioBufferPool() {
+    }
+
+    /**
+     * Get a buffer with at least the given capacity. The buffer is cleared.
+     *
+     * @param size the minimum capacity
+     * @return the buffer
+     */
+    static ByteBuffer allocate(int size) {
+        if (size > MAX_POOLED_SIZE)
+            return ByteBuffer.allocate(size);
+        SizeClass sizeClass = sizeClasses[getSizeClassIndex(size)];
+        ByteBuffer buffer = sizeClass.shared.poll();
+        if (buffer != null)
+            sizeClass.sharedCount.decrementAndGet();
+        else
+            buffer = ByteBuffer.allocateDirect(sizeClass.size);
+        return buffer;
+    }
+
+    /**
+     * Give a buffer back to the pool. The caller must not use the buffer any more.
+     * Buffers that were not allocated by the pool are ignored.
+     *
+     * @param buffer the buffer
+     */
+    static void release(ByteBuffer buffer) {
+        if (!buffer.isDirect() || buffer.capacity() > MAX_POOLED_SIZE)
+            return;
+        SizeClass sizeClass = sizeClasses[getSizeClassIndex(buffer.capacity())];
+        if (sizeClass.size != buffer.capacity())
+            return;
+        buffer.clear();
+        if (sizeClass.sharedCount.incrementAndGet() <= sizeClass.maxShared) {
+            sizeClass.shared.offer(buffer);
+        } else {
+            sizeClass.sharedCount.decrementAndGet();
+        }
+    }
+
+    private static int getSizeClassIndex(int size) {
+        int index = 0;
+        while (size > sizeClasses[index].size)
+            index++;
+        return index;
+    }
+
+    private static class SizeClass {
+        final int size;
+        final int maxShared;
+        final ConcurrentLinkedQueue<ByteBuffer> shared = new ConcurrentLinkedQueue<>();
+        final AtomicInteger sharedCount = new AtomicInteger(); // 不要求精确
+
+        SizeClass(int size) {
+            this.size = size;
+            maxShared = Math.max(1, MAX_SHARED_BYTES / size);
+        }
+    }
+}
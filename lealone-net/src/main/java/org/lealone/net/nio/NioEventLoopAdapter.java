@@ -24,9 +24,8 @@ import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.util.Arrays;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -35,11 +34,26 @@ import org.lealone.common.util.DateTimeUtils;
 
 public class NioEventLoopAdapter implements NioEventLoop {
 
-    private final ConcurrentHashMap<SocketChannel, ConcurrentLinkedQueue<ByteBuffer>> channels = new ConcurrentHashMap<>();
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_GATHERING_BUFFERS = 64;
+
+    private final ConcurrentHashMap<SocketChannel, WriteQueue> channels = new ConcurrentHashMap<>();
+
+    // 只放有数据要写的channel，事件循环线程只需要处理它们，不用遍历所有channel
+    private final ConcurrentLinkedQueue<WriteQueue> pendingFlushes = new ConcurrentLinkedQueue<>();
+
+    // 其他线程要注册的channel先放到这里，由事件循环线程在select之前注册
+    private final ConcurrentLinkedQueue<Registration> registrations = new ConcurrentLinkedQueue<>();
 
     private final AtomicBoolean selecting = new AtomicBoolean(false);
     private Selector selector;
     private final long loopInterval;
+    private volatile Thread loopThread;
+
+    // 下面这些buffer只在事件循环线程中使用
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final NioBuffer[] gatheringNioBuffers = new NioBuffer[MAX_GATHERING_BUFFERS];
+    private final ByteBuffer[] gatheringBuffers = new ByteBuffer[MAX_GATHERING_BUFFERS];
 
     public NioEventLoopAdapter(Map<String, String> config, String loopIntervalKey, long loopIntervalDefaultValue)
             throws IOException {
@@ -52,6 +66,16 @@ public class NioEventLoopAdapter implements NioEventLoop {
         return this;
     }
 
+    /**
+     * Get the buffer that the event loop thread reads into. The bytes read
+     * have to be copied before the next read.
+     *
+     * @return the read buffer
+     */
+    public ByteBuffer getReadBuffer() {
+        return readBuffer;
+    }
+
     @Override
     public Selector getSelector() {
         return selector;
@@ -64,8 +88,11 @@ public class NioEventLoopAdapter implements NioEventLoop {
 
     @Override
     public void select(long timeout) throws IOException {
-        tryRegisterWriteOperation(selector);
+        loopThread = Thread.currentThread();
+        registerPendingChannels();
         if (selecting.compareAndSet(false, true)) {
+            // 先置selecting再检查写队列，之后加入的数据会调用selector.wakeup()，不会等到select超时
+            tryRegisterWriteOperation(selector);
             selector.select(timeout);
             selecting.set(false);
         }
@@ -75,18 +102,10 @@ public class NioEventLoopAdapter implements NioEventLoop {
     public void register(SocketChannel channel, int ops, Object att) throws ClosedChannelException {
         // 当nio-event-loop线程执行selector.select被阻塞时，代码内部依然会占用publicKeys锁，
         // 而另一个线程执行channel.register时，内部也会去要publicKeys锁，从而导致也被阻塞，
-        // 所以下面这段代码的用处是:
-        // 只要发现nio-event-loop线程正在进行select，那么就唤醒它，并释放publicKeys锁。
-        while (true) {
-            if (selecting.compareAndSet(false, true)) {
-                channel.register(selector, SelectionKey.OP_CONNECT, att);
-                selecting.set(false);
-                selector.wakeup();
-                break;
-            } else {
-                selector.wakeup();
-            }
-        }
+        // 所以这里不直接注册，而是放到队列中，唤醒nio-event-loop线程后由它在select之前注册，
+        // 这样也不会因为nio-event-loop线程一直很忙而抢不到selector。
+        registrations.add(new Registration(channel, ops, att));
+        selector.wakeup();
     }
 
     @Override
@@ -98,71 +117,164 @@ public class NioEventLoopAdapter implements NioEventLoop {
 
     @Override
     public void addSocketChannel(SocketChannel channel) {
-        ConcurrentLinkedQueue<ByteBuffer> queue = new ConcurrentLinkedQueue<>();
-        channels.putIfAbsent(channel, queue);
+        channels.putIfAbsent(channel, new WriteQueue(channel));
+    }
+
+    /**
+     * Get the number of channels that use this event loop.
+     *
+     * @return the number of channels
+     */
+    public int getChannelCount() {
+        return channels.size();
+    }
+
+    private void registerPendingChannels() {
+        Registration r = registrations.poll();
+        while (r != null) {
+            try {
+                r.channel.register(selector, r.ops, r.att);
+            } catch (ClosedChannelException e) {
+                closeChannel(r.channel);
+            }
+            r = registrations.poll();
+        }
+    }
+
+    private static class Registration {
+        final SocketChannel channel;
+        final int ops;
+        final Object att;
+
+        Registration(SocketChannel channel, int ops, Object att) {
+            this.channel = channel;
+            this.ops = ops;
+            this.att = att;
+        }
     }
 
     @Override
     public void addNioBuffer(SocketChannel channel, NioBuffer nioBuffer) {
-        ConcurrentLinkedQueue<ByteBuffer> queue = channels.get(channel);
+        WriteQueue queue = channels.get(channel);
         if (queue != null) {
-            ByteBuffer buffer = nioBuffer.getByteBuffer();
-            queue.add(buffer);
-            wakeup();
+            nioBuffer.getByteBuffer(); // 先flip
+            queue.buffers.add(nioBuffer);
+            if (Thread.currentThread() == loopThread) {
+                // 在事件循环线程中直接写，写不完时才注册OP_WRITE
+                flush(queue);
+            } else if (queue.pending.compareAndSet(false, true)) {
+                pendingFlushes.add(queue);
+                wakeup();
+            }
+        } else {
+            nioBuffer.release(); // channel已经关闭了
         }
     }
 
     @Override
     public void tryRegisterWriteOperation(Selector selector) {
-        for (Entry<SocketChannel, ConcurrentLinkedQueue<ByteBuffer>> entry : channels.entrySet()) {
-            if (!entry.getValue().isEmpty()) {
-                for (SelectionKey key : selector.keys()) {
-                    if (key.channel() == entry.getKey() && key.isValid()) {
-                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
-                        break;
-                    }
-                }
-            }
+        WriteQueue queue = pendingFlushes.poll();
+        while (queue != null) {
+            // 先清除标记再写，这样写的过程中其他线程加入的数据会再把它放回pendingFlushes
+            queue.pending.set(false);
+            flush(queue);
+            queue = pendingFlushes.poll();
         }
     }
 
     @Override
     public void write(SelectionKey key) {
-        SocketChannel channel = (SocketChannel) key.channel();
+        WriteQueue queue = channels.get(key.channel());
+        if (queue == null) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            return;
+        }
+        queue.key = key;
+        flush(queue);
+    }
+
+    private void flush(WriteQueue queue) {
+        SocketChannel channel = queue.channel;
+        NioBuffer[] nioBuffers = gatheringNioBuffers;
+        ByteBuffer[] buffers = gatheringBuffers;
         try {
-            Queue<ByteBuffer> queue = channels.get(channel);
-            outer: for (ByteBuffer buffer : queue) {
-                // 一定要用while循环来写，否则会丢数据！
-                while (buffer.hasRemaining()) {
-                    if (channel.write(buffer) <= 0)
-                        break outer;
+            while (true) {
+                int count = 0;
+                for (NioBuffer nioBuffer : queue.buffers) {
+                    nioBuffers[count] = nioBuffer;
+                    buffers[count] = nioBuffer.getByteBuffer();
+                    if (++count == MAX_GATHERING_BUFFERS)
+                        break;
                 }
-                if (!buffer.hasRemaining()) {
-                    queue.remove(buffer);
+                if (count == 0) {
+                    setWriteInterest(queue, false);
+                    return;
+                }
+                // 一次系统调用写多个buffer
+                channel.write(buffers, 0, count);
+                int written = 0;
+                while (written < count && !buffers[written].hasRemaining()) {
+                    queue.buffers.poll();
+                    nioBuffers[written].release();
+                    written++;
+                }
+                Arrays.fill(nioBuffers, 0, count, null);
+                Arrays.fill(buffers, 0, count, null);
+                if (written < count) {
+                    // socket的发送缓冲区满了，等到可写时再写
+                    setWriteInterest(queue, true);
+                    return;
                 }
-            }
-            if (queue.isEmpty()) {
-                int ops = key.interestOps();
-                ops &= ~SelectionKey.OP_WRITE;
-                key.interestOps(ops);
             }
         } catch (IOException e) {
+            Arrays.fill(nioBuffers, null);
+            Arrays.fill(buffers, null);
             closeChannel(channel);
         }
     }
 
+    private void setWriteInterest(WriteQueue queue, boolean write) {
+        SelectionKey key = queue.key;
+        if (key == null) {
+            key = queue.channel.keyFor(selector);
+            if (key == null) {
+                // 还没有注册到selector，下次select之后再写
+                if (write && queue.pending.compareAndSet(false, true))
+                    pendingFlushes.add(queue);
+                return;
+            }
+            queue.key = key;
+        }
+        if (key.isValid()) {
+            int ops = key.interestOps();
+            int newOps = write ? ops | SelectionKey.OP_WRITE : ops & ~SelectionKey.OP_WRITE;
+            if (newOps != ops)
+                key.interestOps(newOps);
+        }
+    }
+
     @Override
     public void closeChannel(SocketChannel channel) {
         if (channel == null) {
             return;
         }
-        for (SelectionKey key : selector.keys()) {
-            if (key.channel() == channel && key.isValid()) {
+        Selector selector = this.selector;
+        if (selector != null) {
+            SelectionKey key = channel.keyFor(selector);
+            if (key != null)
                 key.cancel();
-                break;
+        }
+        WriteQueue queue = channels.remove(channel);
+        if (queue != null) {
+            // 事件循环线程可能正在写这些buffer，所以只在事件循环线程中放回池中，其他线程只是丢掉它们
+            boolean release = Thread.currentThread() == loopThread;
+            NioBuffer nioBuffer = queue.buffers.poll();
+            while (nioBuffer != null) {
+                if (release)
+                    nioBuffer.release();
+                nioBuffer = queue.buffers.poll();
             }
         }
-        channels.remove(channel);
         Socket socket = channel.socket();
         if (socket != null) {
             try {
@@ -176,6 +288,17 @@ public class NioEventLoopAdapter implements NioEventLoop {
         }
     }
 
+    private static class WriteQueue {
+        final SocketChannel channel;
+        final ConcurrentLinkedQueue<NioBuffer> buffers = new ConcurrentLinkedQueue<>();
+        final AtomicBoolean pending = new AtomicBoolean(false); // 是否已经放到pendingFlushes中
+        SelectionKey key; // 只在事件循环线程中访问
+
+        WriteQueue(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
     public void close() {
         try {
             Selector selector = this.selector;
@@ -38,7 +38,6 @@ import org.lealone.net.AsyncConnectionManager;
 import org.lealone.net.NetClientBase;
 import org.lealone.net.NetEndpoint;
 import org.lealone.net.TcpClientConnection;
-import org.lealone.net.Transfer;
 
 public class NioNetClient extends NetClientBase implements NioEventLoop {
 
@@ -148,15 +147,19 @@ public class NioNetClient extends NetClientBase implements NioEventLoop {
         AsyncConnection conn = (AsyncConnection) key.attachment();
         SocketChannel channel = (SocketChannel) key.channel();
         try {
+            ByteBuffer buffer = nioEventLoopAdapter.getReadBuffer();
             while (true) {
-                DataBuffer dataBuffer = DataBuffer.create(Transfer.BUFFER_SIZE);
-                ByteBuffer buffer = dataBuffer.getBuffer();
+                buffer.clear();
                 int count = channel.read(buffer);
                 if (count <= 0)
                     break;
                 buffer.flip();
-                NioBuffer nioBuffer = new NioBuffer(dataBuffer);
+                byte[] bytes = new byte[count];
+                buffer.get(bytes);
+                NioBuffer nioBuffer = new NioBuffer(DataBuffer.create(ByteBuffer.wrap(bytes)));
                 conn.handle(nioBuffer);
+                if (count < buffer.capacity())
+                    break;
             }
         } catch (IOException e) {
             closeChannel(channel);
@@ -24,6 +24,7 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.lealone.common.concurrent.ConcurrentUtils;
 import org.lealone.common.logging.Logger;
@@ -31,14 +32,17 @@ import org.lealone.common.logging.LoggerFactory;
 import org.lealone.db.DataBuffer;
 import org.lealone.net.AsyncConnection;
 import org.lealone.net.NetServerBase;
-import org.lealone.net.Transfer;
 
 //TODO 1.支持SSL 2.支持配置参数
+// 一个线程只负责accept，新连接分给多个worker事件循环中连接数最少的那个，
+// 之后这个连接的读写都在同一个worker线程中执行，每个worker有自己的selector和写队列
 public class NioNetServer extends NetServerBase implements NioEventLoop {
 
     private static final Logger logger = LoggerFactory.getLogger(NioNetServer.class);
     private ServerSocketChannel serverChannel;
-    private NioEventLoopAdapter nioEventLoopAdapter;
+    private NioEventLoopAdapter nioEventLoopAdapter; // 只用于accept
+    private NioEventLoopAdapter[] workers;
+    private final AtomicInteger nextWorker = new AtomicInteger();
 
     @Override
     public synchronized void start() {
@@ -47,6 +51,15 @@ public class NioNetServer extends NetServerBase implements NioEventLoop {
         logger.info("Starting nio net server");
         try {
             nioEventLoopAdapter = new NioEventLoopAdapter(config, "server_nio_event_loop_interval", 1000); // 默认1秒
+            int workerCount;
+            if (config.containsKey("server_nio_event_loop_count"))
+                workerCount = Math.max(1, Integer.parseInt(config.get("server_nio_event_loop_count")));
+            else
+                workerCount = Runtime.getRuntime().availableProcessors();
+            workers = new NioEventLoopAdapter[workerCount];
+            for (int i = 0; i < workerCount; i++) {
+                workers[i] = new NioEventLoopAdapter(config, "server_nio_event_loop_interval", 1000);
+            }
             serverChannel = ServerSocketChannel.open();
             serverChannel.socket().bind(new InetSocketAddress(getHost(), getPort()));
             serverChannel.configureBlocking(false);
@@ -54,20 +67,26 @@ public class NioNetServer extends NetServerBase implements NioEventLoop {
             super.start();
 
             ConcurrentUtils.submitTask("Server-Nio-Event-Loop-" + getPort(), () -> {
-                NioNetServer.this.run();
+                NioNetServer.this.run(nioEventLoopAdapter);
             });
+            for (int i = 0; i < workerCount; i++) {
+                NioEventLoopAdapter worker = workers[i];
+                ConcurrentUtils.submitTask("Server-Nio-Event-Loop-" + getPort() + "-" + i, () -> {
+                    NioNetServer.this.run(worker);
+                });
+            }
         } catch (Exception e) {
             checkBindException(e, "Failed to start nio net server");
         }
     }
 
-    private void run() {
-        for (;;) {
+    private void run(NioEventLoopAdapter eventLoop) {
+        while (!isStopped()) {
             try {
-                nioEventLoopAdapter.select();
+                eventLoop.select();
                 if (isStopped())
                     break;
-                Set<SelectionKey> keys = nioEventLoopAdapter.getSelector().selectedKeys();
+                Set<SelectionKey> keys = eventLoop.getSelector().selectedKeys();
                 try {
                     for (SelectionKey key : keys) {
                         if (key.isValid()) {
@@ -75,7 +94,7 @@ public class NioNetServer extends NetServerBase implements NioEventLoop {
                             if ((readyOps & SelectionKey.OP_READ) != 0) {
                                 read(key);
                             } else if ((readyOps & SelectionKey.OP_WRITE) != 0) {
-                                write(key);
+                                eventLoop.write(key);
                             } else if ((readyOps & SelectionKey.OP_ACCEPT) != 0) {
                                 accept();
                             } else {
@@ -98,27 +117,53 @@ public class NioNetServer extends NetServerBase implements NioEventLoop {
 
     private static class Attachment {
         AsyncConnection conn;
+        NioEventLoopAdapter eventLoop;
         int endOfStreamCount;
     }
 
+    // 从当前位置开始找连接数最少的worker，连接数相同时就相当于轮流分配
+    private NioEventLoopAdapter nextWorker() {
+        int count = workers.length;
+        int start = (nextWorker.getAndIncrement() & Integer.MAX_VALUE) % count;
+        NioEventLoopAdapter worker = workers[start];
+        int min = worker.getChannelCount();
+        for (int i = 1; i < count && min > 0; i++) {
+            NioEventLoopAdapter w = workers[(start + i) % count];
+            int c = w.getChannelCount();
+            if (c < min) {
+                min = c;
+                worker = w;
+            }
+        }
+        return worker;
+    }
+
     private void accept() {
         SocketChannel channel = null;
         AsyncConnection conn = null;
+        NioEventLoopAdapter eventLoop = null;
         try {
             channel = serverChannel.accept();
+            if (channel == null)
+                return;
             channel.configureBlocking(false);
-            nioEventLoopAdapter.addSocketChannel(channel);
-            NioWritableChannel writableChannel = new NioWritableChannel(channel, this);
+            eventLoop = nextWorker();
+            eventLoop.addSocketChannel(channel);
+            NioWritableChannel writableChannel = new NioWritableChannel(channel, eventLoop);
             conn = createConnection(writableChannel, true);
 
             Attachment attachment = new Attachment();
             attachment.conn = conn;
-            channel.register(nioEventLoopAdapter.getSelector(), SelectionKey.OP_READ, attachment);
+            attachment.eventLoop = eventLoop;
+            eventLoop.register(channel, SelectionKey.OP_READ, attachment);
         } catch (Throwable e) {
             if (conn != null) {
                 removeConnection(conn);
             }
-            closeChannel(channel);
+            if (eventLoop != null)
+                eventLoop.closeChannel(channel);
+            else
+                closeChannel(channel);
             logger.warn(getName(), e);
         }
     }
@@ -128,9 +173,9 @@ public class NioNetServer extends NetServerBase implements NioEventLoop {
         AsyncConnection conn = attachment.conn;
         SocketChannel channel = (SocketChannel) key.channel();
         try {
+            ByteBuffer buffer = attachment.eventLoop.getReadBuffer();
             while (true) {
-                DataBuffer dataBuffer = DataBuffer.create(Transfer.BUFFER_SIZE);
-                ByteBuffer buffer = dataBuffer.getBuffer();
+                buffer.clear();
                 int count = channel.read(buffer);
                 if (count > 0) {
                     attachment.endOfStreamCount = 0;
@@ -141,20 +186,26 @@ public class NioNetServer extends NetServerBase implements NioEventLoop {
                     if (count < 0) {
                         attachment.endOfStreamCount++;
                         if (attachment.endOfStreamCount > 3) {
-                            closeChannel(channel);
+                            attachment.eventLoop.closeChannel(channel);
                         }
                     }
                     break;
                 }
                 buffer.flip();
-                NioBuffer nioBuffer = new NioBuffer(dataBuffer);
+                // 读缓冲区是共用的，协议包会被其他线程异步处理，所以只复制读到的字节
+                byte[] bytes = new byte[count];
+                buffer.get(bytes);
+                NioBuffer nioBuffer = new NioBuffer(DataBuffer.create(ByteBuffer.wrap(bytes)));
                 conn.handle(nioBuffer);
+                // 没读满说明已经读完了，不用再多调用一次read
+                if (count < buffer.capacity())
+                    break;
             }
         } catch (IOException e) {
             if (conn != null) {
                 removeConnection(conn);
             }
-            closeChannel(channel);
+            attachment.eventLoop.closeChannel(channel);
         }
     }
 
@@ -165,6 +216,9 @@ public class NioNetServer extends NetServerBase implements NioEventLoop {
         logger.info("Stopping nio net server");
         super.stop();
         nioEventLoopAdapter.close();
+        for (NioEventLoopAdapter worker : workers) {
+            worker.close();
+        }
         if (serverChannel != null) {
             try {
                 serverChannel.close();
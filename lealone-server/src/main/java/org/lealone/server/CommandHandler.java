@@ -17,16 +17,18 @@
  */
 package org.lealone.server;
 
+import java.util.ArrayList;
 import java.util.Map;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.lealone.common.util.DateTimeUtils;
 import org.lealone.db.Session;
 import org.lealone.db.SessionStatus;
+import org.lealone.db.async.CommandSuspendedException;
 import org.lealone.net.Transfer;
 import org.lealone.net.TransferPacketHandler;
 import org.lealone.sql.PreparedStatement;
@@ -41,6 +43,7 @@ public class CommandHandler extends Thread implements SQLStatementExecutor, Tran
         private final Transfer transfer;
         private final Session session;
         private final Runnable runnable;
+        private final long createTime = System.nanoTime();
 
         PreparedCommand(int id, PreparedStatement stmt, Transfer transfer, Session session, Runnable runnable) {
             this.id = id;
@@ -55,69 +58,154 @@ public class CommandHandler extends Thread implements SQLStatementExecutor, Tran
         }
     }
 
-    // 表示commands由commandHandler处理
+    // 表示commands由commandHandler处理，空闲的CommandHandler可以把它从忙的CommandHandler那里拿走
     static class CommandQueue {
-        final CommandHandler commandHandler;
+        volatile CommandHandler commandHandler;
         final ConcurrentLinkedQueue<PreparedCommand> preparedCommands;
+        // 为true时表示这个队列在某个就绪队列中或者正在执行命令，
+        // 同一个session的命令只能一个接一个地执行，并且这期间只有拿到这个标记的线程能修改commandHandler
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        private volatile boolean closed;
+        private long readyTime; // 放入就绪队列的时间
+        // 被挂起的命令，恢复后要在preparedCommands中的命令之前重新执行，挂起期间一直持有scheduled标记
+        private volatile PreparedCommand suspendedCommand;
 
         CommandQueue(CommandHandler commandHandler) {
             this.commandHandler = commandHandler;
             this.preparedCommands = new ConcurrentLinkedQueue<>();
         }
+
+        void addPreparedCommand(PreparedCommand pc) {
+            preparedCommands.add(pc);
+            if (scheduled.compareAndSet(false, true))
+                commandHandler.ready(this);
+        }
+
+        private boolean tryAcquire() {
+            return scheduled.compareAndSet(false, true);
+        }
+
+        // 下一条要执行的命令，只有拿到scheduled标记的线程调用
+        private PreparedCommand peekCommand() {
+            PreparedCommand pc = suspendedCommand;
+            return pc != null ? pc : preparedCommands.peek();
+        }
+
+        private PreparedCommand pollCommand() {
+            PreparedCommand pc = suspendedCommand;
+            if (pc != null) {
+                suspendedCommand = null;
+                return pc;
+            }
+            return preparedCommands.poll();
+        }
+
+        // 执行完一条命令后调用，如果还有命令就重新放回就绪队列的末尾
+        private void release() {
+            scheduled.set(false);
+            if (!closed && !preparedCommands.isEmpty() && scheduled.compareAndSet(false, true))
+                commandHandler.ready(this);
+        }
+
+        void close() {
+            synchronized (this) {
+                closed = true;
+                commandHandler.removeCommandQueue(this);
+            }
+        }
     }
 
-    private static final int commandHandlersCount = 2; // Runtime.getRuntime().availableProcessors();
-    private static final CommandHandler[] commandHandlers = new CommandHandler[commandHandlersCount];
+    private static final int PRIORITY_COUNT = PreparedStatement.MAX_PRIORITY - PreparedStatement.MIN_PRIORITY + 1;
+
+    static CommandHandler[] commandHandlers; // 测试用例会直接设置
     private static final AtomicInteger index = new AtomicInteger(0);
 
     static void startCommandHandlers(Map<String, String> config) {
+        int commandHandlersCount;
+        if (config.containsKey("command_handler_count"))
+            commandHandlersCount = Math.max(1, Integer.parseInt(config.get("command_handler_count")));
+        else
+            commandHandlersCount = Runtime.getRuntime().availableProcessors();
+        CommandHandler[] handlers = new CommandHandler[commandHandlersCount];
         for (int i = 0; i < commandHandlersCount; i++) {
-            commandHandlers[i] = new CommandHandler(i, config);
+            handlers[i] = new CommandHandler(i, config);
         }
+        commandHandlers = handlers;
 
-        SQLEngineManager.getInstance().setSQLStatementExecutors(commandHandlers);
+        SQLEngineManager.getInstance().setSQLStatementExecutors(handlers);
         for (int i = 0; i < commandHandlersCount; i++) {
-            commandHandlers[i].start();
+            handlers[i].start();
         }
     }
 
     static void stopCommandHandlers() {
-        for (int i = 0; i < commandHandlersCount; i++) {
-            commandHandlers[i].end();
+        CommandHandler[] handlers = commandHandlers;
+        for (int i = 0; i < handlers.length; i++) {
+            handlers[i].end();
         }
 
-        for (int i = 0; i < commandHandlersCount; i++) {
+        for (int i = 0; i < handlers.length; i++) {
             try {
-                commandHandlers[i].join();
+                handlers[i].join();
             } catch (InterruptedException e) {
             }
         }
     }
 
     static CommandHandler getNextCommandHandler() {
-        return commandHandlers[index.getAndIncrement() % commandHandlers.length];
+        CommandHandler[] handlers = commandHandlers;
+        return handlers[(index.getAndIncrement() & Integer.MAX_VALUE) % handlers.length];
+    }
+
+    public static CommandHandler[] getCommandHandlers() {
+        return commandHandlers;
     }
 
     private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
-    private final CopyOnWriteArrayList<CommandQueue> commandQueues = new CopyOnWriteArrayList<>();
+    // 每个优先级一个就绪队列，只有在有命令等待执行时CommandQueue才会放进来，
+    // 有未提交事务的session单独放一个队列，优先执行它们，这样能尽快释放行锁
+    private final ConcurrentLinkedQueue<CommandQueue>[] runQueues;
+    private final ConcurrentLinkedQueue<CommandQueue> transactionRunQueue = new ConcurrentLinkedQueue<>();
+    // 因为session的状态暂时不能执行的CommandQueue，只有当前线程会访问
+    private final ArrayList<CommandQueue> parkedQueues = new ArrayList<>();
+    private final AtomicInteger commandQueueCount = new AtomicInteger();
     private final Semaphore haveWork = new Semaphore(1);
+    private final int id;
     private final long loopInterval;
+    private final long maxWaitTime;
     private boolean stop;
     private int nested;
+    private volatile int executingDepth; // 大于0表示正在执行命令，只有当前线程会修改它
+
+    // 以下统计信息只有当前线程会修改，时间的单位是纳秒
+    private volatile long executedCommandCount;
+    private volatile long totalWaitTime;
+    private volatile long maxCommandWaitTime;
+    private volatile long totalRunTime;
+    private volatile long suspendedCommandCount;
 
     void addCommandQueue(CommandQueue queue) {
-        commandQueues.add(queue);
+        commandQueueCount.incrementAndGet();
     }
 
     void removeCommandQueue(CommandQueue queue) {
-        commandQueues.remove(queue);
+        commandQueueCount.decrementAndGet();
     }
 
-    private CommandHandler(int id, Map<String, String> config) {
+    @SuppressWarnings("unchecked")
+    CommandHandler(int id, Map<String, String> config) {
         super("CommandHandler-" + id);
+        this.id = id;
         // setDaemon(true);
         // 默认100毫秒
         loopInterval = DateTimeUtils.getLoopInterval(config, "command_handler_loop_interval", 100);
+        // 低优先级的命令最多等待这么久(默认100毫秒)就会被优先执行，避免一直被高优先级的命令抢先
+        maxWaitTime = TimeUnit.MILLISECONDS
+                .toNanos(DateTimeUtils.getLoopInterval(config, "command_handler_max_wait_time", 100));
+        runQueues = new ConcurrentLinkedQueue[PRIORITY_COUNT];
+        for (int i = 0; i < PRIORITY_COUNT; i++) {
+            runQueues[i] = new ConcurrentLinkedQueue<>();
+        }
     }
 
     @Override
@@ -153,12 +241,46 @@ public class CommandHandler extends Thread implements SQLStatementExecutor, Tran
         haveWork.release(1);
     }
 
+    // CommandQueue有命令等待执行了
+    private void ready(CommandQueue queue) {
+        queue.readyTime = System.nanoTime();
+        enqueue(queue);
+        if (Thread.currentThread() != this)
+            wakeUp();
+    }
+
+    private void enqueue(CommandQueue queue) {
+        PreparedCommand pc = queue.peekCommand(); // 只有拿到scheduled标记的线程会poll，所以不会是null
+        if (pc.session.getStatus() == SessionStatus.TRANSACTION_NOT_COMMIT)
+            transactionRunQueue.add(queue);
+        else
+            runQueues[getPriorityIndex(pc.stmt.getPriority())].add(queue);
+    }
+
+    private static int getPriorityIndex(int priority) {
+        if (priority < PreparedStatement.MIN_PRIORITY)
+            return 0;
+        if (priority > PreparedStatement.MAX_PRIORITY)
+            return PRIORITY_COUNT - 1;
+        return priority - PreparedStatement.MIN_PRIORITY;
+    }
+
     @Override
     public void executeNextStatement() {
         int priority = PreparedStatement.MIN_PRIORITY;
+        // 上一轮因为session的状态不能执行的CommandQueue重新参与调度
+        if (!parkedQueues.isEmpty()) {
+            for (CommandQueue queue : parkedQueues) {
+                enqueue(queue);
+            }
+            parkedQueues.clear();
+        }
         while (true) {
-            PreparedCommand c = getNextBestCommand(priority, true);
-            if (c == null) {
+            CommandQueue queue = pollReadyQueue(priority, true);
+            if (queue == null) {
+                // 在执行命令的过程中被嵌套调用时(比如等待行锁)不去拿别的CommandQueue
+                if (executingDepth == 0 && stealCommandQueue())
+                    continue;
                 try {
                     haveWork.tryAcquire(loopInterval, TimeUnit.MILLISECONDS);
                     haveWork.drainPermits();
@@ -167,11 +289,7 @@ public class CommandHandler extends Thread implements SQLStatementExecutor, Tran
                 }
                 break;
             }
-            try {
-                c.execute();
-            } catch (Throwable e) {
-                c.transfer.getTransferConnection().sendError(c.transfer, c.id, e);
-            }
+            execute(queue);
         }
     }
 
@@ -184,17 +302,13 @@ public class CommandHandler extends Thread implements SQLStatementExecutor, Tran
         int priority = current.getPriority();
         boolean hasHigherPriorityCommand = false;
         while (true) {
-            PreparedCommand c = getNextBestCommand(priority, false);
-            if (c == null) {
+            CommandQueue queue = pollReadyQueue(priority, false);
+            if (queue == null) {
                 break;
             }
 
             hasHigherPriorityCommand = true;
-            try {
-                c.execute();
-            } catch (Throwable e) {
-                c.transfer.getTransferConnection().sendError(c.transfer, c.id, e);
-            }
+            execute(queue);
         }
 
         if (hasHigherPriorityCommand) {
@@ -203,42 +317,200 @@ public class CommandHandler extends Thread implements SQLStatementExecutor, Tran
         nested--;
     }
 
-    private PreparedCommand getNextBestCommand(int priority, boolean checkStatus) {
-        if (commandQueues.isEmpty())
-            return null;
+    // 在当前线程中直接执行，队列中还有命令或者上一条命令还没执行完时不能直接执行，否则会打乱命令的执行顺序
+    boolean tryExecute(CommandQueue queue, PreparedCommand pc) {
+        if (queue.commandHandler != this || !queue.preparedCommands.isEmpty() || !queue.tryAcquire())
+            return false;
+        execute(queue, pc);
+        return true;
+    }
 
-        ConcurrentLinkedQueue<PreparedCommand> bestQueue = null;
+    // queue已经拿到scheduled标记了
+    private void execute(CommandQueue queue) {
+        PreparedCommand c = queue.pollCommand();
+        try {
+            execute(queue, c);
+        } catch (Throwable e) {
+            c.transfer.getTransferConnection().sendError(c.transfer, c.id, e);
+        }
+    }
 
-        for (CommandQueue commandQueue : commandQueues) {
-            ConcurrentLinkedQueue<PreparedCommand> preparedCommands = commandQueue.preparedCommands;
-            PreparedCommand pc = preparedCommands.peek();
-            if (pc == null)
+    private void execute(CommandQueue queue, PreparedCommand c) {
+        long start = System.nanoTime();
+        executingDepth++;
+        boolean suspendable = CommandSuspendedException.setSuspendable(true);
+        boolean suspended = false;
+        try {
+            c.execute();
+        } catch (CommandSuspendedException e) {
+            // 命令在等待时让出当前线程，恢复后放回就绪队列从头重新执行，
+            // 在这之前queue一直持有scheduled标记，同一个session的其他命令不会被执行
+            suspended = true;
+            suspendedCommandCount++;
+            queue.suspendedCommand = c;
+            e.setResumeListener(() -> queue.commandHandler.ready(queue));
+        } finally {
+            CommandSuspendedException.setSuspendable(suspendable);
+            executingDepth--;
+            // 嵌套执行时，外层命令的运行时间包含了内层命令的运行时间
+            totalRunTime += System.nanoTime() - start;
+            if (!suspended) {
+                long waitTime = start - c.createTime;
+                executedCommandCount++;
+                totalWaitTime += waitTime;
+                if (waitTime > maxCommandWaitTime)
+                    maxCommandWaitTime = waitTime;
+                queue.release();
+            }
+        }
+    }
+
+    // 返回的CommandQueue已经拿到scheduled标记了，并且至少有一条命令，
+    // checkStatus为false时只返回优先级比priority高的
+    private CommandQueue pollReadyQueue(int priority, boolean checkStatus) {
+        CommandQueue queue;
+        if (checkStatus) {
+            queue = pollStarvedQueue();
+            if (queue == null)
+                queue = pollReadyQueue(transactionRunQueue, true);
+        } else {
+            // 只有当前线程会从transactionRunQueue中取，所以peek和poll得到的是同一个
+            queue = transactionRunQueue.peek();
+            if (queue != null && !queue.closed && queue.peekCommand().stmt.getPriority() > priority)
+                queue = transactionRunQueue.poll();
+            else
+                queue = null;
+        }
+        int lowest = checkStatus ? 0 : getPriorityIndex(priority) + 1;
+        for (int i = PRIORITY_COUNT - 1; queue == null && i >= lowest; i--) {
+            queue = pollReadyQueue(runQueues[i], checkStatus);
+        }
+        return queue;
+    }
+
+    private CommandQueue pollReadyQueue(ConcurrentLinkedQueue<CommandQueue> runQueue, boolean checkStatus) {
+        while (true) {
+            CommandQueue queue = runQueue.poll();
+            if (queue == null || !checkStatus && !queue.closed)
+                return queue;
+            if (queue.closed)
+                continue; // session已经关闭了，直接丢掉
+            SessionStatus sessionStatus = queue.peekCommand().session.getStatus();
+            if (sessionStatus == SessionStatus.EXCLUSIVE_MODE
+                    || sessionStatus == SessionStatus.COMMITTING_TRANSACTION) {
+                parkedQueues.add(queue);
                 continue;
+            }
+            return queue;
+        }
+    }
 
-            if (checkStatus) {
-                SessionStatus sessionStatus = pc.session.getStatus();
-                if (sessionStatus == SessionStatus.EXCLUSIVE_MODE) {
+    // 每个就绪队列都是先进先出的，所以只需要看队头，等得最久并且超过maxWaitTime的先执行
+    private CommandQueue pollStarvedQueue() {
+        long now = System.nanoTime();
+        ConcurrentLinkedQueue<CommandQueue> starved = null;
+        long maxWait = maxWaitTime;
+        for (int i = 0; i < PRIORITY_COUNT; i++) {
+            CommandQueue queue = runQueues[i].peek();
+            if (queue != null && now - queue.readyTime > maxWait) {
+                starved = runQueues[i];
+                maxWait = now - queue.readyTime;
+            }
+        }
+        return starved == null ? null : pollReadyQueue(starved, true);
+    }
+
+    // 自己空闲时，从正在执行命令的CommandHandler那里拿走一个在就绪队列中的CommandQueue，
+    // 只拿没有事务的session，未提交的事务、正在提交的事务和独占模式都要留在原来的CommandHandler中按顺序执行
+    private boolean stealCommandQueue() {
+        CommandHandler[] handlers = commandHandlers;
+        int count = handlers.length;
+        for (int i = 1; i < count; i++) {
+            CommandHandler victim = handlers[(id + i) % count];
+            if (victim.executingDepth == 0)
+                continue;
+            for (int j = PRIORITY_COUNT - 1; j >= 0; j--) {
+                CommandQueue queue = victim.runQueues[j].poll();
+                if (queue == null || queue.closed)
                     continue;
-                } else if (sessionStatus == SessionStatus.TRANSACTION_NOT_COMMIT) {
-                    bestQueue = preparedCommands;
-                    break;
-                } else if (sessionStatus == SessionStatus.COMMITTING_TRANSACTION) {
+                if (queue.peekCommand().session.getStatus() != SessionStatus.NO_TRANSACTION) {
+                    victim.enqueue(queue); // 放回去，还是由原来的CommandHandler执行
                     continue;
                 }
-                if (bestQueue == null) {
-                    bestQueue = preparedCommands;
+                synchronized (queue) {
+                    if (queue.closed)
+                        continue;
+                    victim.removeCommandQueue(queue);
+                    queue.commandHandler = this;
+                    addCommandQueue(queue);
                 }
+                enqueue(queue);
+                return true;
             }
+        }
+        return false;
+    }
 
-            if (pc.stmt.getPriority() > priority) {
-                bestQueue = preparedCommands;
-                priority = pc.stmt.getPriority();
-            }
+    /**
+     * Get the number of sessions assigned to this handler.
+     *
+     * @return the number of sessions
+     */
+    public int getCommandQueueCount() {
+        return commandQueueCount.get();
+    }
+
+    /**
+     * Get the number of sessions that have commands waiting to be executed.
+     * This method is slow, it is only used for monitoring.
+     *
+     * @return the number of ready sessions
+     */
+    public int getReadyQueueDepth() {
+        int depth = transactionRunQueue.size();
+        for (int i = 0; i < PRIORITY_COUNT; i++) {
+            depth += runQueues[i].size();
         }
+        return depth;
+    }
+
+    public long getExecutedCommandCount() {
+        return executedCommandCount;
+    }
+
+    /**
+     * Get the total time the executed commands waited in the queue, in nanoseconds.
+     *
+     * @return the total wait time
+     */
+    public long getTotalWaitTime() {
+        return totalWaitTime;
+    }
+
+    /**
+     * Get the longest time a command waited in the queue, in nanoseconds.
+     *
+     * @return the max wait time
+     */
+    public long getMaxWaitTime() {
+        return maxCommandWaitTime;
+    }
 
-        if (bestQueue == null)
-            return null;
+    /**
+     * Get the number of times a command gave up the thread to wait, and was executed again later.
+     *
+     * @return the number of suspensions
+     */
+    public long getSuspendedCommandCount() {
+        return suspendedCommandCount;
+    }
 
-        return bestQueue.poll();
+    /**
+     * Get the total time used to execute commands, in nanoseconds.
+     *
+     * @return the total run time
+     */
+    public long getTotalRunTime() {
+        return totalRunTime;
     }
 }
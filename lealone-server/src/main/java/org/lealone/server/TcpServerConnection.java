@@ -59,7 +59,7 @@ public class TcpServerConnection extends TcpConnection {
     private static final Logger logger = LoggerFactory.getLogger(TcpServerConnection.class);
 
     // 每个sessionId对应一个专有的CommandQueue，所有与这个sessionId相关的命令请求都先放到这个队列，
-    // 然后由CommandHandler根据优先级从多个CommandQueue中依次取出执行
+    // 有命令时CommandQueue会被放到CommandHandler的就绪队列中，然后由CommandHandler根据优先级依次取出执行
     private final ConcurrentHashMap<Integer, CommandQueue> commandQueueMap = new ConcurrentHashMap<>();
     private final SmallMap cache = new SmallMap(SysProperties.SERVER_CACHED_OBJECTS);
     private final TransferPacketHandler packetHandler;
@@ -84,7 +84,7 @@ public class TcpServerConnection extends TcpConnection {
     public void close() {
         super.close();
         for (CommandQueue queue : commandQueueMap.values()) {
-            queue.commandHandler.removeCommandQueue(queue);
+            queue.close();
         }
         commandQueueMap.clear();
     }
@@ -388,11 +388,9 @@ public class TcpServerConnection extends TcpConnection {
         if (queue == null) {
             commandQueueNotFound(sessionId);
         }
-        if (queue.commandHandler == packetHandler) {
-            pc.execute();
-        } else {
-            queue.preparedCommands.add(pc);
-            queue.commandHandler.wakeUp();
+        CommandHandler commandHandler = queue.commandHandler;
+        if (commandHandler != packetHandler || !commandHandler.tryExecute(queue, pc)) {
+            queue.addPreparedCommand(pc);
         }
     }
 
@@ -738,7 +736,7 @@ public class TcpServerConnection extends TcpConnection {
         case Session.SESSION_CLOSE: {
             CommandQueue queue = commandQueueMap.remove(sessionId);
             if (queue != null) {
-                queue.commandHandler.removeCommandQueue(queue);
+                queue.close();
                 session = removeSession(sessionId);
                 closeSession(session);
             } else {
@@ -9,9 +9,13 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
+import org.lealone.common.concurrent.ScheduledExecutors;
 import org.lealone.common.exceptions.DbException;
 import org.lealone.common.trace.Trace;
+import org.lealone.common.util.DataUtils;
 import org.lealone.common.util.MathUtils;
 import org.lealone.db.CommandUpdateResult;
 import org.lealone.db.Constants;
@@ -21,14 +25,16 @@ import org.lealone.db.api.DatabaseEventListener;
 import org.lealone.db.api.ErrorCode;
 import org.lealone.db.async.AsyncHandler;
 import org.lealone.db.async.AsyncResult;
+import org.lealone.db.async.CommandSuspendedException;
 import org.lealone.db.result.Result;
-import org.lealone.db.table.StandardTable;
 import org.lealone.db.value.Value;
 import org.lealone.db.value.ValueNull;
+import org.lealone.sql.dml.Query;
 import org.lealone.sql.expression.Parameter;
 import org.lealone.sql.optimizer.TableFilter;
 import org.lealone.sql.router.SQLRouter;
 import org.lealone.storage.PageKey;
+import org.lealone.transaction.Transaction;
 
 /**
  * Represents a SQL statement wrapper.
@@ -55,6 +61,17 @@ public class StatementWrapper extends StatementBase {
      */
     private volatile boolean cancel;
 
+    // 挂起后要从头重新执行，所以只有刚开始执行不久的语句遇到缺页时才挂起，每次重新执行最多重复1毫秒的工作，
+    // 一条语句最多挂起几次，超过后在当前线程中读page，避免冷数据上的大查询反复从头执行
+    private static final long MAX_SUSPEND_REPEAT_NANOS = 1000000;
+    private static final int MAX_SUSPEND_COUNT = 16;
+    private int suspendCount;
+    // 对哪个语句检查过能否挂起，重新编译后要再检查
+    private StatementBase suspendChecked;
+    private boolean suspendAllowed;
+    // 因为等行锁挂起时开始等待的时间，重新执行时接着算锁超时
+    private long lockWaitStart;
+
     public StatementWrapper(ServerSession session, StatementBase statement) {
         super(session);
         this.statement = statement;
@@ -179,18 +196,27 @@ public class StatementWrapper extends StatementBase {
     private Object execute(AsyncHandler<AsyncResult<Integer>> updateHandler,
             AsyncHandler<AsyncResult<Result>> queryHandler, List<PageKey> pageKeys, int maxRows, boolean isUpdate) {
         boolean async = (updateHandler != null) || (queryHandler != null);
+        // 只有命令处理线程中执行的本地只读查询可以在读page时挂起，挂起后会从头重新执行，
+        // 执行语句以外的部分(比如回调中发送结果)都不能挂起，分布式查询重新执行会再访问其他节点，也不能挂起
+        boolean suspendable = CommandSuspendedException.setSuspendable(false);
+        boolean canSuspend = suspendable && async && !isUpdate && pageKeys == null && !session.isShardingMode()
+                && suspendCount < MAX_SUSPEND_COUNT && isRepeatableQuery();
+        // 在命令处理线程中直接执行的语句等行锁时也挂起，持有行锁的事务结束或者锁超时后从头重新执行
+        boolean canWaitSuspended = suspendable && async && pageKeys == null && !session.isShardingMode();
+        boolean suspended = false;
         startTimeNanos = 0;
-        long start = 0;
+        long start = lockWaitStart;
+        lockWaitStart = 0;
         Database database = session.getDatabase();
         session.waitIfExclusiveModeEnabled();
         boolean callStop = true;
         int savepointId = 0;
+        Transaction transaction = session.getTransaction(statement);
         if (isUpdate)
-            savepointId = session.getTransaction(statement).getSavepointId();
-        else
-            session.getTransaction(statement);
+            savepointId = transaction.getSavepointId();
         session.setCurrentCommand(this);
-        session.addStatement(statement);
+        if (suspendCount == 0 && start == 0) // 挂起后重新执行时已经加过了
+            session.addStatement(statement);
         AsyncResult asyncResult = null;
         AsyncHandler asyncHandler = updateHandler != null ? updateHandler : queryHandler;
         try {
@@ -219,10 +245,17 @@ public class StatementWrapper extends StatementBase {
                         result = Integer.valueOf(updateCount);
                     } else {
                         Result r;
-                        if (pageKeys == null)
-                            r = SQLRouter.executeQuery(statement, maxRows);
-                        else
+                        if (pageKeys == null) {
+                            if (canSuspend)
+                                CommandSuspendedException.setSuspendableFor(MAX_SUSPEND_REPEAT_NANOS);
+                            try {
+                                r = SQLRouter.executeQuery(statement, maxRows);
+                            } finally {
+                                CommandSuspendedException.setSuspendable(false);
+                            }
+                        } else {
                             r = statement.executeQuery(maxRows, false, pageKeys);
+                        }
                         rowCount = r.getRowCount();
                         result = r;
                         if (queryHandler != null) {
@@ -233,9 +266,27 @@ public class StatementWrapper extends StatementBase {
                     }
                     statement.trace(startTimeNanos, rowCount);
                     setProgress(DatabaseEventListener.STATE_STATEMENT_END);
+                    suspendCount = 0;
                     return result;
+                } catch (CommandSuspendedException e) {
+                    suspended = true;
+                    suspendCount++;
+                    throw e;
                 } catch (DbException e) {
-                    start = filterConcurrentUpdate(e, start);
+                    CommandSuspendedException lockWait = null;
+                    try {
+                        start = filterConcurrentUpdate(e, start, canWaitSuspended);
+                    } catch (CommandSuspendedException e2) {
+                        lockWait = e2;
+                    }
+                    // 重试或挂起后重新执行时语句都从头开始，先撤销它已经做的修改，
+                    // 只撤销修改，wait-for图中的边还要留着检测死锁
+                    if (isUpdate)
+                        session.rollbackTo(savepointId);
+                    if (lockWait != null) {
+                        suspended = true;
+                        throw lockWait;
+                    }
                 } catch (OutOfMemoryError e) {
                     callStop = false;
                     // there is a serious problem:
@@ -249,6 +300,9 @@ public class StatementWrapper extends StatementBase {
                 }
             }
         } catch (DbException e) {
+            suspendCount = 0;
+            // 语句不再等行锁了(锁超时或者出错)，去掉wait-for图中的边，否则之后反方向的冲突会被误判为死锁
+            transaction.clearLockWait();
             e = e.addSQL(statement.getSQL());
             SQLException s = e.getSQLException();
             database.exceptionThrown(s, statement.getSQL());
@@ -275,12 +329,28 @@ public class StatementWrapper extends StatementBase {
                 throw e;
             }
         } finally {
-            if (callStop) {
+            if (suspended) {
+                // 不提交也不回调，重新执行时还是用同一个事务
+                session.closeTemporaryResults();
+                session.setCurrentCommand(null);
+            } else if (callStop) {
                 stop(async, asyncResult, asyncHandler);
             }
+            CommandSuspendedException.setSuspendable(suspendable);
         }
     }
 
+    // 只读并且确定性的查询重新执行没有副作用，结果也一样，
+    // SELECT FOR UPDATE会加行锁，NEXT VALUE FOR、RAND()之类的表达式每次执行结果不同，都不能挂起
+    private boolean isRepeatableQuery() {
+        if (suspendChecked != statement) {
+            suspendAllowed = statement instanceof Query && !((Query) statement).isForUpdate()
+                    && ((Query) statement).isDeterministic();
+            suspendChecked = statement;
+        }
+        return suspendAllowed;
+    }
+
     /**
      * Start the stopwatch.
      */
@@ -318,41 +388,72 @@ public class StatementWrapper extends StatementBase {
         }
     }
 
-    private long filterConcurrentUpdate(DbException e, long start) {
+    private long filterConcurrentUpdate(DbException e, long start, boolean canWaitSuspended) {
         if (e.getErrorCode() != ErrorCode.CONCURRENT_UPDATE_1) {
             throw e;
         }
+        Throwable cause = e.getCause();
+        // 事务引擎在等待行锁前已经按wait-for图检测过死锁了，它抛出的异常被包在SQLException中
+        for (Throwable c = cause; c != null; c = c.getCause()) {
+            if (c instanceof IllegalStateException
+                    && DataUtils.getErrorCode(c.getMessage()) == DataUtils.ERROR_TRANSACTION_DEADLOCK) {
+                throw DbException.get(ErrorCode.DEADLOCK_1, c, c.getMessage());
+            }
+        }
         long now = System.nanoTime() / 1000000;
         if (start != 0 && now - start > session.getLockTimeout()) {
-            ArrayList<ServerSession> sessions = session.checkDeadlock();
-            if (sessions != null) {
-                throw DbException.get(ErrorCode.DEADLOCK_1, StandardTable.getDeadlockDetails(sessions));
-            } else {
-
-                throw DbException.get(ErrorCode.LOCK_TIMEOUT_1, e.getCause(), "");
-            }
+            throw DbException.get(ErrorCode.LOCK_TIMEOUT_1, cause, "");
         }
+        if (start == 0)
+            start = now;
+        Transaction transaction = session.getTransaction();
         Thread t = Thread.currentThread();
-        // 当两个sql执行线程更新同一行出现并发更新冲突时，
-        // 不阻塞当前sql执行线程，而是看看是否有其他sql需要执行
-        if (t instanceof SQLStatementExecutor) {
+        // 当两个sql执行线程更新同一行出现并发更新冲突时，不阻塞当前sql执行线程，而是挂起当前命令，
+        // 持有行锁的事务提交或回滚时把它放回就绪队列，然后从头重新执行，锁超时的时候也会放回去
+        if (canWaitSuspended) {
+            CommandSuspendedException lockWait = new CommandSuspendedException();
+            if (transaction.addLockWaitListener(lockWait::resume)) {
+                long timeout = session.getLockTimeout() - (now - start);
+                ScheduledExecutors.scheduledTasks.schedule(lockWait::resume, Math.max(timeout, 0) + 1,
+                        TimeUnit.MILLISECONDS);
+                lockWaitStart = start;
+                throw lockWait;
+            }
+        } else if (t instanceof SQLStatementExecutor) {
+            // 嵌套执行的语句不能挂起，只能看看是否有其他sql需要执行，持有行锁的事务结束时会唤醒当前线程
             SQLStatementExecutor sqlStatementExecutor = (SQLStatementExecutor) t;
-            sqlStatementExecutor.executeNextStatement();
-        } else {
-            int sleep = 1 + MathUtils.randomInt(10);
-            while (true) {
-                try {
-                    Thread.sleep(sleep);
-                } catch (InterruptedException e1) {
-                    // ignore
-                }
-                long slept = System.nanoTime() / 1000000 - now;
-                if (slept >= sleep) {
-                    break;
-                }
+            if (transaction.addLockWaitListener(sqlStatementExecutor::wakeUp)) {
+                sqlStatementExecutor.executeNextStatement();
+                return start;
+            }
+        } else if (transaction.addLockWaitListener(() -> LockSupport.unpark(t))) {
+            long timeout = session.getLockTimeout() - (now - start);
+            if (timeout > 0)
+                LockSupport.parkNanos(this, timeout * 1000000);
+            return start;
+        }
+        // 没有事务持有这一行了，冲突的是在当前快照之后提交的事务，用旧快照重试到锁超时也不会成功。
+        // 事务中前面的语句已经用旧快照读写过了，不能换快照，只能把冲突报告给客户端，
+        // 第一条语句换成新快照后马上重试
+        if (transaction.isSnapshotConflict()) {
+            if (!session.isFirstStatement(statement))
+                throw e;
+            if (transaction.refreshSnapshot())
+                return start;
+        }
+        int sleep = 1 + MathUtils.randomInt(10);
+        while (true) {
+            try {
+                Thread.sleep(sleep);
+            } catch (InterruptedException e1) {
+                // ignore
+            }
+            long slept = System.nanoTime() / 1000000 - now;
+            if (slept >= sleep) {
+                break;
             }
         }
-        return start == 0 ? now : start;
+        return start;
     }
 
     @SuppressWarnings({ "rawtypes", "unchecked" })
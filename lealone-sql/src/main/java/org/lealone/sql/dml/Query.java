@@ -142,6 +142,13 @@ public abstract class Query extends ManipulationStatement implements org.lealone
      */
     public abstract void setForUpdate(boolean forUpdate);
 
+    /**
+     * Check whether this query locks the rows it reads.
+     *
+     * @return true if it is a FOR UPDATE query
+     */
+    public abstract boolean isForUpdate();
+
     /**
      * Get the column count of this query.
      *
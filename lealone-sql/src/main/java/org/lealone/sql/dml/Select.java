@@ -1353,6 +1353,11 @@ public class Select extends Query {
         }
     }
 
+    @Override
+    public boolean isForUpdate() {
+        return isForUpdate;
+    }
+
     @Override
     public void mapColumns(ColumnResolver resolver, int level) {
         for (Expression e : expressions) {
@@ -326,6 +326,11 @@ public class SelectUnion extends Query implements ISelectUnion {
         isForUpdate = forUpdate;
     }
 
+    @Override
+    public boolean isForUpdate() {
+        return isForUpdate;
+    }
+
     @Override
     public int getColumnCount() {
         return left.getColumnCount();
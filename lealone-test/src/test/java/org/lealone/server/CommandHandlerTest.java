@@ -0,0 +1,261 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.server;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.lealone.db.Session;
+import org.lealone.db.SessionStatus;
+import org.lealone.server.CommandHandler.CommandQueue;
+import org.lealone.server.CommandHandler.PreparedCommand;
+import org.lealone.sql.PreparedStatement;
+import org.lealone.test.TestBase;
+
+//CommandHandler的调度逻辑要访问包级别的类，所以放在org.lealone.server包中
+public class CommandHandlerTest extends TestBase {
+
+    // 只实现CommandHandler用到的方法
+    private static class Stub implements InvocationHandler {
+        volatile SessionStatus status = SessionStatus.NO_TRANSACTION;
+        final int priority;
+
+        Stub(int priority) {
+            this.priority = priority;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class)
+                return method.invoke(this, args);
+            switch (method.getName()) {
+            case "getStatus":
+                return status;
+            case "getPriority":
+                return priority;
+            default:
+                throw new UnsupportedOperationException(method.getName());
+            }
+        }
+
+        Session session() {
+            return (Session) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Session.class },
+                    this);
+        }
+
+        PreparedStatement statement() {
+            return (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[] { PreparedStatement.class }, this);
+        }
+    }
+
+    private static class TestSession {
+        final Stub stub;
+        final Session session;
+        final PreparedStatement stmt;
+        final CommandQueue queue;
+
+        TestSession(CommandHandler handler, int priority) {
+            stub = new Stub(priority);
+            session = stub.session();
+            stmt = stub.statement();
+            queue = new CommandQueue(handler);
+            handler.addCommandQueue(queue);
+        }
+
+        void addCommand(Runnable runnable) {
+            queue.addPreparedCommand(new PreparedCommand(0, stmt, null, session, runnable));
+        }
+    }
+
+    private static CommandHandler createCommandHandler(int id, Map<String, String> config) {
+        config.put("command_handler_loop_interval", "10");
+        return new CommandHandler(id, config);
+    }
+
+    @Test
+    public void testSessionCommandsRunInOrder() throws Exception {
+        int handlerCount = 3;
+        int sessionCount = 20;
+        int commandCount = 200;
+        int producerCount = 4;
+        CommandHandler[] old = CommandHandler.commandHandlers;
+        CommandHandler[] handlers = new CommandHandler[handlerCount];
+        for (int i = 0; i < handlerCount; i++) {
+            handlers[i] = createCommandHandler(i, new HashMap<>());
+        }
+        CommandHandler.commandHandlers = handlers;
+        for (CommandHandler handler : handlers) {
+            handler.start();
+        }
+        try {
+            TestSession[] sessions = new TestSession[sessionCount];
+            AtomicBoolean[] running = new AtomicBoolean[sessionCount];
+            int[] last = new int[sessionCount];
+            for (int i = 0; i < sessionCount; i++) {
+                sessions[i] = new TestSession(handlers[i % handlerCount], PreparedStatement.NORM_PRIORITY);
+                running[i] = new AtomicBoolean();
+                last[i] = -1;
+            }
+            AtomicInteger errors = new AtomicInteger();
+            CountDownLatch latch = new CountDownLatch(sessionCount * commandCount);
+            // 每个session的命令只由一个线程按顺序提交
+            Thread[] producers = new Thread[producerCount];
+            for (int p = 0; p < producerCount; p++) {
+                int producer = p;
+                producers[p] = new Thread(() -> {
+                    for (int seq = 0; seq < commandCount; seq++) {
+                        for (int s = producer; s < sessionCount; s += producerCount) {
+                            int sessionId = s;
+                            int expected = seq;
+                            sessions[s].addCommand(() -> {
+                                if (!running[sessionId].compareAndSet(false, true))
+                                    errors.incrementAndGet(); // 同一个session的命令并发执行了
+                                if (last[sessionId] != expected - 1)
+                                    errors.incrementAndGet(); // 执行顺序跟提交顺序不一致
+                                last[sessionId] = expected;
+                                // 让一些命令执行得慢一点，空闲的CommandHandler就会去拿别人的CommandQueue
+                                if (expected % 10 == 0) {
+                                    try {
+                                        Thread.sleep(1);
+                                    } catch (InterruptedException e) {
+                                    }
+                                }
+                                running[sessionId].set(false);
+                                latch.countDown();
+                            });
+                        }
+                        if (seq % 20 == 0)
+                            Thread.yield();
+                    }
+                });
+                producers[p].start();
+            }
+            for (Thread t : producers) {
+                t.join();
+            }
+            assertTrue(latch.await(60, TimeUnit.SECONDS));
+            assertEquals(0, errors.get());
+            for (int i = 0; i < sessionCount; i++) {
+                assertEquals(commandCount - 1, last[i]);
+            }
+        } finally {
+            CommandHandler.stopCommandHandlers();
+            CommandHandler.commandHandlers = old;
+        }
+    }
+
+    @Test
+    public void testLowPriorityCommandNotStarved() throws Exception {
+        long maxWaitTime = 50;
+        Map<String, String> config = new HashMap<>();
+        config.put("command_handler_max_wait_time", String.valueOf(maxWaitTime));
+        CommandHandler handler = createCommandHandler(0, config);
+        CommandHandler[] old = CommandHandler.commandHandlers;
+        CommandHandler.commandHandlers = new CommandHandler[] { handler };
+        try {
+            TestSession high = new TestSession(handler, PreparedStatement.MAX_PRIORITY);
+            TestSession low = new TestSession(handler, PreparedStatement.MIN_PRIORITY);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            AtomicBoolean lowExecuted = new AtomicBoolean();
+            // 高优先级的session一直有命令，直到低优先级的命令被执行或者超时
+            Runnable highCommand = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(5);
+                    } catch (InterruptedException e) {
+                    }
+                    if (!lowExecuted.get() && System.nanoTime() < deadline)
+                        high.addCommand(this);
+                }
+            };
+            high.addCommand(highCommand);
+            long lowReadyTime = System.nanoTime();
+            long[] lowWaitTime = new long[1];
+            low.addCommand(() -> {
+                lowWaitTime[0] = System.nanoTime() - lowReadyTime;
+                lowExecuted.set(true);
+            });
+            handler.executeNextStatement();
+            assertTrue(lowExecuted.get());
+            long waitMillis = TimeUnit.NANOSECONDS.toMillis(lowWaitTime[0]);
+            assertTrue("waited " + waitMillis + " ms", waitMillis < maxWaitTime + 1000);
+        } finally {
+            CommandHandler.commandHandlers = old;
+        }
+    }
+
+    @Test
+    public void testStealCommandQueue() throws Exception {
+        CommandHandler victim = createCommandHandler(0, new HashMap<>());
+        CommandHandler thief = createCommandHandler(1, new HashMap<>());
+        CommandHandler[] old = CommandHandler.commandHandlers;
+        CommandHandler.commandHandlers = new CommandHandler[] { victim, thief };
+        try {
+            TestSession current = new TestSession(victim, PreparedStatement.NORM_PRIORITY);
+            // 每个session一个优先级，这样一轮就能看到所有就绪的CommandQueue
+            TestSession inTransaction = new TestSession(victim, PreparedStatement.MAX_PRIORITY);
+            TestSession exclusive = new TestSession(victim, PreparedStatement.NORM_PRIORITY);
+            TestSession noTransaction = new TestSession(victim, PreparedStatement.MIN_PRIORITY);
+            Map<TestSession, CommandHandler> executedBy = new HashMap<>();
+            ArrayList<TestSession> others = new ArrayList<>();
+            others.add(inTransaction);
+            others.add(exclusive);
+            others.add(noTransaction);
+
+            // victim正在执行命令时，thief空闲了
+            current.addCommand(() -> {
+                for (TestSession s : others) {
+                    s.addCommand(() -> executedBy.put(s, s.queue.commandHandler));
+                }
+                inTransaction.stub.status = SessionStatus.TRANSACTION_NOT_COMMIT;
+                exclusive.stub.status = SessionStatus.EXCLUSIVE_MODE;
+                thief.executeNextStatement();
+            });
+            victim.executeNextStatement();
+
+            // 只有没有事务的session能被拿走
+            assertEquals(thief, executedBy.get(noTransaction));
+            assertEquals(thief, noTransaction.queue.commandHandler);
+            assertEquals(victim, executedBy.get(inTransaction));
+            assertEquals(victim, inTransaction.queue.commandHandler);
+            assertFalse(executedBy.containsKey(exclusive));
+            assertEquals(victim, exclusive.queue.commandHandler);
+            assertEquals(0, thief.getReadyQueueDepth());
+
+            // 退出独占模式后还是由原来的CommandHandler执行
+            exclusive.stub.status = SessionStatus.NO_TRANSACTION;
+            victim.executeNextStatement();
+            assertEquals(victim, executedBy.get(exclusive));
+            assertEquals(3, victim.getCommandQueueCount());
+            assertEquals(1, thief.getCommandQueueCount());
+        } finally {
+            CommandHandler.commandHandlers = old;
+        }
+    }
+}
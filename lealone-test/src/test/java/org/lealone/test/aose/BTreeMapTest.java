@@ -20,22 +20,36 @@ package org.lealone.test.aose;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
+import org.lealone.db.async.CommandSuspendedException;
+import org.lealone.db.index.RowKeyDataType;
+import org.lealone.db.index.ValueDataType;
+import org.lealone.db.value.ValueLong;
+import org.lealone.db.value.ValueString;
 import org.lealone.storage.PageKey;
 import org.lealone.storage.StorageMapCursor;
 import org.lealone.storage.aose.AOStorage;
+import org.lealone.storage.aose.AOStorageBuilder;
+import org.lealone.storage.aose.AOStorageService;
 import org.lealone.storage.aose.btree.BTreeMap;
 import org.lealone.storage.aose.btree.BTreePage;
+import org.lealone.storage.aose.btree.BTreeStorage;
 import org.lealone.storage.aose.btree.PageReference;
+import org.lealone.storage.cache.CacheLongKeyOffHeap;
 import org.lealone.test.TestBase;
 
 public class BTreeMapTest extends TestBase {
@@ -49,10 +63,20 @@ public class BTreeMapTest extends TestBase {
         testMapOperations();
         testGetEndpointToKeyMap();
         testCompact();
+        testBackgroundCompact();
+        testCompactKeepsLastChunk();
+        testChunkSegment();
+        testAsyncGet();
+        testSuspendedGet();
+        testReadAhead();
+        testLongKeyLeafPage();
+        testOffHeapCache();
+        testUpdateAll();
         testTransfer();
         testSplit();
         testRemotePage();
         testLeafPageRemove();
+        testConcurrentWrite();
     }
 
     private void init() {
@@ -318,6 +342,417 @@ public class BTreeMapTest extends TestBase {
         map.save();
     }
 
+    void testBackgroundCompact() {
+        AOStorageBuilder builder = new AOStorageBuilder();
+        // 每秒只重写1M，compact会持续一段时间
+        builder.storagePath(joinDirs("aose_background_compact")).pageSplitSize(1024).minFillRate(50).compactRate(1);
+        AOStorage storage = builder.openStorage();
+        BTreeMap<Integer, String> map = storage.openBTreeMap("testBackgroundCompact");
+        map.clear();
+        map.save();
+        waitForCompact(map.getBTreeStorage());
+        String padding = "0123456789012345678901234567890123456789";
+        for (int i = 1; i <= 20000; i++)
+            map.put(i, "value" + i + padding);
+        map.save();
+        waitForCompact(map.getBTreeStorage());
+        int chunkId = getChunkIds(map).get(getChunkIds(map).size() - 1);
+
+        // 只剩下30%的page还在第一个chunk中，会被重写
+        for (int i = 1; i <= 14000; i++)
+            map.put(i, "value" + i + "_2");
+        map.save();
+        BTreeStorage btreeStorage = map.getBTreeStorage();
+        assertTrue(btreeStorage.isCompacting());
+        // 限速时不能占住merge用的线程
+        try {
+            AOStorageService.submitTask(() -> null).get(1, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            fail(e.getMessage());
+        }
+        waitForCompact(btreeStorage);
+
+        // 重写完后compact线程自己保存重写的page并删除旧chunk，不需要再有写操作
+        assertFalse(getChunkIds(map).contains(chunkId));
+        map.close();
+
+        map = storage.openBTreeMap("testBackgroundCompact");
+        assertEquals(20000, map.size());
+        for (int i = 1; i <= 20000; i++)
+            assertEquals(i <= 14000 ? "value" + i + "_2" : "value" + i + padding, map.get(i));
+        map.close();
+    }
+
+    void testCompactKeepsLastChunk() {
+        AOStorageBuilder builder = new AOStorageBuilder();
+        builder.storagePath(joinDirs("aose_compact_last_chunk")).pageSplitSize(1024);
+        AOStorage storage = builder.openStorage();
+        BTreeMap<Integer, String> map = storage.openBTreeMap("testCompactKeepsLastChunk");
+        map.clear();
+        for (int i = 1; i <= 1000; i++)
+            map.put(i, "value" + i);
+        map.save();
+        for (int i = 1; i <= 1000; i++)
+            map.remove(i);
+        map.save();
+        waitForCompact(map.getBTreeStorage());
+        map.save();
+        waitForCompact(map.getBTreeStorage());
+        map.close();
+
+        // compact删掉最后一个chunk的话就打不开了
+        map = storage.openBTreeMap("testCompactKeepsLastChunk");
+        assertEquals(0, map.size());
+        for (int i = 1; i <= 1000; i++)
+            map.put(i, "value" + i);
+        map.save();
+        map.clear();
+        map.save();
+        waitForCompact(map.getBTreeStorage());
+        map.close();
+
+        map = storage.openBTreeMap("testCompactKeepsLastChunk");
+        assertEquals(0, map.size());
+        map.put(1, "value1");
+        map.save();
+        map.close();
+        map = storage.openBTreeMap("testCompactKeepsLastChunk");
+        assertEquals("value1", map.get(1));
+        map.close();
+    }
+
+    private static void waitForCompact(BTreeStorage btreeStorage) {
+        for (int i = 0; i < 3000 && btreeStorage.isCompacting(); i++) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+            }
+        }
+        assertFalse(btreeStorage.isCompacting());
+    }
+
+    private static List<Integer> getChunkIds(BTreeMap<?, ?> map) {
+        String dir = map.getStorage().getStoragePath() + File.separator + map.getName();
+        List<Integer> ids = new ArrayList<>();
+        for (String f : new File(dir).list()) {
+            if (f.endsWith(AOStorage.SUFFIX_AO_FILE))
+                ids.add(Integer.parseInt(f.substring(0, f.length() - AOStorage.SUFFIX_AO_FILE_LENGTH)));
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    void testChunkSegment() {
+        AOStorageBuilder builder = new AOStorageBuilder();
+        builder.storagePath(joinDirs("aose_chunk_segment")).pageSplitSize(1024).compress();
+        builder.chunkSegmentSize(4 * 1024); // 写chunk时会分成很多段
+        AOStorage storage = builder.openStorage();
+        BTreeMap<Integer, String> map = storage.openBTreeMap("testChunkSegment");
+        map.clear();
+        for (int i = 1; i <= 5000; i++)
+            map.put(i, "value" + i);
+        map.save();
+        // leaf page只在写线程前面的一个窗口内准备，内存中等待写的字节数不超过窗口加一个page
+        long maxPreparedBytes = map.getBTreeStorage().getMaxPreparedPageBytes();
+        assertTrue(maxPreparedBytes > 0);
+        assertTrue(maxPreparedBytes <= 8 * 1024);
+        for (int i = 1; i <= 5000; i += 2)
+            map.put(i, "value" + i + "_2");
+        map.save();
+        assertTrue(map.getBTreeStorage().getMaxPreparedPageBytes() <= 8 * 1024);
+        map.close();
+
+        map = storage.openBTreeMap("testChunkSegment");
+        assertEquals(5000, map.size());
+        for (int i = 1; i <= 5000; i++)
+            assertEquals(i % 2 == 1 ? "value" + i + "_2" : "value" + i, map.get(i));
+        map.close();
+    }
+
+    void testAsyncGet() {
+        map = storage.openBTreeMap("testAsyncGet");
+        map.clear();
+        for (int i = 1; i <= 3000; i++)
+            map.put(i, "value" + i);
+        map.save();
+        map.close();
+
+        // 重新打开后page都不在缓存中
+        map = storage.openBTreeMap("testAsyncGet");
+        int count = 3001;
+        CountDownLatch latch = new CountDownLatch(count);
+        AtomicInteger errors = new AtomicInteger();
+        for (int i = 1; i <= count; i++) {
+            String expected = i < count ? "value" + i : null;
+            map.get(i, ar -> {
+                if (!ar.isSucceeded() || (expected == null ? ar.getResult() != null
+                        : !expected.equals(ar.getResult())))
+                    errors.incrementAndGet();
+                latch.countDown();
+            });
+        }
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            fail();
+        }
+        assertEquals(0, errors.get());
+        map.close();
+    }
+
+    void testUpdateAll() {
+        map = storage.openBTreeMap("testUpdateAll");
+        map.clear();
+        for (int i = 1; i <= 5000; i++)
+            map.put(i, "value" + i);
+        map.save();
+
+        ArrayList<Integer> keys = new ArrayList<>();
+        for (int i = 1; i <= 6000; i += 2)
+            keys.add(i);
+        // 奇数key中小于等于2000的删除，其他的更新，不存在的key跳过
+        map.updateAll(keys, (k, v) -> k <= 2000 ? null : v + "_new");
+        assertEquals(5000 - 1000, map.size());
+        assertNull(map.get(1));
+        assertEquals("value2", map.get(2));
+        assertEquals("value2001_new", map.get(2001));
+        assertEquals("value5000", map.get(5000));
+        assertNull(map.get(5001));
+
+        // 删除所有记录
+        keys.clear();
+        for (int i = 1; i <= 5000; i++)
+            keys.add(i);
+        map.updateAll(keys, (k, v) -> null);
+        assertEquals(0, map.size());
+        assertNull(map.firstKey());
+        map.put(1, "value1");
+        assertEquals(1, map.size());
+        map.close();
+    }
+
+    void testReadAhead() {
+        // 不预读时每个page正好读一次文件
+        AOStorageBuilder builder = new AOStorageBuilder();
+        builder.storagePath(joinDirs("aose_no_read_ahead")).pageSplitSize(1024).readAheadPages(0);
+        BTreeStorage btreeStorage = scanReadAhead(builder.openStorage());
+        long pageReads = btreeStorage.getPageReadCount();
+        assertTrue(pageReads > 0);
+        assertEquals(0, btreeStorage.getPrefetchedPageCount());
+
+        // 预读的page不会被扫描的线程再读一次
+        btreeStorage = scanReadAhead(storage);
+        assertTrue(btreeStorage.getPrefetchedPageCount() > 0);
+        assertEquals(pageReads, btreeStorage.getPageReadCount());
+    }
+
+    private BTreeStorage scanReadAhead(AOStorage storage) {
+        BTreeMap<Integer, String> map = storage.openBTreeMap("testReadAhead");
+        map.clear();
+        for (int i = 1; i <= 5000; i++)
+            map.put(i, "value" + i);
+        map.save();
+        map.close();
+
+        // 重新打开后顺序扫描会预读后面的leaf page
+        map = storage.openBTreeMap("testReadAhead");
+        StorageMapCursor<Integer, String> cursor = map.cursor(null);
+        int count = 0;
+        while (cursor.hasNext()) {
+            count++;
+            assertEquals(count, cursor.next().intValue());
+            assertEquals("value" + count, cursor.getValue());
+        }
+        assertEquals(5000, count);
+        map.close();
+        return map.getBTreeStorage();
+    }
+
+    void testLongKeyLeafPage() {
+        BTreeMap<Object, Object> map = storage.openBTreeMap("testLongKeyLeafPage", new RowKeyDataType(),
+                new ValueDataType(null, null, null), null);
+        map.clear();
+        // 先插偶数再插奇数，leaf page会在中间插入和分裂
+        for (int i = 2; i <= 5000; i += 2)
+            map.put(ValueLong.get(i), ValueString.get("value" + i));
+        for (int i = 1; i <= 5000; i += 2)
+            map.put(ValueLong.get(i), ValueString.get("value" + i));
+        for (int i = 1; i <= 5000; i += 10)
+            map.remove(ValueLong.get(i));
+        assertEquals(4500, map.size());
+        assertEquals(ValueLong.get(2), map.firstKey());
+        assertEquals(ValueLong.get(5000), map.lastKey());
+        map.save();
+        map.close();
+
+        // 重新打开后values在第一次访问时才反序列化
+        map = storage.openBTreeMap("testLongKeyLeafPage", new RowKeyDataType(), new ValueDataType(null, null, null),
+                null);
+        assertEquals(4500, map.size());
+        assertNull(map.get(ValueLong.get(1)));
+        assertEquals(ValueString.get("value2"), map.get(ValueLong.get(2)));
+        for (int i = 2; i <= 5000; i += 10)
+            map.put(ValueLong.get(i), ValueString.get("value" + i + "_2"));
+        map.save();
+        map.close();
+
+        map = storage.openBTreeMap("testLongKeyLeafPage", new RowKeyDataType(), new ValueDataType(null, null, null),
+                null);
+        // firstKey只读key，values反序列化之后page cache也要按反序列化后的大小计算
+        assertEquals(ValueLong.get(2), map.firstKey());
+        long memory = map.getMemorySpaceUsed();
+        assertEquals(ValueString.get("value2_2"), map.get(ValueLong.get(2)));
+        assertTrue(map.getMemorySpaceUsed() > memory);
+        StorageMapCursor<Object, Object> cursor = map.cursor(null);
+        int count = 0;
+        for (int i = 1; i <= 5000; i++) {
+            if (i % 10 == 1)
+                continue;
+            assertTrue(cursor.hasNext());
+            assertEquals(ValueLong.get(i), cursor.next());
+            String value = i % 10 == 2 ? "value" + i + "_2" : "value" + i;
+            assertEquals(ValueString.get(value), cursor.getValue());
+            count++;
+        }
+        assertFalse(cursor.hasNext());
+        assertEquals(4500, count);
+        map.close();
+    }
+
+    void testOffHeapCache() {
+        AOStorageBuilder builder = new AOStorageBuilder();
+        builder.storagePath(joinDirs("aose_off_heap_cache")).pageSplitSize(1024).offHeapCacheSize(4);
+        AOStorage storage = builder.openStorage();
+        BTreeMap<Integer, String> map = storage.openBTreeMap("testOffHeapCache");
+        map.clear();
+        for (int i = 1; i <= 3000; i++)
+            map.put(i, "value" + i);
+        map.save();
+        map.close();
+
+        // 第一次从文件读，同时放到offHeapCache
+        map = storage.openBTreeMap("testOffHeapCache");
+        for (int i = 1; i <= 3000; i++)
+            assertEquals("value" + i, map.get(i));
+        long misses = map.getBTreeStorage().getOffHeapCacheMisses();
+        assertTrue(misses > 0);
+        assertEquals(0, map.getBTreeStorage().getOffHeapCacheHits());
+        assertTrue(map.getBTreeStorage().getOffHeapCacheSizeUsed() > 0);
+
+        // 清空page cache后只需要从offHeapCache中反序列化
+        map.getBTreeStorage().setCacheSize(16);
+        for (int i = 1; i <= 3000; i++)
+            assertEquals("value" + i, map.get(i));
+        assertEquals(misses, map.getBTreeStorage().getOffHeapCacheMisses());
+        assertTrue(map.getBTreeStorage().getOffHeapCacheHits() > 0);
+
+        // 两个map共用同一个offHeapCache，关闭map时只删除它自己的page
+        BTreeMap<Integer, String> map2 = storage.openBTreeMap("testOffHeapCache2");
+        map2.clear();
+        for (int i = 1; i <= 3000; i++)
+            map2.put(i, "value" + i);
+        map2.save();
+        map2.close();
+        map2 = storage.openBTreeMap("testOffHeapCache2");
+        for (int i = 1; i <= 3000; i++)
+            assertEquals("value" + i, map2.get(i));
+        assertEquals(0, map2.getBTreeStorage().getOffHeapCacheHits());
+        long used = map2.getBTreeStorage().getOffHeapCacheSizeUsed();
+        map.close();
+        assertTrue(map2.getBTreeStorage().getOffHeapCacheSizeUsed() < used);
+        map2.close();
+
+        // 已经有共用的offHeapCache时，没有设置offHeapCacheSize的map默认也用它，设成0就不用
+        builder = new AOStorageBuilder();
+        builder.storagePath(joinDirs("aose_default_off_heap_cache")).pageSplitSize(1024);
+        assertTrue(getOffHeapCacheMisses(builder.openStorage(), "testOffHeapCache3") > 0);
+        builder = new AOStorageBuilder();
+        builder.storagePath(joinDirs("aose_no_off_heap_cache")).pageSplitSize(1024).offHeapCacheSize(0);
+        assertEquals(0, getOffHeapCacheMisses(builder.openStorage(), "testOffHeapCache4"));
+
+        testSharedOffHeapCache();
+    }
+
+    // 重新打开map后从文件读出所有page，返回在offHeapCache中没有找到的次数
+    private long getOffHeapCacheMisses(AOStorage storage, String name) {
+        BTreeMap<Integer, String> map = storage.openBTreeMap(name);
+        map.clear();
+        for (int i = 1; i <= 3000; i++)
+            map.put(i, "value" + i);
+        map.save();
+        map.close();
+        map = storage.openBTreeMap(name);
+        for (int i = 1; i <= 3000; i++)
+            assertEquals("value" + i, map.get(i));
+        long misses = map.getBTreeStorage().getOffHeapCacheMisses();
+        map.close();
+        return misses;
+    }
+
+    void testSharedOffHeapCache() {
+        CacheLongKeyOffHeap cache = new CacheLongKeyOffHeap(1024 * 1024);
+        // 用到时才分配内存
+        assertEquals(0, cache.getAllocatedMemory());
+        int space1 = cache.newSpace();
+        int space2 = cache.newSpace();
+        cache.put(space1, 10, ByteBuffer.wrap(new byte[] { 1, 2 }));
+        cache.put(space2, 10, ByteBuffer.wrap(new byte[] { 3 }));
+        assertTrue(cache.getAllocatedMemory() > 0);
+        assertTrue(cache.getAllocatedMemory() < cache.getMaxMemory());
+        assertEquals(2, cache.get(space1, 10).remaining());
+        assertEquals(3, cache.get(space2, 10).get());
+        assertEquals(3, cache.getUsedMemory());
+
+        cache.removeSpace(space1);
+        assertNull(cache.get(space1, 10));
+        assertEquals(3, cache.get(space2, 10).get());
+        assertEquals(1, cache.getUsedMemory());
+
+        cache.clear();
+        assertNull(cache.get(space2, 10));
+        assertEquals(0, cache.getAllocatedMemory());
+    }
+
+    void testSuspendedGet() {
+        map = storage.openBTreeMap("testSuspendedGet");
+        map.clear();
+        for (int i = 1; i <= 3000; i++)
+            map.put(i, "value" + i);
+        map.save();
+        map.close();
+
+        // 重新打开后page都不在缓存中，可以挂起的命令每遇到一次缺页就让出线程，恢复后再执行，
+        // 每一层的page读进缓存后就不会再因为它挂起了
+        map = storage.openBTreeMap("testSuspendedGet");
+        boolean old = CommandSuspendedException.setSuspendable(true);
+        try {
+            int suspendCount = 0;
+            String value = null;
+            while (value == null) {
+                try {
+                    value = map.get(1500);
+                } catch (CommandSuspendedException e) {
+                    suspendCount++;
+                    assertTrue(suspendCount < 10);
+                    CountDownLatch latch = new CountDownLatch(1);
+                    e.setResumeListener(() -> latch.countDown());
+                    try {
+                        latch.await();
+                    } catch (InterruptedException ie) {
+                        fail();
+                    }
+                }
+            }
+            assertTrue(suspendCount > 0);
+            assertEquals("value1500", value);
+        } finally {
+            CommandSuspendedException.setSuspendable(old);
+        }
+        // 不能挂起时在当前线程中读
+        assertEquals("value3000", map.get(3000));
+        map.close();
+    }
+
     void testTransfer() {
         String file = storagePath + File.separator + map.getName() + "TransferTo" + AOStorage.SUFFIX_AO_FILE;
         deleteFileRecursive(file);
@@ -438,4 +873,78 @@ public class BTreeMapTest extends TestBase {
             map.removeLeafPage(pageKey);
         assertTrue(map.getRootPage().isEmpty());
     }
+
+    void testConcurrentWrite() {
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put("concurrentWrite", "true");
+        BTreeMap<Integer, String> map = openMap("ConcurrentWriteTest", parameters);
+        assertTrue(map.isConcurrentWrite());
+        map.clear();
+
+        int threadCount = 4;
+        int count = 2000;
+        CountDownLatch latch = new CountDownLatch(threadCount);
+        for (int t = 0; t < threadCount; t++) {
+            int start = t * count;
+            new Thread(() -> {
+                try {
+                    for (int i = start; i < start + count; i++) {
+                        map.put(i, "value" + i);
+                        if (i % 3 == 0)
+                            map.remove(i);
+                        else if (i % 3 == 1)
+                            map.replace(i, "value" + i, "v" + i);
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            }).start();
+        }
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            fail();
+        }
+
+        int total = threadCount * count;
+        for (int i = 0; i < total; i++) {
+            if (i % 3 == 0)
+                assertNull(map.get(i));
+            else if (i % 3 == 1)
+                assertEquals("v" + i, map.get(i));
+            else
+                assertEquals("value" + i, map.get(i));
+        }
+        assertEquals(total - (total + 2) / 3, map.size());
+        assertNotNull(map.putIfAbsent(1, "a"));
+        // 只有同一个叶子page被其他线程改过时才需要重新修改叶子page
+        assertTrue(map.getLeafRewrites() <= map.getRootUpdateRetries());
+        map.save();
+
+        // 会直接修改page或root的sharding操作在并发写模式下不允许使用
+        try {
+            map.removeLeafPage(new PageKey(1, true));
+            fail();
+        } catch (UnsupportedOperationException e) {
+        }
+        try {
+            map.addLeafPage(new PageKey(1, true), ByteBuffer.allocate(0), true);
+            fail();
+        } catch (UnsupportedOperationException e) {
+        }
+        assertEquals("v1", map.get(1));
+        assertEquals(total - (total + 2) / 3, map.size());
+
+        // 叶子page删空时要从父节点中删除
+        for (int i = 0; i < total; i++)
+            map.remove(i);
+        assertEquals(0, map.size());
+        assertNull(map.firstKey());
+        map.put(1, "a");
+        assertEquals("a", map.get(1));
+
+        // 表的WITH参数可以关掉数据库或存储引擎打开的并发写
+        parameters.put("concurrentWrite", "false");
+        assertFalse(openMap("ConcurrentWriteDisabledTest", parameters).isConcurrentWrite());
+    }
 }
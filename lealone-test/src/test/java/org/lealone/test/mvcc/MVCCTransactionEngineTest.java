@@ -17,21 +17,43 @@
  */
 package org.lealone.test.mvcc;
 
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.junit.Test;
+import org.lealone.common.util.DataUtils;
 import org.lealone.db.Constants;
+import org.lealone.db.DataBuffer;
 import org.lealone.storage.Storage;
 import org.lealone.storage.StorageBuilder;
 import org.lealone.storage.StorageEngine;
 import org.lealone.storage.StorageEngineManager;
+import org.lealone.storage.StorageMap;
+import org.lealone.storage.aose.btree.BTreeMap;
+import org.lealone.storage.fs.FileUtils;
+import org.lealone.storage.type.ObjectDataType;
 import org.lealone.test.TestBase;
 import org.lealone.transaction.Transaction;
 import org.lealone.transaction.TransactionEngine;
 import org.lealone.transaction.TransactionEngineManager;
 import org.lealone.transaction.TransactionMap;
+import org.lealone.transaction.mvcc.MVCCTransaction;
+import org.lealone.transaction.mvcc.MVCCTransactionEngine;
+import org.lealone.transaction.mvcc.MVCCTransactionMap;
+import org.lealone.transaction.mvcc.TransactionalLogRecord;
+import org.lealone.transaction.mvcc.TransactionalValue;
+import org.lealone.transaction.mvcc.TransactionalValueType;
 import org.lealone.transaction.mvcc.log.LogSyncService;
+import org.lealone.transaction.mvcc.log.RedoLogRecord;
 
 public class MVCCTransactionEngineTest extends TestBase {
 
@@ -118,6 +140,787 @@ public class MVCCTransactionEngineTest extends TestBase {
         assertTrue(map.getDiskSpaceUsed() > 0);
     }
 
+    @Test
+    public void testGroupCommit() throws Exception {
+        // 用新的配置重新初始化
+        TransactionEngineManager.getTransactionEngine(Constants.DEFAULT_TRANSACTION_ENGINE_NAME).close();
+        Map<String, String> config = getDefaultConfig();
+        config.put("log_sync_batch_delay", "100"); // 100微秒
+        TransactionEngine te = getTransactionEngine(config);
+        Storage storage = getStorage();
+
+        Transaction t = te.beginTransaction(false, false);
+        TransactionMap<String, String> map = t.openMap("testGroupCommit", storage);
+        map.clear();
+        t.commit();
+
+        LogSyncService logSyncService = ((MVCCTransactionEngine) te).getLogSyncService();
+        long records = logSyncService.getSyncedRecordCount();
+        int threadCount = 8;
+        int count = 50;
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            String prefix = "t" + i + "_";
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < count; j++) {
+                    Transaction t2 = te.beginTransaction(false, false);
+                    TransactionMap<String, String> map2 = map.getInstance(t2);
+                    map2.put(prefix + j, "value" + j);
+                    t2.commit(); // instant模式下等到redo log sync完才返回
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(threadCount * count, map.size());
+        // 每个事务的记录都已经sync了，多个事务的记录可以合成一批sync
+        assertTrue(logSyncService.getSyncedRecordCount() - records >= threadCount * count);
+        assertTrue(logSyncService.getSyncCount() <= logSyncService.getSyncedRecordCount());
+        assertTrue(logSyncService.getAverageBatchSize() >= 1);
+        assertTrue(logSyncService.getMaxSyncTime() > 0);
+        te.close();
+    }
+
+    @Test
+    public void testRedoLogSegments() {
+        TransactionEngineManager.getTransactionEngine(Constants.DEFAULT_TRANSACTION_ENGINE_NAME).close();
+        Map<String, String> config = getDefaultConfig();
+        config.put("redo_log_dir", "redo_log_segments");
+        config.put("log_chunk_size", String.valueOf(64 * 1024));
+        config.put("log_mmap", "true");
+        config.put("checkpoint_service_loop_interval", "100000");
+        TransactionEngine te = getTransactionEngine(config);
+        Storage storage = getStorage();
+
+        Transaction t = te.beginTransaction(false, false);
+        TransactionMap<String, String> map = t.openMap("testRedoLogSegments", storage);
+        map.clear();
+        t.commit();
+        for (int i = 0; i < 10; i++) {
+            t = te.beginTransaction(false, false);
+            map = map.getInstance(t);
+            for (int j = 0; j < 500; j++) {
+                map.put("key" + i + "_" + j, "value" + j);
+            }
+            t.commit();
+        }
+
+        File dir = new File(joinDirs("mvcc", "redo_log_segments"));
+        File[] chunks = dir.listFiles((d, name) -> name.startsWith("redoLog_"));
+        assertTrue(chunks.length > 1); // 写满一个chunk后滚动到下一个
+        for (File f : chunks) {
+            assertTrue(f.length() >= 64 * 1024); // 预分配
+        }
+
+        te.checkpoint(); // checkpoint之后旧chunk被回收
+        File[] freeChunks = null;
+        for (int i = 0; i < 100; i++) {
+            freeChunks = dir.listFiles((d, name) -> name.startsWith("redoLogFree_"));
+            if (freeChunks.length > 0)
+                break;
+            try {
+                Thread.sleep(20); // sync线程写完checkpoint记录后才回收
+            } catch (InterruptedException e) {
+            }
+        }
+        assertTrue(freeChunks.length > 0);
+        assertTrue(dir.listFiles((d, name) -> name.startsWith("redoLog_")).length < chunks.length);
+        te.close();
+
+        te = getTransactionEngine(config); // 重新打开时能读取回收过的chunk
+        t = te.beginTransaction(false, false);
+        map = map.getInstance(t);
+        assertEquals(5000, map.size());
+        t.commit();
+        te.close();
+    }
+
+    @Test
+    public void testParallelRedo() throws Exception {
+        Map<String, String> config = getDefaultConfig();
+        config.put("redo_log_dir", "redo_log_recovery");
+        config.put("log_chunk_size", String.valueOf(4 * 1024)); // 写出多个chunk
+        FileUtils.deleteRecursive(joinDirs("mvcc", "redo_log_recovery"), true);
+        LogSyncService logSyncService = LogSyncService.create(config);
+        logSyncService.start();
+        long tid = 0;
+        for (int i = 0; i < 1000; i++) {
+            addRedoLogRecord(logSyncService, ++tid, "m1", i % 500, "v" + i);
+            addRedoLogRecord(logSyncService, ++tid, "m2", i, "v" + i);
+            if (i == 499)
+                logSyncService.addAndMaybeWaitForSync(RedoLogRecord.createDroppedMapRedoLogRecord("m2"));
+        }
+        logSyncService.close();
+        logSyncService.join();
+
+        config = getDefaultConfig();
+        config.put("redo_log_dir", "redo_log_recovery");
+        config.put("redo_log_recovery_threads", "4");
+        logSyncService = LogSyncService.create(config);
+        assertEquals(tid, logSyncService.initPendingRedoLog());
+        assertEquals(1000, logSyncService.getAndRemovePendingRedoLog("m1").size());
+        // 删除m2之前的记录不需要redo
+        List<ByteBuffer> m2 = logSyncService.getAndRemovePendingRedoLog("m2");
+        assertEquals(500, m2.size());
+        logSyncService.start();
+        logSyncService.close();
+        logSyncService.join();
+
+        Storage storage = getStorage();
+        StorageMap<Object, TransactionalValue> map = storage.openMap("testParallelRedo", null, new ObjectDataType(),
+                new TransactionalValueType(new ObjectDataType()), null);
+        map.clear();
+        TransactionalLogRecord.redo(map, m2);
+        assertEquals(500, map.size());
+        assertEquals("v500", map.get(500).value);
+        assertEquals("v999", map.get(999).value);
+        map.remove();
+    }
+
+    @Test
+    public void testRedoLogSpill() throws Exception {
+        Map<String, String> config = getDefaultConfig();
+        config.put("redo_log_dir", "redo_log_spill");
+        config.put("log_chunk_size", String.valueOf(4 * 1024));
+        FileUtils.deleteRecursive(joinDirs("mvcc", "redo_log_spill"), true);
+        LogSyncService logSyncService = LogSyncService.create(config);
+        logSyncService.start();
+        long tid = 0;
+        for (int i = 0; i < 2000; i++) {
+            addRedoLogRecord(logSyncService, ++tid, "m1", i, "v" + i);
+            addRedoLogRecord(logSyncService, ++tid, "m2", i, "v" + i);
+            addRedoLogRecord(logSyncService, ++tid, "m3", i, "v" + i);
+            if (i == 999) {
+                // 事务ID小于1501的事务对m1的修改已经保存了，前面的记录可能已经写到spill文件中了
+                logSyncService.checkpointMap("m1", 1501, tid);
+                logSyncService.addAndMaybeWaitForSync(RedoLogRecord.createDroppedMapRedoLogRecord("m3"));
+            }
+        }
+        logSyncService.close();
+        logSyncService.join();
+
+        int maxMemory = 16 * 1024;
+        config.put("redo_log_recovery_threads", "2");
+        config.put("redo_log_recovery_memory", String.valueOf(maxMemory));
+        logSyncService = LogSyncService.create(config);
+        assertEquals(tid, logSyncService.initPendingRedoLog());
+        // 启动后内存中只保留不超过限制的key/value，其他的都在spill文件中
+        assertTrue(logSyncService.getPendingRedoLogMemory() <= maxMemory);
+        File spillDir = new File(joinDirs("mvcc", "redo_log_spill", "spill"));
+        assertTrue(spillDir.list().length > 0);
+
+        assertEquals(2000 - 500, logSyncService.getAndRemovePendingRedoLog("m1").size());
+        assertEquals(1000, logSyncService.getAndRemovePendingRedoLog("m3").size());
+
+        Storage storage = getStorage();
+        StorageMap<Object, TransactionalValue> map = storage.openMap("testRedoLogSpill", null, new ObjectDataType(),
+                new TransactionalValueType(new ObjectDataType()), null);
+        map.clear();
+        ArrayList<Integer> batchSizes = new ArrayList<>();
+        assertTrue(logSyncService.redo("m2", keyValues -> {
+            batchSizes.add(keyValues.size());
+            TransactionalLogRecord.redo(map, keyValues);
+        }));
+        assertFalse(logSyncService.redo("m2", keyValues -> fail()));
+        assertEquals(2000, map.size());
+        assertEquals("v0", map.get(0).value);
+        assertEquals("v1999", map.get(1999).value);
+        for (int size : batchSizes)
+            assertTrue(size <= TransactionalLogRecord.REDO_BATCH_SIZE);
+        assertFalse(logSyncService.hasPendingRedoLog());
+        assertEquals(0, spillDir.list().length);
+        map.remove();
+        logSyncService.start();
+        logSyncService.close();
+        logSyncService.join();
+    }
+
+    private static void addRedoLogRecord(LogSyncService logSyncService, long tid, String mapName, int key,
+            String value) {
+        DataBuffer operations = DataBuffer.create();
+        operations.putVarInt(logSyncService.getMapId(mapName));
+        int start = operations.position();
+        operations.putInt(0);
+        ObjectDataType type = new ObjectDataType();
+        type.write(operations, key);
+        operations.put((byte) 1);
+        type.write(operations, value);
+        operations.putInt(start, operations.position() - start - 4);
+        RedoLogRecord r = RedoLogRecord.createLocalTransactionRedoLogRecord(tid, operations.getAndFlipBuffer());
+        logSyncService.addAndMaybeWaitForSync(r);
+    }
+
+    @Test
+    public void testRedoLogMapIds() throws Exception {
+        Map<String, String> config = getDefaultConfig();
+        config.put("redo_log_dir", "redo_log_map_ids");
+        config.put("log_chunk_size", String.valueOf(4 * 1024));
+        FileUtils.deleteRecursive(joinDirs("mvcc", "redo_log_map_ids"), true);
+        StringBuilder buff = new StringBuilder("testRedoLogMapIds_");
+        for (int i = 0; i < 100; i++)
+            buff.append('m');
+        String mapName = buff.toString();
+        LogSyncService logSyncService = LogSyncService.create(config);
+        logSyncService.start();
+        long tid = 0;
+        for (int i = 0; i < 1000; i++) {
+            addRedoLogRecord(logSyncService, ++tid, mapName, i, "v");
+            addRedoLogRecord(logSyncService, ++tid, "m" + (i % 10), i, "v");
+        }
+        logSyncService.close();
+        logSyncService.join();
+        // 每个chunk中map名只写一次，记录中只有map id
+        assertTrue(logSyncService.getSyncedBytes() < 1000 * mapName.length());
+
+        config.put("redo_log_recovery_threads", "4");
+        logSyncService = LogSyncService.create(config);
+        assertEquals(tid, logSyncService.initPendingRedoLog());
+        assertEquals(1000, logSyncService.getAndRemovePendingRedoLog(mapName).size());
+        for (int i = 0; i < 10; i++)
+            assertEquals(100, logSyncService.getAndRemovePendingRedoLog("m" + i).size());
+        logSyncService.start();
+        logSyncService.close();
+        logSyncService.join();
+    }
+
+    @Test
+    public void testIncrementalCheckpoint() throws Exception {
+        Map<String, String> config = getDefaultConfig();
+        config.put("redo_log_dir", "redo_log_map_checkpoint");
+        config.put("log_chunk_size", String.valueOf(4 * 1024));
+        FileUtils.deleteRecursive(joinDirs("mvcc", "redo_log_map_checkpoint"), true);
+        LogSyncService logSyncService = LogSyncService.create(config);
+        logSyncService.start();
+        long tid = 0;
+        for (int i = 0; i < 200; i++) {
+            addRedoLogRecord(logSyncService, ++tid, "m1", i, "v" + i);
+            addRedoLogRecord(logSyncService, ++tid, "m2", i, "v" + i);
+        }
+        // 事务ID小于201的事务对m1的修改已经保存了
+        logSyncService.checkpointMap("m1", 201, tid);
+        for (int i = 200; i < 250; i++) {
+            addRedoLogRecord(logSyncService, ++tid, "m1", i, "v" + i);
+        }
+        logSyncService.checkpointMap("m2", tid + 1, 1000);
+        logSyncService.close();
+        logSyncService.join();
+
+        logSyncService = LogSyncService.create(config);
+        assertEquals(1000, logSyncService.initPendingRedoLog());
+        assertEquals(150, logSyncService.getAndRemovePendingRedoLog("m1").size());
+        assertNull(logSyncService.getAndRemovePendingRedoLog("m2"));
+        logSyncService.start();
+        logSyncService.close();
+        logSyncService.join();
+
+        // 不执行CHECKPOINT语句，后台线程逐个保存map后也能回收旧的redo日志
+        TransactionEngineManager.getTransactionEngine(Constants.DEFAULT_TRANSACTION_ENGINE_NAME).close();
+        config = getDefaultConfig();
+        config.put("redo_log_dir", "redo_log_incremental_checkpoint");
+        config.put("log_chunk_size", String.valueOf(16 * 1024));
+        config.put("checkpoint_period", "200");
+        config.put("checkpoint_service_loop_interval", "20");
+        config.put("checkpoint_service_threads", "2");
+        FileUtils.deleteRecursive(joinDirs("mvcc", "redo_log_incremental_checkpoint"), true);
+        TransactionEngine te = getTransactionEngine(config);
+        Storage storage = getStorage();
+
+        Transaction t = te.beginTransaction(false, false);
+        TransactionMap<String, String> map1 = t.openMap("testIncrementalCheckpoint1", storage);
+        TransactionMap<String, String> map2 = t.openMap("testIncrementalCheckpoint2", storage);
+        map1.clear();
+        map2.clear();
+        t.commit();
+        for (int i = 0; i < 10; i++) {
+            t = te.beginTransaction(false, false);
+            map1 = map1.getInstance(t);
+            map2 = map2.getInstance(t);
+            for (int j = 0; j < 500; j++) {
+                map1.put("key" + i + "_" + j, "value" + j);
+            }
+            map2.put("key" + i, "value" + i);
+            t.commit();
+        }
+
+        File dir = new File(joinDirs("mvcc", "redo_log_incremental_checkpoint"));
+        assertTrue(dir.listFiles((d, name) -> name.startsWith("redoLog_")).length > 1);
+        int chunkCount = 0;
+        for (int i = 0; i < 250; i++) {
+            chunkCount = dir.listFiles((d, name) -> name.startsWith("redoLog_")).length;
+            if (chunkCount == 1)
+                break;
+            Thread.sleep(20);
+        }
+        assertEquals(1, chunkCount); // 两个map都保存过了，只剩下当前chunk
+        te.close();
+
+        te = getTransactionEngine(config);
+        t = te.beginTransaction(false, false);
+        assertEquals(5000, map1.getInstance(t).size());
+        assertEquals(10, map2.getInstance(t).size());
+        t.commit();
+        te.close();
+    }
+
+    @Test
+    public void testRowCount() {
+        TransactionEngine te = getTransactionEngine(false);
+        Storage storage = getStorage();
+
+        Transaction t1 = te.beginTransaction(false, false);
+        TransactionMap<String, String> map = t1.openMap("testRowCount", storage);
+        map.clear();
+        for (int i = 0; i < 10; i++) {
+            map.put("key" + i, "value" + i);
+        }
+        assertEquals(10, map.sizeAsLong());
+        assertEquals(0, map.committedSize());
+        t1.commit();
+
+        Transaction t2 = te.beginTransaction(false, false);
+        TransactionMap<String, String> map2 = map.getInstance(t2);
+        for (int i = 10; i < 15; i++) {
+            map2.put("key" + i, "value" + i);
+        }
+        map2.put("key0", "value0_2"); // 更新不改变记录数
+        map2.remove("key1");
+        map2.remove("key2");
+        t2.addSavepoint("sp");
+        map2.remove("key3");
+        map2.put("key3", "value3_2");
+        map2.remove("key4");
+        assertEquals(12, map2.sizeAsLong());
+        t2.rollbackToSavepoint("sp");
+        assertEquals(13, map2.sizeAsLong());
+
+        Transaction t3 = te.beginTransaction(false, false);
+        TransactionMap<String, String> map3 = map.getInstance(t3);
+        assertEquals(10, map3.sizeAsLong()); // 看不到t2未提交的修改
+        assertEquals(10, map3.committedSize());
+
+        t2.commit();
+        assertEquals(13, map3.sizeAsLong());
+        assertEquals(13, map3.committedSize());
+
+        map3.put("key100", "value100");
+        t3.rollback();
+        Transaction t4 = te.beginTransaction(false, false);
+        assertEquals(13, map.getInstance(t4).sizeAsLong());
+        t4.commit();
+
+        // clear之前其他事务的修改已经被清除了，提交时不能再把它们加到记录数上
+        Transaction t5 = te.beginTransaction(false, false);
+        TransactionMap<String, String> map5 = map.getInstance(t5);
+        map5.put("key200", "value200");
+        map5.put("key201", "value201");
+        Transaction t6 = te.beginTransaction(false, false);
+        map.getInstance(t6).clear();
+        t6.commit();
+        assertEquals(0, map5.sizeAsLong());
+        map5.put("key202", "value202");
+        assertEquals(1, map5.sizeAsLong());
+        t5.commit();
+        Transaction t7 = te.beginTransaction(false, false);
+        TransactionMap<String, String> map7 = map.getInstance(t7);
+        assertEquals(1, map7.committedSize());
+        int count = 0;
+        for (Iterator<String> it = map7.keyIterator(null); it.hasNext(); it.next())
+            count++;
+        assertEquals(count, map7.sizeAsLong());
+        t7.commit();
+        te.close();
+    }
+
+    @Test
+    public void testVisibility() {
+        TransactionEngine te = getTransactionEngine(false);
+        Storage storage = getStorage();
+
+        Transaction t1 = te.beginTransaction(false, false);
+        TransactionMap<String, String> map = t1.openMap("testVisibility", storage);
+        map.clear();
+        map.put("a", "a0");
+        map.put("b", "b0");
+        t1.commit();
+
+        Transaction t2 = te.beginTransaction(false, false);
+        TransactionMap<String, String> map2 = map.getInstance(t2);
+        for (int i = 1; i <= 1000; i++) {
+            map2.put("a", "a" + i); // 同一个事务多次更新
+            map2.put("k" + i, "v" + i);
+        }
+        map2.remove("b");
+
+        Transaction t3 = te.beginTransaction(false, false);
+        TransactionMap<String, String> map3 = map.getInstance(t3);
+        // 看到的是t2开始更新之前的值
+        assertEquals("a0", map3.get("a"));
+        assertEquals("b0", map3.get("b"));
+        assertNull(map3.get("k1"));
+        assertEquals("a1000", map2.get("a"));
+        assertNull(map2.get("b"));
+
+        t2.commit();
+        // t3在t2提交之前开始，还是看到原来的快照
+        assertEquals("a0", map3.get("a"));
+        assertEquals("b0", map3.get("b"));
+        assertNull(map3.get("k1"));
+
+        Transaction t4 = te.beginTransaction(false, false);
+        TransactionMap<String, String> map4 = map.getInstance(t4);
+        assertEquals("a1000", map4.get("a"));
+        assertNull(map4.get("b"));
+        assertEquals("v1", map4.get("k1"));
+        t4.commit();
+        t3.commit();
+        te.close();
+    }
+
+    @Test
+    public void testSnapshotRead() {
+        TransactionEngine te = getTransactionEngine(false);
+        Storage storage = getStorage();
+
+        Transaction t1 = te.beginTransaction(false, false);
+        TransactionMap<Integer, String> map = t1.openMap("testSnapshotRead", storage);
+        map.clear();
+        for (int i = 0; i < 100; i++)
+            map.put(i, "v" + i);
+        t1.commit();
+
+        Transaction reader = te.beginTransaction(false, false);
+        TransactionMap<Integer, String> readerMap = map.getInstance(reader);
+        Iterator<Integer> it = readerMap.keyIterator(null);
+        int count = 0;
+        while (it.hasNext()) {
+            Integer key = it.next();
+            if (count == 50) {
+                // 扫描到一半时其他事务提交的修改对reader不可见
+                Transaction t2 = te.beginTransaction(false, false);
+                TransactionMap<Integer, String> map2 = map.getInstance(t2);
+                map2.put(80, "new80");
+                map2.put(200, "v200");
+                map2.remove(90);
+                map2.remove(10);
+                t2.commit();
+            }
+            assertEquals("v" + key, readerMap.get(key));
+            count++;
+        }
+        assertEquals(100, count);
+        assertEquals("v90", readerMap.get(90));
+        assertNull(readerMap.get(200));
+
+        // 先提交者胜，reader不能再修改它开始之后被其他事务修改过的记录
+        assertFalse(((MVCCTransactionMap<Integer, String>) readerMap).tryPut(80, "reader80"));
+        assertTrue(((MVCCTransactionMap<Integer, String>) readerMap).tryPut(81, "reader81"));
+        reader.commit();
+
+        Transaction t3 = te.beginTransaction(false, false);
+        TransactionMap<Integer, String> map3 = map.getInstance(t3);
+        assertEquals("new80", map3.get(80));
+        assertEquals("reader81", map3.get(81));
+        assertNull(map3.get(90));
+        assertNull(map3.get(10));
+        assertEquals("v200", map3.get(200));
+        t3.commit();
+        te.close();
+    }
+
+    @Test
+    public void testSnapshotReadAfterSave() {
+        TransactionEngine te = getTransactionEngine(false);
+        Storage storage = getStorage();
+
+        Transaction t1 = te.beginTransaction(false, false);
+        TransactionMap<Integer, String> map = t1.openMap("testSnapshotReadAfterSave", storage);
+        map.clear();
+        for (int i = 0; i < 2000; i++)
+            map.put(i, "v" + i);
+        t1.commit();
+
+        Transaction reader = te.beginTransaction(false, false);
+        TransactionMap<Integer, String> readerMap = map.getInstance(reader);
+        Transaction t2 = te.beginTransaction(false, false);
+        TransactionMap<Integer, String> map2 = map.getInstance(t2);
+        for (int i = 0; i < 2000; i += 2)
+            map2.put(i, "new" + i);
+        for (int i = 1; i < 2000; i += 10)
+            map2.remove(i);
+        map2.put(5000, "v5000");
+        t2.commit();
+
+        // 保存之后把page从内存中淘汰，从硬盘读回来的版本还要带着提交时间戳和旧版本
+        te.checkpoint();
+        BTreeMap<?, ?> btreeMap = (BTreeMap<?, ?>) storage.getMap("testSnapshotReadAfterSave").getRawMap();
+        btreeMap.getBTreeStorage().setCacheSize(16);
+        int count = 0;
+        Iterator<Integer> it = readerMap.keyIterator(null);
+        while (it.hasNext()) {
+            Integer key = it.next();
+            assertEquals("v" + key, readerMap.get(key));
+            count++;
+        }
+        assertEquals(2000, count);
+        assertNull(readerMap.get(5000));
+        reader.commit();
+
+        Transaction t3 = te.beginTransaction(false, false);
+        TransactionMap<Integer, String> map3 = map.getInstance(t3);
+        assertEquals("new0", map3.get(0));
+        assertNull(map3.get(1));
+        assertEquals("v5000", map3.get(5000));
+        assertEquals(1801, map3.sizeAsLong());
+        t3.commit();
+        te.checkpoint();
+        storage.close();
+
+        // 重新打开时不扫描map，先用底层map的记录数，保存下来的删除标记也算在里面，
+        // VersionGcService在后台数过之后就不算它们了，并且会回收它们
+        storage = getStorage();
+        Transaction t4 = te.beginTransaction(false, false);
+        TransactionMap<Integer, String> map4 = t4.openMap("testSnapshotReadAfterSave", storage);
+        assertNull(map4.get(1));
+        assertEquals("v3", map4.get(3));
+        t4.commit();
+        ((MVCCTransactionEngine) te).collectGarbage();
+        assertEquals(1801, map4.committedSize());
+        assertEquals(1801, map4.rawSize());
+        te.close();
+    }
+
+    @Test
+    public void testSavepoint() {
+        TransactionEngine te = getTransactionEngine(false);
+        Storage storage = getStorage();
+
+        Transaction t = te.beginTransaction(false, false);
+        TransactionMap<Integer, String> map = t.openMap("testSavepoint", storage);
+        map.clear();
+        // 第一个undo log chunk从8条记录换成完整大小后回滚到之前的保存点
+        for (int i = 0; i < 3; i++)
+            map.put(i, "v" + i);
+        t.addSavepoint("sp0");
+        for (int i = 3; i < 20; i++)
+            map.put(i, "v" + i);
+        t.rollbackToSavepoint("sp0");
+        assertEquals(3, map.size());
+        assertNull(map.get(3));
+        // 跨越多个undo log chunk
+        for (int i = 0; i < 300; i++)
+            map.put(i, "v" + i);
+        t.addSavepoint("sp1");
+        for (int i = 0; i < 500; i++)
+            map.put(i, "new" + i);
+        t.addSavepoint("sp2");
+        map.remove(0);
+        map.put(1000, "v1000");
+
+        t.rollbackToSavepoint("sp2");
+        assertEquals("new0", map.get(0));
+        assertNull(map.get(1000));
+
+        t.rollbackToSavepoint("sp1");
+        assertEquals(300, map.size());
+        assertEquals("v0", map.get(0));
+        assertEquals("v299", map.get(299));
+        assertNull(map.get(300));
+
+        map.put(300, "v300");
+        t.commit();
+
+        Transaction t2 = te.beginTransaction(false, false);
+        TransactionMap<Integer, String> map2 = map.getInstance(t2);
+        assertEquals(301, map2.size());
+        assertEquals("v299", map2.get(299));
+        t2.commit();
+        te.close();
+    }
+
+    @Test
+    public void testVersionGc() {
+        MVCCTransactionEngine te = (MVCCTransactionEngine) getTransactionEngine(false);
+        Storage storage = getStorage();
+
+        Transaction t1 = te.beginTransaction(false, false);
+        TransactionMap<Integer, String> map = t1.openMap("testVersionGc", storage);
+        map.clear();
+        for (int i = 0; i < 100; i++)
+            map.put(i, "v" + i);
+        t1.commit();
+
+        Transaction reader = te.beginTransaction(false, false);
+        TransactionMap<Integer, String> readerMap = map.getInstance(reader);
+
+        Transaction t2 = te.beginTransaction(false, false);
+        TransactionMap<Integer, String> map2 = map.getInstance(t2);
+        for (int i = 0; i < 50; i++)
+            map2.put(i, "new" + i);
+        for (int i = 50; i < 60; i++)
+            map2.remove(i);
+        t2.commit();
+
+        @SuppressWarnings("unchecked")
+        StorageMap<Integer, TransactionalValue> rawMap = (StorageMap<Integer, TransactionalValue>) storage
+                .getMap("testVersionGc");
+        // reader还在读旧版本，不能回收
+        te.collectGarbage();
+        assertNotNull(rawMap.get(0).getOldValue());
+        assertTrue(rawMap.containsKey(50));
+        assertEquals("v0", readerMap.get(0));
+        assertEquals("v50", readerMap.get(50));
+        reader.commit();
+
+        te.collectGarbage();
+        for (int i = 0; i < 50; i++) {
+            assertNull(rawMap.get(i).getOldValue());
+            assertEquals("new" + i, rawMap.get(i).value);
+        }
+        for (int i = 50; i < 60; i++)
+            assertFalse(rawMap.containsKey(i));
+        assertEquals(90, rawMap.size());
+
+        Transaction t3 = te.beginTransaction(false, false);
+        TransactionMap<Integer, String> map3 = map.getInstance(t3);
+        assertEquals(90, map3.size());
+        assertEquals("new0", map3.get(0));
+        assertNull(map3.get(50));
+        map3.put(50, "v50");
+        t3.commit();
+        te.close();
+    }
+
+    @Test
+    public void testVersionGcDuringUpdate() throws Exception {
+        MVCCTransactionEngine te = (MVCCTransactionEngine) getTransactionEngine(false);
+        Storage storage = getStorage();
+
+        Transaction t = te.beginTransaction(false, false);
+        TransactionMap<Integer, String> map = t.openMap("testVersionGcDuringUpdate", storage);
+        map.clear();
+        for (int i = 0; i < 10; i++)
+            map.put(i, "v" + i);
+        t.commit();
+
+        // 只有一个写事务，回收线程把所有事务都能读到的版本改写成提交时间戳为0的版本后，写操作也不能失败
+        AtomicBoolean stop = new AtomicBoolean();
+        Thread gc = new Thread(() -> {
+            while (!stop.get())
+                te.collectGarbage();
+        });
+        gc.start();
+        try {
+            for (int n = 0; n < 2000; n++) {
+                // 有更老的读事务时，提交的新版本带着旧版本，读事务结束后就能被回收了
+                Transaction reader = te.beginTransaction(false, false);
+                Transaction writer = te.beginTransaction(false, false);
+                TransactionMap<Integer, String> writerMap = map.getInstance(writer);
+                for (int i = 0; i < 10; i++)
+                    writerMap.put(i, "v" + i + "_" + n);
+                writer.commit();
+                reader.commit();
+            }
+        } finally {
+            stop.set(true);
+            gc.join();
+        }
+
+        t = te.beginTransaction(false, false);
+        map = map.getInstance(t);
+        assertEquals("v0_1999", map.get(0));
+        assertEquals("v9_1999", map.get(9));
+        t.commit();
+        te.close();
+    }
+
+    @Test
+    public void testRowLockWait() {
+        TransactionEngine te = getTransactionEngine(false);
+        Storage storage = getStorage();
+
+        Transaction t1 = te.beginTransaction(false, false);
+        TransactionMap<String, String> map1 = t1.openMap("testRowLockWait", storage);
+        map1.clear();
+        t1.commit();
+
+        t1 = te.beginTransaction(false, false);
+        map1 = map1.getInstance(t1);
+        Transaction t2 = te.beginTransaction(false, false);
+        TransactionMap<String, String> map2 = map1.getInstance(t2);
+        map1.put("a", "a1");
+        map2.put("b", "b2");
+
+        // t1持有a，t2等待t1
+        assertEquals(DataUtils.ERROR_TRANSACTION_LOCKED, getErrorCode(map2, "a"));
+        AtomicInteger wakeUps = new AtomicInteger();
+        assertTrue(t2.addLockWaitListener(() -> wakeUps.incrementAndGet()));
+
+        // t1再等待t2就是死锁
+        assertEquals(DataUtils.ERROR_TRANSACTION_DEADLOCK, getErrorCode(map1, "b"));
+        assertFalse(t1.addLockWaitListener(() -> wakeUps.incrementAndGet()));
+
+        assertEquals(0, wakeUps.get());
+        t1.commit();
+        assertEquals(1, wakeUps.get());
+        // t1已经结束，不用再等
+        assertFalse(t2.addLockWaitListener(() -> wakeUps.incrementAndGet()));
+        // t1在t2的快照之后才提交，用旧快照重试还是冲突，换成新快照后就能更新了
+        assertEquals(DataUtils.ERROR_TRANSACTION_LOCKED, getErrorCode(map2, "a"));
+        assertFalse(t2.addLockWaitListener(() -> wakeUps.incrementAndGet()));
+        assertTrue(t2.refreshSnapshot());
+        assertFalse(t2.refreshSnapshot());
+        assertEquals(0, getErrorCode(map2, "a"));
+        assertEquals("x", map2.get("a"));
+        t2.commit();
+        te.close();
+    }
+
+    @Test
+    public void testLockWaitCleared() {
+        TransactionEngine te = getTransactionEngine(false);
+        Storage storage = getStorage();
+
+        Transaction t1 = te.beginTransaction(false, false);
+        TransactionMap<String, String> map1 = t1.openMap("testLockWaitCleared", storage);
+        map1.clear();
+        t1.commit();
+
+        t1 = te.beginTransaction(false, false);
+        map1 = map1.getInstance(t1);
+        Transaction t2 = te.beginTransaction(false, false);
+        TransactionMap<String, String> map2 = map1.getInstance(t2);
+        map1.put("a", "a1");
+        map2.put("b", "b2");
+
+        // t2等t1时放弃了(比如锁超时)，t1再去写t2持有的行只是等待，不是死锁
+        assertEquals(DataUtils.ERROR_TRANSACTION_LOCKED, getErrorCode(map2, "a"));
+        t2.clearLockWait();
+        assertEquals(DataUtils.ERROR_TRANSACTION_LOCKED, getErrorCode(map1, "b"));
+        t1.clearLockWait();
+
+        // 回滚到保存点也不再等待之前没能锁住的行
+        t2.addSavepoint("s1");
+        assertEquals(DataUtils.ERROR_TRANSACTION_LOCKED, getErrorCode(map2, "a"));
+        t2.rollbackToSavepoint("s1");
+        assertEquals(DataUtils.ERROR_TRANSACTION_LOCKED, getErrorCode(map1, "b"));
+        assertFalse(t2.addLockWaitListener(() -> {
+        }));
+        t1.commit();
+        t2.commit();
+        te.close();
+    }
+
+    private static int getErrorCode(TransactionMap<String, String> map, String key) {
+        try {
+            map.put(key, "x");
+        } catch (IllegalStateException e) {
+            return DataUtils.getErrorCode(e.getMessage());
+        }
+        return 0;
+    }
+
     @Test
     public void run() {
         TransactionEngine te = getTransactionEngine(false);
@@ -157,6 +960,19 @@ public class MVCCTransactionEngineTest extends TestBase {
             fail();
         } catch (IllegalStateException e) {
         }
+        // tryPut和tryRemove也一样
+        try {
+            ((MVCCTransactionMap<String, String>) map).tryPut("1", "a");
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals(DataUtils.ERROR_CLOSED, DataUtils.getErrorCode(e.getMessage()));
+        }
+        try {
+            ((MVCCTransactionMap<String, String>) map).tryRemove("1");
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals(DataUtils.ERROR_CLOSED, DataUtils.getErrorCode(e.getMessage()));
+        }
 
         assertEquals(2, map.size());
 
@@ -190,4 +1006,51 @@ public class MVCCTransactionEngineTest extends TestBase {
 
         te.close();
     }
+
+    @Test
+    public void testBeginDuringSave() throws Exception {
+        // 在事务ID已经分配但还没有登记到statusTable时让beginTransaction停下来
+        CountDownLatch allocated = new CountDownLatch(1);
+        CountDownLatch resume = new CountDownLatch(1);
+        AtomicBoolean pause = new AtomicBoolean(false);
+        MVCCTransactionEngine te = new MVCCTransactionEngine("testBeginDuringSave") {
+            @Override
+            protected MVCCTransaction createTransaction(long tid) {
+                if (pause.compareAndSet(true, false)) {
+                    allocated.countDown();
+                    try {
+                        resume.await();
+                    } catch (InterruptedException e) {
+                    }
+                }
+                return super.createTransaction(tid);
+            }
+        };
+        Map<String, String> config = getDefaultConfig();
+        config.put("redo_log_dir", "redo_log_begin_during_save");
+        config.put("checkpoint_service_loop_interval", "100000");
+        FileUtils.deleteRecursive(joinDirs("mvcc", "redo_log_begin_during_save"), true);
+        te.init(config);
+        try {
+            te.beginTransaction(false, false).commit();
+            pause.set(true);
+            AtomicLong tid = new AtomicLong();
+            Thread begin = new Thread(() -> tid.set(te.beginTransaction(false, false).getTransactionId()));
+            begin.start();
+            allocated.await();
+
+            // 保存map时计算的lowWaterTransactionId不能越过正在开始的事务
+            AtomicLong lowWater = new AtomicLong();
+            Thread save = new Thread(() -> lowWater.set(te.getLowWaterTransactionId()));
+            save.start();
+            save.join(100);
+            resume.countDown();
+            begin.join();
+            save.join();
+            assertTrue(lowWater.get() <= tid.get());
+        } finally {
+            resume.countDown();
+            te.close();
+        }
+    }
 }
@@ -0,0 +1,67 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.net;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+import org.lealone.db.DataBuffer;
+import org.lealone.net.CompositeNetBuffer;
+import org.lealone.net.NetBuffer;
+import org.lealone.net.nio.NioBuffer;
+import org.lealone.test.UnitTestBase;
+
+public class CompositeNetBufferTest extends UnitTestBase {
+    @Test
+    public void run() {
+        // 0..9, 10..12, 13..19 三次读到的字节
+        NetBuffer buffer = createBuffer(0, 10).appendBuffer(createBuffer(10, 13));
+        assertTrue(buffer instanceof CompositeNetBuffer);
+        buffer = buffer.appendBuffer(createBuffer(13, 20));
+        assertEquals(20, buffer.length());
+        for (int i = 0; i < 20; i++) {
+            assertEquals(i, buffer.getUnsignedByte(i));
+        }
+        // 随机访问
+        assertEquals(15, buffer.getUnsignedByte(15));
+        assertEquals(3, buffer.getUnsignedByte(3));
+        assertEquals(11, buffer.getUnsignedByte(11));
+
+        NetBuffer slice = buffer.slice(8, 15);
+        assertEquals(7, slice.length());
+        for (int i = 0; i < 7; i++) {
+            assertEquals(8 + i, slice.getUnsignedByte(i));
+        }
+        NetBuffer copy = buffer.getBuffer(11, 12);
+        assertEquals(1, copy.length());
+        assertEquals(11, copy.getUnsignedByte(0));
+        assertEquals(0, buffer.slice(5, 5).length());
+
+        // 空buffer不会成为组合buffer的一部分
+        NetBuffer empty = createBuffer(0, 0);
+        assertTrue(empty.appendBuffer(buffer) == buffer);
+    }
+
+    private static NioBuffer createBuffer(int from, int to) {
+        byte[] bytes = new byte[to - from];
+        for (int i = from; i < to; i++) {
+            bytes[i - from] = (byte) i;
+        }
+        return new NioBuffer(DataBuffer.create(ByteBuffer.wrap(bytes)));
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.perf;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.lealone.storage.aose.AOStorage;
+import org.lealone.storage.aose.AOStorageBuilder;
+import org.lealone.storage.aose.btree.BTreeMap;
+import org.lealone.test.TestBase;
+
+//对比同步写和concurrentWrite两种模式下多个线程写不相交的leaf page时的吞吐量，
+//同步写模式下所有线程串行执行，concurrentWrite模式下只有替换root的CAS是串行的，
+//线程数不超过cpu核数时吞吐量应该随线程数增长，root的CAS重试次数也会打印出来
+public class BTreeMapConcurrentWritePerformanceTest extends TestBase {
+
+    public static void main(String[] args) throws Exception {
+        new BTreeMapConcurrentWritePerformanceTest().run();
+    }
+
+    private final int rowCount = 200000;
+    private AOStorage storage;
+
+    // @Test
+    public void run() {
+        AOStorageBuilder builder = new AOStorageBuilder();
+        builder.storagePath(joinDirs("aose", "BTreeMapConcurrentWritePerformanceTest")).pageSplitSize(4 * 1024);
+        storage = builder.openStorage();
+
+        int maxThreads = Runtime.getRuntime().availableProcessors() * 2;
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            run(false, threads);
+            run(true, threads);
+        }
+        storage.close();
+    }
+
+    private void run(boolean concurrentWrite, int threadCount) {
+        Map<String, String> parameters = new HashMap<>();
+        if (concurrentWrite)
+            parameters.put("concurrentWrite", "true");
+        BTreeMap<Integer, String> map = storage.openBTreeMap(
+                "ConcurrentWritePerformanceTest_" + concurrentWrite + "_" + threadCount, null, null, parameters);
+        map.clear();
+        // 先写入所有的key，让每个线程后续只更新属于自己的那些leaf page
+        for (int i = 0; i < rowCount; i++) {
+            map.put(i, "value" + i);
+        }
+
+        int count = rowCount / threadCount;
+        CountDownLatch latch = new CountDownLatch(threadCount);
+        long retries = map.getRootUpdateRetries();
+        long t1 = System.nanoTime();
+        for (int t = 0; t < threadCount; t++) {
+            int start = t * count;
+            new Thread(() -> {
+                try {
+                    for (int i = start; i < start + count; i++) {
+                        map.put(i, "v" + i);
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            }).start();
+        }
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        long t2 = System.nanoTime();
+        long ms = Math.max(1, (t2 - t1) / 1000000);
+        System.out.println((concurrentWrite ? "concurrentWrite" : "synchronized   ") + " threads: " + threadCount
+                + ", time: " + ms + " ms, ops/s: " + (count * threadCount * 1000L / ms) + ", root retries: "
+                + (map.getRootUpdateRetries() - retries));
+        map.remove();
+    }
+}
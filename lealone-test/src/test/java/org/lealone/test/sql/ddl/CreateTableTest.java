@@ -0,0 +1,46 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.sql.ddl;
+
+import org.junit.Test;
+import org.lealone.test.sql.SqlTestBase;
+
+//数据库重新打开时会执行表的CREATE语句，WITH子句里的参数值必须能被重新解析
+public class CreateTableTest extends SqlTestBase {
+
+    @Test
+    public void run() throws Exception {
+        executeUpdate("DROP TABLE IF EXISTS CreateTableTest");
+        executeUpdate("CREATE TABLE CreateTableTest (f1 int primary key, f2 int)"
+                + " WITH(concurrent_write='true', comment='it''s a, test')");
+
+        sql = "SELECT SQL FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_NAME='CREATETABLETEST'";
+        String createSQL = getStringValue(1, true);
+        assertTrue(createSQL.contains("CONCURRENT_WRITE='true'"));
+        assertTrue(createSQL.contains("COMMENT='it''s a, test'"));
+
+        // 模拟重新打开数据库时重放CREATE语句
+        executeUpdate("DROP TABLE CreateTableTest");
+        executeUpdate(createSQL);
+        assertEquals(createSQL, getStringValue(1, true));
+
+        executeUpdate("INSERT INTO CreateTableTest(f1, f2) VALUES(1, 10)");
+        sql = "SELECT f2 FROM CreateTableTest WHERE f1 = 1";
+        assertEquals(10, getIntValue(1, true));
+    }
+}
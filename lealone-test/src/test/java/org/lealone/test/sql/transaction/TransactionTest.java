@@ -18,11 +18,15 @@
 package org.lealone.test.sql.transaction;
 
 import java.sql.Connection;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Savepoint;
 import java.sql.Statement;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Test;
+import org.lealone.db.api.ErrorCode;
 import org.lealone.test.sql.SqlTestBase;
 
 public class TransactionTest extends SqlTestBase {
@@ -42,6 +46,56 @@ public class TransactionTest extends SqlTestBase {
         // testSavepoint();
     }
 
+    @Test
+    public void testSnapshotConflict() throws Exception {
+        executeUpdate("DROP TABLE IF EXISTS SnapshotConflictTest");
+        executeUpdate("CREATE TABLE IF NOT EXISTS SnapshotConflictTest (f1 int NOT NULL PRIMARY KEY, f2 int)");
+        executeUpdate("INSERT INTO SnapshotConflictTest(f1, f2) VALUES(1, 0)");
+        executeUpdate("INSERT INTO SnapshotConflictTest(f1, f2) VALUES(2, 0)");
+
+        try (Connection conn1 = getConnection(); Connection conn2 = getConnection()) {
+            Statement stmt1 = conn1.createStatement();
+            Statement stmt2 = conn2.createStatement();
+
+            // 第一条语句读过旧快照后，更新在它之后提交的记录只能报告冲突，不能换成新快照
+            conn1.setAutoCommit(false);
+            assertEquals(0, getF2(stmt1, 1));
+            stmt2.executeUpdate("UPDATE SnapshotConflictTest SET f2 = 10 WHERE f1 = 1");
+            try {
+                stmt1.executeUpdate("UPDATE SnapshotConflictTest SET f2 = f2 + 1 WHERE f1 = 1");
+                fail();
+            } catch (SQLException e) {
+                assertEquals(ErrorCode.CONCURRENT_UPDATE_1, e.getErrorCode());
+            }
+            assertEquals(0, getF2(stmt1, 1));
+            conn1.rollback();
+            assertEquals(10, getF2(stmt2, 1));
+
+            // 事务中的第一条语句等到行锁时，持有行锁的事务已经提交了，换成新快照后重试
+            conn2.setAutoCommit(false);
+            stmt2.executeUpdate("UPDATE SnapshotConflictTest SET f2 = 10 WHERE f1 = 2");
+            CompletableFuture<Integer> f = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return stmt1.executeUpdate("UPDATE SnapshotConflictTest SET f2 = f2 + 1 WHERE f1 = 2");
+                } catch (SQLException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            Thread.sleep(100);
+            conn2.commit();
+            assertEquals(1, f.get(5, TimeUnit.SECONDS).intValue());
+            assertEquals(11, getF2(stmt1, 2));
+            conn1.commit();
+        }
+    }
+
+    private static int getF2(Statement stmt, int f1) throws SQLException {
+        try (ResultSet rs = stmt.executeQuery("SELECT f2 FROM SnapshotConflictTest WHERE f1 = " + f1)) {
+            assertTrue(rs.next());
+            return rs.getInt(1);
+        }
+    }
+
     class MyThread extends Thread {
         Connection connection;
         Statement statement;